@@ -7,4 +7,7 @@ import java.lang.annotation.Target;
 
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
-public @interface PublicEndpoint {}
\ No newline at end of file
+public @interface PublicEndpoint {
+    // the method's name in the .proto, when the Java method isn't simply named after it
+    String value() default "";
+}
\ No newline at end of file
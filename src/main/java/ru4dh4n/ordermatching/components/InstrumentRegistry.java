@@ -1,19 +1,39 @@
 package ru4dh4n.ordermatching.components;
 
 import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import ru4dh4n.ordermatching.dao.InstrumentDao;
 import ru4dh4n.ordermatching.helper.Instrument;
 
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Every instrument, interned into a dense int handle (the {@code handle} column) that the engine uses instead
+ * of the id: books, journal records and market data are all looked up by array index. The id is resolved to
+ * a handle once, at the gRPC edge.
+ * <p>
+ * Handles are never reused. A delisted instrument can no longer be resolved by id, but keeps its slot so
+ * journal records that name it can still be read back.
+ */
 @Component
 public class InstrumentRegistry {
+    private static final Logger log = LoggerFactory.getLogger(InstrumentRegistry.class);
+
+    // what getHandle returns for an id that isn't listed, getInstrument(UNKNOWN) is always null
+    public static final int UNKNOWN = -1;
+
     private final InstrumentDao instrumentDao;
-    private volatile Map<String, Instrument> instruments = new ConcurrentHashMap<>();
+    // instrumentId -> handle, listed instruments only
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>();
+    // handle -> instrument, only ever replaced by a copy so readers need no locking
+    private volatile Instrument[] instruments = new Instrument[0];
 
     public InstrumentRegistry(InstrumentDao instrumentDao) {
         this.instrumentDao = instrumentDao;
@@ -29,15 +49,72 @@ public class InstrumentRegistry {
         refreshInstruments();
     }
 
-    public void refreshInstruments() {
+    /**
+     * Applies what changed in the table since the last refresh; when nothing did, nothing is replaced.
+     */
+    public synchronized void refreshInstruments() {
         try {
-            this.instruments = new ConcurrentHashMap<>(instrumentDao.getAllInstruments());
+            Map<Integer, Instrument> loaded = instrumentDao.getAllInstruments();
+
+            int size = loaded.keySet().stream().mapToInt(handle -> handle + 1).max().orElse(0);
+
+            Instrument[] current = instruments;
+            Instrument[] next = current;
+            for (Map.Entry<Integer, Instrument> listing : loaded.entrySet()) {
+                int handle = listing.getKey();
+                Instrument instrument = listing.getValue();
+                Instrument existing = handle < current.length ? current[handle] : null;
+                if (instrument.equals(existing)) continue;
+
+                if (!accept(handle, existing, instrument)) continue;
+                if (next == current) next = Arrays.copyOf(current, Math.max(current.length, size));
+                next[handle] = instrument;
+            }
+            // publish the instruments before their handles, so a resolved handle always has one
+            if (next != current) instruments = next;
+
+            handles.entrySet().removeIf(mapping -> !loaded.containsKey(mapping.getValue()));
+            for (Map.Entry<Integer, Instrument> listing : loaded.entrySet()) {
+                if (next[listing.getKey()] == listing.getValue()) handles.put(listing.getValue().instrumentId(), listing.getKey());
+            }
         } catch (Exception e) {
-            System.err.println("Failed to refresh instruments: " + e.getMessage());
+            log.warn("Failed to refresh instruments", e);
+        }
+    }
+
+    // the books and journal depend on a handle's id, scale and tick, changing those needs the books migrated first
+    private boolean accept(int handle, Instrument existing, Instrument instrument) {
+        Integer claimed = handles.get(instrument.instrumentId());
+        if (claimed != null && claimed != handle) {
+            log.warn("Instrument {} can't move from handle {} to {}, ignored", instrument.instrumentId(), claimed, handle);
+            return false;
         }
+        if (existing != null && (!existing.instrumentId().equals(instrument.instrumentId())
+                || existing.scale() != instrument.scale()
+                || !Objects.equals(existing.tickSize(), instrument.tickSize()))) {
+            log.warn("Instrument with handle {} changed its id, scale or tick size, ignored", handle);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the handle of a listed instrument, or {@link #UNKNOWN}
+     */
+    public int getHandle(String instrumentId) {
+        Integer handle = handles.get(instrumentId);
+        return handle == null ? UNKNOWN : handle;
+    }
+
+    /**
+     * @return the instrument behind a handle, or null if there is none
+     */
+    public Instrument getInstrument(int handle) {
+        Instrument[] current = instruments;
+        return handle >= 0 && handle < current.length ? current[handle] : null;
     }
 
     public Optional<Instrument> getInstrument(String instrumentId) {
-        return Optional.ofNullable(instruments.get(instrumentId));
+        return Optional.ofNullable(getInstrument(getHandle(instrumentId)));
     }
 }
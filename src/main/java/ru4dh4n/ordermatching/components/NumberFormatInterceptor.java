@@ -0,0 +1,32 @@
+package ru4dh4n.ordermatching.components;
+
+import io.grpc.*;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Picks how numbers go back to the client on this call. Decimal strings unless the client asks for
+ * {@code x-number-format: fixed-point}, in which case only the FixedPoint fields are filled in.
+ */
+@Component
+@GrpcGlobalServerInterceptor
+public class NumberFormatInterceptor implements ServerInterceptor {
+    public enum NumberFormat { DECIMAL, FIXED_POINT }
+
+    public static final Context.Key<NumberFormat> NUMBER_FORMAT = Context.keyWithDefault("number-format", NumberFormat.DECIMAL);
+    public static final Metadata.Key<String> NUMBER_FORMAT_HEADER_KEY = Metadata.Key.of("x-number-format", Metadata.ASCII_STRING_MARSHALLER);
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+
+        if (!"fixed-point".equals(headers.get(NUMBER_FORMAT_HEADER_KEY))) {
+            return next.startCall(call, headers);
+        }
+
+        Context ctx = Context.current().withValue(NUMBER_FORMAT, NumberFormat.FIXED_POINT);
+        return Contexts.interceptCall(ctx, call, headers, next);
+    }
+}
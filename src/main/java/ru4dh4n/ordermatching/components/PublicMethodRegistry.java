@@ -52,8 +52,9 @@ public class PublicMethodRegistry implements InitializingBean, ApplicationContex
                 if (!isGrpcService(beanClass)) continue;
 
                 for (Method method : beanClass.getDeclaredMethods()) {
-                    if (method.isAnnotationPresent(PublicEndpoint.class)) {
-                        String grpcMethodName = toGrpcMethodName(method.getName());
+                    PublicEndpoint endpoint = method.getAnnotation(PublicEndpoint.class);
+                    if (endpoint != null) {
+                        String grpcMethodName = endpoint.value().isEmpty() ? toGrpcMethodName(method.getName()) : endpoint.value();
                         String serviceName = inferServiceName(beanClass);
                         String fullName = serviceName + "/" + grpcMethodName;
                         publicMethods.add(fullName);
@@ -79,9 +80,25 @@ public class PublicMethodRegistry implements InitializingBean, ApplicationContex
         return false;
     }
 
+    // the generated XxxGrpc class that the ImplBase or AsyncService is nested in knows the name from the .proto
     private String inferServiceName(Class<?> implClass) {
-        String className = implClass.getSimpleName();
-        return basePackage + "." + className;
+        for (Class<?> current = implClass; current != null; current = current.getSuperclass()) {
+            if (current.getSimpleName().contains("ImplBase")) return serviceNameOf(current);
+            for (Class<?> iface : current.getInterfaces()) {
+                if (iface.getSimpleName().equals("AsyncService")) return serviceNameOf(iface);
+            }
+        }
+        return basePackage + "." + implClass.getSimpleName();
+    }
+
+    private String serviceNameOf(Class<?> generated) {
+        Class<?> grpcClass = generated.getEnclosingClass();
+        if (grpcClass != null) {
+            try {
+                return (String) grpcClass.getField("SERVICE_NAME").get(null);
+            } catch (ReflectiveOperationException ignored) { }
+        }
+        return basePackage + "." + generated.getSimpleName();
     }
 
     // I do not like this :( TODO: make betterer
@@ -0,0 +1,124 @@
+package ru4dh4n.ordermatching.dao;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru4dh4n.ordermatching.helper.CandleSeries;
+import ru4dh4n.ordermatching.helper.Price;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+@Repository
+public class CandleDao {
+
+    // a bar that's still open is written over until it closes
+    private static final String UPSERT_CANDLE =
+            "INSERT OR REPLACE INTO candles (instrument, interval_seconds, open_time, open, high, low, close, volume, vwap, trade_count, closed) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public record StoredBar(String instrumentId, int scale, CandleSeries.Interval interval, CandleSeries.Bar bar) { }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public CandleDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Stores the bars in one transaction.
+     */
+    public void writeBatch(List<StoredBar> bars) {
+        if (bars.isEmpty()) return;
+
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(UPSERT_CANDLE)) {
+                for (StoredBar stored : bars) {
+                    CandleSeries.Bar bar = stored.bar();
+                    ps.setString(1, stored.instrumentId());
+                    ps.setLong(2, stored.interval().seconds());
+                    ps.setLong(3, bar.openTimeNanos());
+                    ps.setString(4, Price.toPlainString(bar.open(), stored.scale()));
+                    ps.setString(5, Price.toPlainString(bar.high(), stored.scale()));
+                    ps.setString(6, Price.toPlainString(bar.low(), stored.scale()));
+                    ps.setString(7, Price.toPlainString(bar.close(), stored.scale()));
+                    ps.setString(8, Price.toPlainString(bar.volume(), stored.scale()));
+                    ps.setString(9, Price.toPlainString(bar.vwap(), stored.scale()));
+                    ps.setLong(10, bar.tradeCount());
+                    ps.setBoolean(11, bar.closed());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The last {@code limit} bars that opened between {@code from} and {@code to} inclusive, oldest first.
+     */
+    public List<CandleSeries.Bar> getCandles(String instrumentId, int scale, CandleSeries.Interval interval,
+                                             long fromNanos, long toNanos, int limit) {
+        String query = "SELECT * FROM candles WHERE instrument = ? AND interval_seconds = ? AND open_time BETWEEN ? AND ? " +
+                "ORDER BY open_time DESC LIMIT ?";
+        List<CandleSeries.Bar> bars = new ArrayList<>(jdbcTemplate.query(query, (rs, rowNum) -> mapRowToBar(rs, scale),
+                instrumentId, interval.seconds(), fromNanos, toNanos, limit));
+        Collections.reverse(bars);
+        return bars;
+    }
+
+    /**
+     * Every bar that was last written while it was still open, to carry on with after a restart.
+     */
+    public List<StoredBar> getOpenBars(Function<String, Integer> scales) {
+        String query = "SELECT * FROM candles WHERE closed = false";
+        List<StoredBar> bars = new ArrayList<>();
+        jdbcTemplate.query(query, rs -> {
+            String instrumentId = rs.getString("instrument");
+            Integer scale = scales.apply(instrumentId);
+            CandleSeries.Interval interval = intervalOf(rs.getLong("interval_seconds"));
+            // delisted, or an interval that's no longer kept
+            if (scale == null || interval == null) return;
+            bars.add(new StoredBar(instrumentId, scale, interval, mapRowToBar(rs, scale)));
+        });
+        return bars;
+    }
+
+    private static CandleSeries.Interval intervalOf(long seconds) {
+        return Arrays.stream(CandleSeries.Interval.values())
+                .filter(interval -> interval.seconds() == seconds)
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static CandleSeries.Bar mapRowToBar(ResultSet rs, int scale) throws SQLException {
+        long volume = Price.toScaled(rs.getBigDecimal("volume"), scale);
+        long vwap = Price.toScaled(rs.getBigDecimal("vwap"), scale);
+        return new CandleSeries.Bar(
+                rs.getLong("open_time"),
+                Price.toScaled(rs.getBigDecimal("open"), scale),
+                Price.toScaled(rs.getBigDecimal("high"), scale),
+                Price.toScaled(rs.getBigDecimal("low"), scale),
+                Price.toScaled(rs.getBigDecimal("close"), scale),
+                volume,
+                // only the VWAP is stored, which is all the notional was for
+                (double) vwap * volume,
+                rs.getLong("trade_count"),
+                rs.getBoolean("closed")
+        );
+    }
+}
@@ -7,8 +7,8 @@ import ru4dh4n.ordermatching.helper.Instrument;
 import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 @Repository
 public class InstrumentDao {
@@ -24,13 +24,26 @@ public class InstrumentDao {
                 rs.getString("instrument_id"),
                 rs.getString("name"),
                 new BigDecimal(rs.getString("min_order_quantity")),
-                new BigDecimal(rs.getString("min_dust_quantity"))
+                new BigDecimal(rs.getString("min_dust_quantity")),
+                decimalOrNull(rs.getString("tick_size")),
+                decimalOrNull(rs.getString("min_price")),
+                decimalOrNull(rs.getString("max_price"))
         );
     }
 
-    public Map<String, Instrument> getAllInstruments() {
-        String query = "SELECT * FROM instruments";
-        return jdbcTemplate.query(query, this::mapRow).stream()
-                .collect(Collectors.toMap(Instrument::instrumentId, i -> i));
+    private static BigDecimal decimalOrNull(String value) {
+        return value == null ? null : new BigDecimal(value);
+    }
+
+    /**
+     * @return handle -> instrument
+     */
+    public Map<Integer, Instrument> getAllInstruments() {
+        String query = "SELECT * FROM instruments ORDER BY handle";
+        Map<Integer, Instrument> instruments = new LinkedHashMap<>();
+        jdbcTemplate.query(query, rs -> {
+            instruments.put(rs.getInt("handle"), mapRow(rs, 0));
+        });
+        return instruments;
     }
 }
@@ -3,16 +3,14 @@ package ru4dh4n.ordermatching.dao;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import ru4dh4n.ordermatching.helper.Instrument;
 import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.Price;
 
-import java.math.BigDecimal;
-import java.sql.PreparedStatement;
-import java.sql.Statement;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Repository
 public class OrderDao {
@@ -20,24 +18,53 @@ public class OrderDao {
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
-    public Optional<Order> saveOrder(String userId, String instrumentId, Order.Side side, BigDecimal price, BigDecimal totalQuantity) {
-        String sql = "INSERT INTO orders(user_id, instrument, side, quantity, price) VALUES (?, ?, ?, ?, ?)";
+    // order ids are handed out by the engine's sequencing stage, this is where it resumes from
+    public long getLastOrderId() {
+        Long lastOrderId = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(order_id), 0) FROM orders", Long.class);
+        return lastOrderId == null ? 0 : lastOrderId;
+    }
+
+    // fixed-point, scaled by the instrument's scale (see Price)
+    @FunctionalInterface
+    public interface OpenOrderHandler {
+        void onOpenOrder(long orderId, String userId, Order.Side side, long price, long totalQuantity);
+    }
 
-        KeyHolder keyHolder = new GeneratedKeyHolder();
-        jdbcTemplate.update(connection -> {
-            PreparedStatement ps = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            ps.setString(1, userId);
-            ps.setString(2, instrumentId);
-            ps.setString(3, side.name());
-            ps.setString(4, totalQuantity.toPlainString());
-            ps.setString(5, price.toPlainString());
-            return ps;
-        }, keyHolder);
+    public List<String> getInstrumentsWithOpenOrders() {
+        return jdbcTemplate.queryForList("SELECT DISTINCT instrument FROM orders WHERE complete = false", String.class);
+    }
+
+    /**
+     * Streams the instrument's open orders, oldest first, without loading them all at once.
+     */
+    public void forEachOpenOrder(Instrument instrument, OpenOrderHandler handler) {
+        String sql = "SELECT order_id, user_id, side, quantity, price FROM orders " +
+                "WHERE instrument = ? AND complete = false ORDER BY order_id";
+
+        jdbcTemplate.query(sql, rs -> {
+            handler.onOpenOrder(
+                    rs.getLong("order_id"),
+                    rs.getString("user_id"),
+                    Order.Side.valueOf(rs.getString("side")),
+                    Price.toScaled(rs.getBigDecimal("price"), instrument.scale()),
+                    Price.toScaled(rs.getBigDecimal("quantity"), instrument.scale())
+            );
+        }, instrument.instrumentId());
+    }
 
-        if (Objects.isNull(keyHolder.getKey())) { return Optional.empty(); }
-        long orderId = keyHolder.getKey().longValue();
+    /**
+     * @return orderId -> quantity filled so far, for every open order of the instrument that has traded
+     */
+    public Map<Long, Long> getOpenFilledQuantities(Instrument instrument) {
+        String sql = "SELECT o.order_id, t.quantity FROM trades t " +
+                "JOIN orders o ON o.order_id IN (t.maker_order_id, t.taker_order_id) " +
+                "WHERE o.instrument = ? AND o.complete = false";
 
-        return Optional.of(new Order(orderId, userId, instrumentId, side, totalQuantity, price));
+        Map<Long, Long> filled = new HashMap<>();
+        jdbcTemplate.query(sql, rs -> {
+            filled.merge(rs.getLong("order_id"), Price.toScaled(rs.getBigDecimal("quantity"), instrument.scale()), Long::sum);
+        }, instrument.instrumentId());
+        return filled;
     }
 
     public boolean orderComplete(long orderId) {
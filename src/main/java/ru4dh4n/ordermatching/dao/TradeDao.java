@@ -1,58 +1,74 @@
 package ru4dh4n.ordermatching.dao;
 
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import ru4dh4n.ordermatching.helper.Price;
 import ru4dh4n.ordermatching.helper.Trade;
 
 import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.List;
-import java.util.Optional;
 
 @Repository
 public class TradeDao {
 
+    // an order's fills and its cancel, if it had one, in update sequence order; split up by side so each half can use
+    // its index
+    private static final String ORDER_UPDATES =
+            "SELECT journal_sequence AS sequence, instrument, quantity, price, scale, maker_order_id, taker_order_id, created_at AS at " +
+            "FROM trades WHERE maker_order_id = ? AND journal_sequence > ? " +
+            "UNION ALL " +
+            "SELECT journal_sequence, instrument, quantity, price, scale, maker_order_id, taker_order_id, created_at " +
+            "FROM trades WHERE taker_order_id = ? AND journal_sequence > ? " +
+            "UNION ALL " +
+            "SELECT cancel_sequence, instrument, NULL, NULL, NULL, NULL, NULL, cancelled_at " +
+            "FROM orders WHERE order_id = ? AND cancel_sequence > ? " +
+            "ORDER BY sequence LIMIT ?";
+
+    // one of an order's stored updates, the fill is null for the cancel
+    public record StoredUpdate(long sequence, Instant timestamp, Trade fill) {
+        public boolean cancelled() { return fill == null; }
+    }
+
     private final JdbcTemplate jdbcTemplate;
 
     public TradeDao(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
     }
 
-    public Optional<Long> saveTrade(String instrument, Trade trade) {
-        String query = "INSERT INTO trades (instrument, quantity, price, maker_order_id, taker_order_id) " +
-                "VALUES (?, ?, ?, ?, ?)";
-
-        KeyHolder keyHolder = new GeneratedKeyHolder();
-        jdbcTemplate.update(connection -> {
-            PreparedStatement ps = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
-            ps.setString(1, instrument);
-            ps.setString(2, trade.getQuantity().toPlainString());
-            ps.setString(3, trade.getPrice().toPlainString());
-            ps.setLong(4, trade.getMakerOrderId());
-            ps.setLong(5, trade.getTakerOrderId());
-            return ps;
-        }, keyHolder);
-
-        return Optional.ofNullable(keyHolder.getKey()).map(Number::longValue);
+    /**
+     * The next {@code limit} updates of the order after {@code afterSequence}, oldest first. Only what the journal
+     * projection has stored so far, see {@link WriteBehindDao#getProjectedSequence()}.
+     */
+    public List<StoredUpdate> getUpdates(long orderId, long afterSequence, int limit) {
+        return jdbcTemplate.query(ORDER_UPDATES, this::mapRowToUpdate,
+                orderId, afterSequence, orderId, afterSequence, orderId, afterSequence, limit);
     }
 
-    public List<Trade> getTrades(long orderId, Timestamp from) {
-        if (from == null) {
-            String query = "SELECT * FROM trades WHERE (maker_order_id = ? OR taker_order_id = ?)";
-            return jdbcTemplate.query(query, this::mapRowToTrade, orderId, orderId);
-        }
+    private StoredUpdate mapRowToUpdate(ResultSet rs, int rowNum) throws SQLException {
+        long sequence = rs.getLong("sequence");
+        Instant timestamp = toInstant(rs.getString("at"));
+        if (rs.getString("quantity") == null) return new StoredUpdate(sequence, timestamp, null);
 
-        String query = "SELECT * FROM trades WHERE (maker_order_id = ? OR taker_order_id = ?) AND created_at >= ?";
-        return jdbcTemplate.query(query, this::mapRowToTrade, orderId, orderId, from);
-    }
-
-    private Trade mapRowToTrade(ResultSet rs, int rowNum) throws SQLException {
-        return new Trade(
+        // stored with the trade, the instrument may not be listed any more
+        int scale = rs.getInt("scale");
+        Trade trade = new Trade().set(
+                rs.getString("instrument"),
                 rs.getLong("maker_order_id"),
                 rs.getLong("taker_order_id"),
-                rs.getBigDecimal("price"),
-                rs.getBigDecimal("quantity")
-        );
+                Price.toScaled(rs.getBigDecimal("price"), scale),
+                Price.toScaled(rs.getBigDecimal("quantity"), scale),
+                scale,
+                timestamp
+        ).setSequence(sequence);
+        return new StoredUpdate(sequence, timestamp, trade);
+    }
+
+    // stored as UTC text in CURRENT_TIMESTAMP's layout, to the millisecond, see WriteBehindDao
+    private static Instant toInstant(String timestamp) {
+        if (timestamp == null) return Instant.EPOCH;
+        return LocalDateTime.parse(timestamp.replace(' ', 'T')).toInstant(ZoneOffset.UTC);
     }
-}
\ No newline at end of file
+}
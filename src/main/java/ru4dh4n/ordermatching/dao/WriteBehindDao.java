@@ -0,0 +1,138 @@
+package ru4dh4n.ordermatching.dao;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru4dh4n.ordermatching.helper.OrderDetails;
+import ru4dh4n.ordermatching.helper.Price;
+import ru4dh4n.ordermatching.helper.Trade;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Group commit for the journal projection: everything a run of journal records produced (new orders, their
+ * trades and the orders that finished) goes to the database in a single transaction, one statement batch per
+ * table, along with the journal sequence it brings the tables up to.
+ */
+@Repository
+public class WriteBehindDao {
+
+    private static final String INSERT_ORDER =
+            "INSERT INTO orders(order_id, user_id, instrument, side, quantity, price, created_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_TRADE =
+            "INSERT INTO trades (instrument, quantity, price, scale, maker_order_id, taker_order_id, journal_sequence, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String COMPLETE_ORDER = "UPDATE orders SET complete = true WHERE order_id = ?";
+    private static final String CANCEL_ORDER =
+            "UPDATE orders SET complete = true, cancel_sequence = ?, cancelled_at = ? WHERE order_id = ?";
+    private static final String UPDATE_SEQUENCE = "UPDATE journal_projection SET sequence = ? WHERE id = 0";
+
+    // CURRENT_TIMESTAMP's layout, to the millisecond; times come from the journal, not from when they're stored
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+
+    // an order the journal accepted, and when
+    public record AcceptedOrder(OrderDetails order, Instant timestamp) { }
+
+    // an order that was pulled from its book, and the journal sequence and time that happened at
+    public record Cancel(long orderId, long sequence, Instant timestamp) { }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public WriteBehindDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // the last journal sequence that made it into the tables
+    public long getProjectedSequence() {
+        Long sequence = jdbcTemplate.queryForObject("SELECT sequence FROM journal_projection WHERE id = 0", Long.class);
+        return sequence == null ? 0 : sequence;
+    }
+
+    /**
+     * Stores the batch atomically: either all of it is durable when this returns, or none of it is.
+     */
+    public void writeBatch(List<AcceptedOrder> orders, List<Trade> trades, List<Long> completedOrderIds,
+                           List<Cancel> cancels, long journalSequence) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                insertOrders(connection.prepareStatement(INSERT_ORDER), orders);
+                insertTrades(connection.prepareStatement(INSERT_TRADE), trades);
+                completeOrders(connection.prepareStatement(COMPLETE_ORDER), completedOrderIds);
+                cancelOrders(connection.prepareStatement(CANCEL_ORDER), cancels);
+                try (PreparedStatement ps = connection.prepareStatement(UPDATE_SEQUENCE)) {
+                    ps.setLong(1, journalSequence);
+                    ps.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    private static void insertOrders(PreparedStatement ps, List<AcceptedOrder> orders) throws SQLException {
+        try (ps) {
+            for (AcceptedOrder accepted : orders) {
+                OrderDetails order = accepted.order();
+                ps.setLong(1, order.getOrderId());
+                ps.setString(2, order.getUserId());
+                ps.setString(3, order.getInstrumentId());
+                ps.setString(4, order.getSide().name());
+                ps.setString(5, Price.toPlainString(order.getTotalQuantity(), order.getScale()));
+                ps.setString(6, Price.toPlainString(order.getPrice(), order.getScale()));
+                ps.setString(7, TIMESTAMP.format(accepted.timestamp()));
+                ps.addBatch();
+            }
+            if (!orders.isEmpty()) ps.executeBatch();
+        }
+    }
+
+    private static void insertTrades(PreparedStatement ps, List<Trade> trades) throws SQLException {
+        try (ps) {
+            for (Trade trade : trades) {
+                ps.setString(1, trade.getInstrumentId());
+                ps.setString(2, Price.toPlainString(trade.getQuantity(), trade.getScale()));
+                ps.setString(3, Price.toPlainString(trade.getPrice(), trade.getScale()));
+                ps.setInt(4, trade.getScale());
+                ps.setLong(5, trade.getMakerOrderId());
+                ps.setLong(6, trade.getTakerOrderId());
+                ps.setLong(7, trade.getSequence());
+                ps.setString(8, TIMESTAMP.format(trade.getTimestamp()));
+                ps.addBatch();
+            }
+            if (!trades.isEmpty()) ps.executeBatch();
+        }
+    }
+
+    private static void completeOrders(PreparedStatement ps, List<Long> orderIds) throws SQLException {
+        try (ps) {
+            for (long orderId : orderIds) {
+                ps.setLong(1, orderId);
+                ps.addBatch();
+            }
+            if (!orderIds.isEmpty()) ps.executeBatch();
+        }
+    }
+
+    private static void cancelOrders(PreparedStatement ps, List<Cancel> cancels) throws SQLException {
+        try (ps) {
+            for (Cancel cancel : cancels) {
+                ps.setLong(1, cancel.sequence());
+                ps.setString(2, TIMESTAMP.format(cancel.timestamp()));
+                ps.setLong(3, cancel.orderId());
+                ps.addBatch();
+            }
+            if (!cancels.isEmpty()) ps.executeBatch();
+        }
+    }
+}
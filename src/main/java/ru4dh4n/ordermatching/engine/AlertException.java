@@ -0,0 +1,12 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * Thrown out of a wait when the pipeline is shutting down. Stackless and shared, it's only a signal.
+ */
+public final class AlertException extends Exception {
+    public static final AlertException INSTANCE = new AlertException();
+
+    private AlertException() {
+        super("alerted", null, false, false);
+    }
+}
@@ -0,0 +1,70 @@
+package ru4dh4n.ordermatching.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an {@link EventHandler} over everything its barrier lets through, a batch at a time,
+ * and only advances its own sequence once the whole batch has been handled.
+ */
+public final class BatchEventProcessor<E> implements EventProcessor {
+    private static final Logger log = LoggerFactory.getLogger(BatchEventProcessor.class);
+
+    private final String name;
+    private final RingBuffer<E> ringBuffer;
+    private final SequenceBarrier barrier;
+    private final EventHandler<? super E> handler;
+    private final WaitStrategy waitStrategy;
+    private final Sequence sequence = new Sequence();
+    private volatile boolean running = true;
+
+    public BatchEventProcessor(String name, RingBuffer<E> ringBuffer, SequenceBarrier barrier,
+                               EventHandler<? super E> handler, WaitStrategy waitStrategy) {
+        this.name = name;
+        this.ringBuffer = ringBuffer;
+        this.barrier = barrier;
+        this.handler = handler;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override public String getName() { return this.name; }
+    @Override public Sequence getSequence() { return this.sequence; }
+
+    @Override
+    public void halt() {
+        running = false;
+        barrier.alert();
+    }
+
+    @Override
+    public void run() {
+        long nextSequence = sequence.get() + 1;
+
+        while (running) {
+            long availableSequence;
+            try {
+                availableSequence = barrier.waitFor(nextSequence);
+            } catch (AlertException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (availableSequence < nextSequence) continue;
+
+            while (nextSequence <= availableSequence) {
+                try {
+                    handler.onEvent(ringBuffer.get(nextSequence), nextSequence, nextSequence == availableSequence);
+                } catch (Exception e) {
+                    // handlers deal with their own failures, this only keeps the stage alive
+                    log.error("{} failed on sequence {}", name, nextSequence, e);
+                }
+                nextSequence++;
+            }
+
+            sequence.set(availableSequence);
+            waitStrategy.signalAllWhenBlocking();
+        }
+    }
+}
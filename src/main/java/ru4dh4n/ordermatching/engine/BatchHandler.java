@@ -0,0 +1,13 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * A stage that works on a run of slots at once, see {@link GroupCommitProcessor}. Once it returns,
+ * the slots from {@code first} to {@code last} are handed to the stages behind it.
+ */
+@FunctionalInterface
+public interface BatchHandler<E> {
+    void onBatch(RingBuffer<E> ringBuffer, long first, long last) throws Exception;
+
+    // false keeps the next slot in the same run, for slots that have to be handled together
+    default boolean canEndRunAfter(E event) { return true; }
+}
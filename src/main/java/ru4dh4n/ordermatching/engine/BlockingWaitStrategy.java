@@ -0,0 +1,45 @@
+package ru4dh4n.ordermatching.engine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class BlockingWaitStrategy implements WaitStrategy {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progressed = lock.newCondition();
+    // lets signalAllWhenBlocking skip the lock entirely while nobody is parked
+    private volatile int waiters;
+
+    @Override
+    public long waitFor(long sequence, SequenceBarrier barrier) throws AlertException, InterruptedException {
+        long available;
+        while ((available = barrier.dependentSequence()) < sequence) {
+            barrier.checkAlert();
+
+            lock.lock();
+            try {
+                waiters++;
+                // re-check under the lock so a signal between the check and await isn't lost
+                if (barrier.dependentSequence() < sequence && !barrier.isAlerted()) {
+                    progressed.await(1, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                waiters--;
+                lock.unlock();
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+        if (waiters == 0) return;
+
+        lock.lock();
+        try {
+            progressed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru4dh4n.ordermatching.engine;
+
+public final class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public long waitFor(long sequence, SequenceBarrier barrier) throws AlertException {
+        long available;
+        while ((available = barrier.dependentSequence()) < sequence) {
+            barrier.checkAlert();
+            Thread.onSpinWait();
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() { }
+}
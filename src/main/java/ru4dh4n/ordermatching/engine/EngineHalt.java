@@ -0,0 +1,21 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * Set once the journal couldn't be written. The journal is what the books are rebuilt from, so nothing may be
+ * matched or published on top of what it is missing: from then on the pipeline takes no new commands, the shards
+ * stop matching and everything still in the ring is failed, until an operator has dealt with the journal and
+ * restarted.
+ */
+final class EngineHalt {
+    private volatile Throwable cause;
+
+    // only ever called from the journal stage
+    void halt(Throwable cause) {
+        if (this.cause == null) this.cause = cause;
+    }
+
+    boolean isHalted() { return this.cause != null; }
+
+    // null while running
+    Throwable getCause() { return this.cause; }
+}
@@ -0,0 +1,10 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * One stage of the pipeline. Called on the stage's own thread for every slot in order,
+ * {@code endOfBatch} marks the last slot currently available so work can be flushed once per batch.
+ */
+@FunctionalInterface
+public interface EventHandler<E> {
+    void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+}
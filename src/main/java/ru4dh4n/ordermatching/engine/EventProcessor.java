@@ -0,0 +1,10 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * A stage's run loop over the ring, run on its own thread by the pipeline.
+ */
+public interface EventProcessor extends Runnable {
+    String getName();
+    Sequence getSequence();
+    void halt();
+}
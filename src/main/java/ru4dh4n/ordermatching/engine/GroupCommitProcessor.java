@@ -0,0 +1,103 @@
+package ru4dh4n.ordermatching.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Like {@link BatchEventProcessor}, but hands its {@link BatchHandler} whole runs of slots, capped at
+ * {@code maxBatchSize} unless the handler asks to keep slots together, and may linger up to {@code maxDelay} for a run to fill up before handing it over.
+ * The sequence only moves past a run once the handler has returned, so the stages behind never see
+ * a slot before it has been committed. Must sit behind another stage, never first on the ring.
+ */
+public final class GroupCommitProcessor<E> implements EventProcessor {
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitProcessor.class);
+
+    // how often a lingering processor looks for more slots
+    private static final long LINGER_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final String name;
+    private final RingBuffer<E> ringBuffer;
+    private final SequenceBarrier barrier;
+    private final BatchHandler<E> handler;
+    private final WaitStrategy waitStrategy;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Sequence sequence = new Sequence();
+    private volatile boolean running = true;
+
+    public GroupCommitProcessor(String name, RingBuffer<E> ringBuffer, SequenceBarrier barrier,
+                                BatchHandler<E> handler, WaitStrategy waitStrategy,
+                                int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+
+        this.name = name;
+        this.ringBuffer = ringBuffer;
+        this.barrier = barrier;
+        this.handler = handler;
+        this.waitStrategy = waitStrategy;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(Math.max(0, maxDelay));
+    }
+
+    @Override public String getName() { return this.name; }
+    @Override public Sequence getSequence() { return this.sequence; }
+
+    @Override
+    public void halt() {
+        running = false;
+        barrier.alert();
+    }
+
+    @Override
+    public void run() {
+        long nextSequence = sequence.get() + 1;
+
+        while (running) {
+            long availableSequence;
+            try {
+                availableSequence = barrier.waitFor(nextSequence);
+            } catch (AlertException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (availableSequence < nextSequence) continue;
+            if (maxDelayNanos > 0) availableSequence = linger(nextSequence, availableSequence);
+
+            while (nextSequence <= availableSequence) {
+                long last = Math.min(availableSequence, nextSequence + maxBatchSize - 1);
+                while (last < availableSequence && !handler.canEndRunAfter(ringBuffer.get(last))) last++;
+                try {
+                    handler.onBatch(ringBuffer, nextSequence, last);
+                } catch (Exception e) {
+                    // handlers deal with their own failures, this only keeps the stage alive
+                    log.error("{} failed on sequences {}..{}", name, nextSequence, last, e);
+                }
+
+                sequence.set(last);
+                waitStrategy.signalAllWhenBlocking();
+                nextSequence = last + 1;
+            }
+        }
+    }
+
+    // give a short run the chance to grow, up to the batch size or until the delay is used up
+    private long linger(long nextSequence, long availableSequence) {
+        long deadline = System.nanoTime() + maxDelayNanos;
+
+        while (running && availableSequence - nextSequence + 1 < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+
+            LockSupport.parkNanos(Math.min(remaining, LINGER_POLL_NANOS));
+            availableSequence = Math.max(availableSequence, barrier.dependentSequence());
+        }
+
+        return availableSequence;
+    }
+}
@@ -0,0 +1,80 @@
+package ru4dh4n.ordermatching.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru4dh4n.ordermatching.journal.Journal;
+
+/**
+ * Group-commit stage between matching and publish: appends the orders, trades and cancels of a whole run of
+ * slots to the journal and forces them to disk once. Matching never waits on it, only the acks do, since
+ * publish sits behind it. The database is brought up to date from the journal separately.
+ * <p>
+ * If an append or flush fails the engine is halted, see {@link EngineHalt}: that batch and every one after it is
+ * failed without being journaled, and publish tells nobody but the callers.
+ */
+final class JournalStage implements BatchHandler<OrderCommand> {
+    private static final Logger log = LoggerFactory.getLogger(JournalStage.class);
+
+    private final Journal journal;
+    private final EngineHalt halt;
+
+    JournalStage(Journal journal, EngineHalt halt) {
+        this.journal = journal;
+        this.halt = halt;
+    }
+
+    @Override
+    public void onBatch(RingBuffer<OrderCommand> ringBuffer, long first, long last) {
+        Throwable error = halt.getCause();
+        if (error == null) {
+            try {
+                for (long sequence = first; sequence <= last; sequence++) {
+                    append(ringBuffer.get(sequence));
+                }
+                journal.flush();
+                return;
+            } catch (Exception e) {
+                log.error("Failed to journal sequences {}..{}, halting the engine", first, last, e);
+                halt.halt(e);
+                error = e;
+            }
+        }
+
+        for (long sequence = first; sequence <= last; sequence++) {
+            ringBuffer.get(sequence).persistError = error;
+        }
+    }
+
+    // a batch of orders is made durable in one go, never half of it
+    @Override
+    public boolean canEndRunAfter(OrderCommand command) {
+        return !command.batchContinues;
+    }
+
+    private void append(OrderCommand command) throws Exception {
+        if (command.type == OrderCommand.Type.SNAPSHOT) {
+            // everything in front of it in the ring has just been appended, nothing behind it has
+            command.snapshotSequence = journal.getLastSequence();
+            return;
+        }
+        if (command.type == OrderCommand.Type.CANCEL) {
+            if (command.cancelledQuantity >= 0) {
+                command.cancelSequence = journal.appendCancel(command.instrument, command.cancelOrderId, command.cancelledQuantity,
+                        command.scale, command.timestamp);
+            }
+            return;
+        }
+        // offloading and depth subscriptions leave nothing to record
+        if (command.type != OrderCommand.Type.PLACE || command.status != OrderCommand.Status.ACCEPTED) return;
+
+        journal.appendOrder(command.orderId, command.userId, command.instrument, command.side,
+                command.scaledPrice, command.scaledQuantity, command.scale, command.timestamp);
+
+        boolean takerFilled = command.isFilled();
+        for (int i = 0; i < command.fillCount; i++) {
+            command.fillSequences[i] = journal.appendTrade(command.instrument, command.fillMakerOrderIds[i], command.orderId,
+                    command.fillPrices[i], command.fillQuantities[i], command.scale,
+                    command.fillMakerFilled[i], takerFilled && i == command.fillCount - 1, command.timestamp);
+        }
+    }
+}
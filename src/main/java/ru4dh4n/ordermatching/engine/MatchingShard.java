@@ -0,0 +1,114 @@
+package ru4dh4n.ordermatching.engine;
+
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.helper.TradeEvent;
+import ru4dh4n.ordermatching.helper.TradeHandler;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Match stage for one shard. Every instrument is pinned to exactly one shard, so the books for that
+ * instrument are only ever touched by this shard's thread and need no locking. Shards run side by
+ * side on the same ring, each skipping the slots that belong to the others.
+ */
+final class MatchingShard implements EventHandler<OrderCommand>, TradeHandler {
+
+    private final int index;
+    private final OrderBookDirectory orderBooks;
+    private final EngineHalt halt;
+    // held in a field so housekeeping doesn't allocate a lambda per pass
+    private final IntPredicate owned;
+    // the slot being matched, so onTrade can record fills without a capturing lambda
+    private OrderCommand current;
+
+    MatchingShard(int index, int shardCount, OrderBookDirectory orderBooks, EngineHalt halt) {
+        this.index = index;
+        this.orderBooks = orderBooks;
+        this.halt = halt;
+        this.owned = instrument -> ValidateStage.shardOf(instrument, shardCount) == index;
+    }
+
+    @Override
+    public void onEvent(OrderCommand command, long sequence, boolean endOfBatch) {
+        // the journal is missing something, the books mustn't move on from it; the journal stage fails the command
+        if (halt.isHalted()) return;
+
+        // housekeeping isn't for any one instrument, every shard takes part
+        if (command.type == OrderCommand.Type.SNAPSHOT) {
+            command.snapshotParts[index] = orderBooks.snapshot(owned).toArray(new BookSnapshot[0]);
+            return;
+        }
+        if (command.type == OrderCommand.Type.OFFLOAD) {
+            command.offloadedCounts[index] = orderBooks.offloadIdle(command.idleNanos, owned);
+            return;
+        }
+        if (command.status != OrderCommand.Status.ACCEPTED || command.shard != index) return;
+
+        current = command;
+        try {
+            OrderBook orderBook = orderBooks.get(command.instrument);
+            if (command.type == OrderCommand.Type.CANCEL) {
+                cancel(orderBook, command);
+                orderBooks.topOfBook(command.instrument).update(orderBook, 0, 0);
+            } else if (command.type == OrderCommand.Type.DEPTH) {
+                command.depthBids = depthOf(orderBook, Order.Side.BUY);
+                command.depthAsks = depthOf(orderBook, Order.Side.SELL);
+            } else {
+                orderBook.processOrder(command.orderId, command.userId, command.side,
+                        command.scaledPrice, command.scaledQuantity, this);
+                recordLevelChanges(orderBook, command);
+                int last = command.fillCount - 1;
+                orderBooks.topOfBook(command.instrument).update(orderBook,
+                        last < 0 ? 0 : command.fillPrices[last], last < 0 ? 0 : command.fillQuantities[last]);
+            }
+        } catch (RuntimeException e) {
+            command.reject(e);
+        } finally {
+            current = null;
+        }
+    }
+
+    private void cancel(OrderBook orderBook, OrderCommand command) {
+        Order order = orderBook.getOrder(command.cancelOrderId);
+        // someone else's order looks exactly like an unknown one
+        if (order == null || !order.getUserId().equals(command.userId)) return;
+
+        Order.Side side = order.getSide();
+        long price = order.getPrice();
+        command.cancelledQuantity = orderBook.cancelOrder(command.cancelOrderId);
+        command.addLevelChange(side, price, orderBook.getLevelQuantity(side, price));
+    }
+
+    // the makers' levels the order filled at, then its own if it rested; read back from the book rather than worked out
+    private static void recordLevelChanges(OrderBook orderBook, OrderCommand command) {
+        Order.Side makerSide = command.side == Order.Side.BUY ? Order.Side.SELL : Order.Side.BUY;
+        for (int i = 0; i < command.fillCount; i++) {
+            long price = command.fillPrices[i];
+            // fills come best price first, so all of a level's fills are next to each other
+            if (i + 1 < command.fillCount && command.fillPrices[i + 1] == price) continue;
+            command.addLevelChange(makerSide, price, orderBook.getLevelQuantity(makerSide, price));
+        }
+        if (!command.isFilled()) {
+            command.addLevelChange(command.side, command.scaledPrice, orderBook.getLevelQuantity(command.side, command.scaledPrice));
+        }
+    }
+
+    private static long[] depthOf(OrderBook orderBook, Order.Side side) {
+        long[] levels = new long[2 * orderBook.getLevelCount(side)];
+        int[] next = new int[1];
+        orderBook.forEachLevel(side, level -> {
+            levels[next[0]++] = level.getPrice();
+            levels[next[0]++] = level.getTotalQuantity();
+        });
+        return levels;
+    }
+
+    @Override
+    public boolean onTrade(TradeEvent trade) {
+        current.addFill(trade.getMakerOrderId(), trade.getMakerUserId(), trade.getPrice(), trade.getQuantity(),
+                trade.getMakerRemainingQuantity() == trade.getQuantity());
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+package ru4dh4n.ordermatching.engine;
+
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * Every order book the engine knows about, live or parked, indexed by instrument handle. Books for instruments
+ * that have gone quiet are encoded into a compact off-heap buffer and brought back the next time an order
+ * arrives for them; books with nothing resting are dropped altogether. Nothing is ever evicted, so heap follows
+ * the active instruments while no resting order is lost.
+ * <p>
+ * Apart from {@link #put} during recovery, an instrument's entry is only touched by the matching shard that
+ * owns it, so entries need no locking. Shards add entries side by side though, so installing one (which may
+ * grow the array) is synchronized; finding one is a plain array read.
+ * <p>
+ * Each instrument's {@link TopOfBook} sits beside its entry rather than in it, so a parked or dropped book
+ * still shows its last trade.
+ */
+public final class OrderBookDirectory {
+
+    private static final class Entry {
+        OrderBook orderBook;
+        // the parked book while orderBook is null
+        ByteBuffer offloaded;
+        long lastUsedNanos;
+    }
+
+    private final IntFunction<Instrument> instruments;
+    private volatile Entry[] entries = new Entry[64];
+    private volatile TopOfBook[] tops = new TopOfBook[64];
+
+    // usually InstrumentRegistry::getInstrument, null for an unknown handle
+    public OrderBookDirectory(IntFunction<Instrument> instruments) {
+        this.instruments = instruments;
+    }
+
+    /**
+     * The live book for the instrument, rehydrating or creating it as needed.
+     * @throws IllegalArgumentException if the instrument isn't known
+     */
+    public OrderBook get(int instrument) {
+        Entry entry = entry(instrument);
+        if (entry == null) {
+            entry = new Entry();
+            entry.orderBook = new OrderBook(instrument(instrument));
+            install(instrument, entry);
+        } else if (entry.orderBook == null) {
+            entry.orderBook = BookSnapshot.decode(entry.offloaded).restore(instrument(instrument));
+            entry.offloaded = null;
+        }
+
+        entry.lastUsedNanos = System.nanoTime();
+        return entry.orderBook;
+    }
+
+    private Entry entry(int instrument) {
+        Entry[] current = entries;
+        return instrument >= 0 && instrument < current.length ? current[instrument] : null;
+    }
+
+    private Instrument instrument(int instrument) {
+        Instrument found = instruments.apply(instrument);
+        if (found == null) throw new IllegalArgumentException("Unknown instrument " + instrument);
+        return found;
+    }
+
+    private synchronized void install(int instrument, Entry entry) {
+        Entry[] current = entries;
+        if (instrument >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, instrument + 1));
+        }
+        current[instrument] = entry;
+        entries = current;
+    }
+
+    // only before the shards start
+    public void put(int instrument, OrderBook orderBook) {
+        Entry entry = new Entry();
+        entry.orderBook = orderBook;
+        entry.lastUsedNanos = System.nanoTime();
+        install(instrument, entry);
+        topOfBook(instrument).update(orderBook, 0, 0);
+    }
+
+    // for the owning shard to write to, see TopOfBook#update
+    TopOfBook topOfBook(int instrument) {
+        TopOfBook[] current = tops;
+        if (instrument < current.length && current[instrument] != null) return current[instrument];
+        return installTopOfBook(instrument);
+    }
+
+    private synchronized TopOfBook installTopOfBook(int instrument) {
+        TopOfBook[] current = tops;
+        if (instrument >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, instrument + 1));
+        }
+        if (current[instrument] == null) current[instrument] = new TopOfBook();
+        tops = current;
+        return current[instrument];
+    }
+
+    /**
+     * The instrument's best bid, best ask and last trade, from any thread and without waiting on its shard.
+     * All zero for an instrument that has never had an order.
+     */
+    public TopOfBook.Quote quote(int instrument) {
+        TopOfBook[] current = tops;
+        TopOfBook top = instrument >= 0 && instrument < current.length ? current[instrument] : null;
+        return top == null ? TopOfBook.EMPTY : top.read();
+    }
+
+    /**
+     * Parks every owned book that hasn't been used for {@code idleNanos}.
+     * @return how many books were parked or dropped
+     */
+    public int offloadIdle(long idleNanos, IntPredicate owned) {
+        long now = System.nanoTime();
+        int offloaded = 0;
+
+        Entry[] current = entries;
+        for (int instrument = 0; instrument < current.length; instrument++) {
+            Entry entry = current[instrument];
+            if (entry == null || !owned.test(instrument)) continue;
+            if (entry.orderBook == null || now - entry.lastUsedNanos < idleNanos) continue;
+
+            if (entry.orderBook.getRestingOrderCount() == 0) {
+                install(instrument, null);
+            } else {
+                entry.offloaded = BookSnapshot.of(entry.orderBook).encode();
+                entry.orderBook = null;
+            }
+            offloaded++;
+        }
+        return offloaded;
+    }
+
+    /**
+     * Copies every owned book with resting orders, parked ones included.
+     */
+    public List<BookSnapshot> snapshot(IntPredicate owned) {
+        List<BookSnapshot> books = new ArrayList<>();
+        Entry[] current = entries;
+        for (int instrument = 0; instrument < current.length; instrument++) {
+            Entry entry = current[instrument];
+            if (entry == null || !owned.test(instrument)) continue;
+
+            if (entry.orderBook == null) {
+                books.add(BookSnapshot.decode(entry.offloaded));
+            } else if (entry.orderBook.getRestingOrderCount() > 0) {
+                books.add(BookSnapshot.of(entry.orderBook));
+            }
+        }
+        return books;
+    }
+
+    public int size() {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry != null) count++;
+        }
+        return count;
+    }
+
+    // from outside the shards this is only a rough figure
+    public int offloadedCount() {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry != null && entry.orderBook == null) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,171 @@
+package ru4dh4n.ordermatching.engine;
+
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderDetails;
+import ru4dh4n.ordermatching.services.MarketDataSubscriber;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+import ru4dh4n.ordermatching.snapshot.SnapshotStore;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A mutable slot in the ingestion ring. Each stage fills in its own block of fields and only
+ * reads the ones written by the stages in front of it; the publish stage clears the slot for reuse.
+ */
+public final class OrderCommand implements OrderDetails {
+    public enum Type { PLACE, CANCEL, SNAPSHOT, OFFLOAD, DEPTH }
+    public enum Status { PENDING, ACCEPTED, REJECTED }
+
+    // written by the producer
+    Type type;
+    String userId;
+    // handle from InstrumentRegistry, resolved at the edge
+    int instrument = InstrumentRegistry.UNKNOWN;
+    Order.Side side;
+    // in the instrument's scale, converted at the edge
+    long scaledPrice;
+    long scaledQuantity;
+    CompletableFuture<Optional<Long>> ack;
+    // true on every order of a batch but the last, see OrderPipeline#submitAll
+    boolean batchContinues;
+    // cancels only
+    long cancelOrderId;
+    CompletableFuture<Optional<Long>> cancelAck;
+    // snapshots only, one entry per shard
+    BookSnapshot[][] snapshotParts;
+    CompletableFuture<SnapshotStore.Snapshot> snapshotAck;
+    // offloading only, counts are one entry per shard
+    long idleNanos;
+    int[] offloadedCounts;
+    CompletableFuture<Integer> offloadAck;
+    // depth subscriptions only, joins the feed once its snapshot has been taken
+    MarketDataSubscriber depthSubscriber;
+
+    // written by the validate stage
+    Status status = Status.PENDING;
+    Throwable error;
+    String instrumentId;
+    int scale;
+    int shard;
+
+    // written by the sequence stage
+    long orderId;
+    // epoch millis, what the order or cancel and its fills are recorded and published as having happened at
+    long timestamp;
+
+    // written by the match stage for a cancel, -1 when there was nothing to cancel
+    long cancelledQuantity = -1;
+
+    // written by the match stage, grown on demand and then kept for the life of the slot
+    int fillCount;
+    long[] fillMakerOrderIds = new long[8];
+    String[] fillMakerUserIds = new String[8];
+    long[] fillPrices = new long[8];
+    long[] fillQuantities = new long[8];
+    // whether the fill left the maker with nothing open
+    boolean[] fillMakerFilled = new boolean[8];
+    // written by the journal stage, the journal sequence of each fill, which is also its update sequence for both orders
+    long[] fillSequences = new long[8];
+    // every level the command changed and what is left at it, for the depth feed
+    int levelChangeCount;
+    Order.Side[] levelChangeSides = new Order.Side[8];
+    long[] levelChangePrices = new long[8];
+    long[] levelChangeQuantities = new long[8];
+    // written by the match stage for a depth subscription: price, quantity pairs, best first
+    long[] depthBids;
+    long[] depthAsks;
+
+    // written by the journal stage when the command could not be made durable, see EngineHalt
+    Throwable persistError;
+    // written by the journal stage for a snapshot, the last journal record written before it
+    long snapshotSequence;
+    // written by the journal stage for a cancel, 0 when nothing was written
+    long cancelSequence;
+
+    @Override public long getOrderId() { return this.orderId; }
+    @Override public String getUserId() { return this.userId; }
+    @Override public String getInstrumentId() { return this.instrumentId; }
+    @Override public Order.Side getSide() { return this.side; }
+    @Override public long getPrice() { return this.scaledPrice; }
+    @Override public long getTotalQuantity() { return this.scaledQuantity; }
+    @Override public int getScale() { return this.scale; }
+
+    void reject(Throwable error) {
+        this.status = Status.REJECTED;
+        this.error = error;
+    }
+
+    boolean isFilled() {
+        long filled = 0;
+        for (int i = 0; i < fillCount; i++) {
+            filled += fillQuantities[i];
+        }
+        return filled == scaledQuantity;
+    }
+
+    void addFill(long makerOrderId, String makerUserId, long price, long quantity, boolean makerFilled) {
+        if (fillCount == fillMakerOrderIds.length) {
+            int capacity = fillCount * 2;
+            fillMakerOrderIds = Arrays.copyOf(fillMakerOrderIds, capacity);
+            fillMakerUserIds = Arrays.copyOf(fillMakerUserIds, capacity);
+            fillPrices = Arrays.copyOf(fillPrices, capacity);
+            fillQuantities = Arrays.copyOf(fillQuantities, capacity);
+            fillMakerFilled = Arrays.copyOf(fillMakerFilled, capacity);
+            fillSequences = Arrays.copyOf(fillSequences, capacity);
+        }
+
+        fillMakerOrderIds[fillCount] = makerOrderId;
+        fillMakerUserIds[fillCount] = makerUserId;
+        fillPrices[fillCount] = price;
+        fillQuantities[fillCount] = quantity;
+        fillMakerFilled[fillCount] = makerFilled;
+        fillCount++;
+    }
+
+    void addLevelChange(Order.Side side, long price, long quantity) {
+        if (levelChangeCount == levelChangePrices.length) {
+            int capacity = levelChangeCount * 2;
+            levelChangeSides = Arrays.copyOf(levelChangeSides, capacity);
+            levelChangePrices = Arrays.copyOf(levelChangePrices, capacity);
+            levelChangeQuantities = Arrays.copyOf(levelChangeQuantities, capacity);
+        }
+
+        levelChangeSides[levelChangeCount] = side;
+        levelChangePrices[levelChangeCount] = price;
+        levelChangeQuantities[levelChangeCount] = quantity;
+        levelChangeCount++;
+    }
+
+    void clear() {
+        type = null;
+        userId = null;
+        instrument = InstrumentRegistry.UNKNOWN;
+        instrumentId = null;
+        side = null;
+        scaledPrice = 0;
+        scaledQuantity = 0;
+        ack = null;
+        batchContinues = false;
+        cancelAck = null;
+        snapshotParts = null;
+        snapshotAck = null;
+        offloadedCounts = null;
+        offloadAck = null;
+        depthSubscriber = null;
+        depthBids = null;
+        depthAsks = null;
+        status = Status.PENDING;
+        error = null;
+        orderId = 0;
+        timestamp = 0;
+        cancelledQuantity = -1;
+        cancelSequence = 0;
+        Arrays.fill(fillMakerUserIds, 0, fillCount, null);
+        fillCount = 0;
+        levelChangeCount = 0;
+        persistError = null;
+    }
+}
@@ -0,0 +1,279 @@
+package ru4dh4n.ordermatching.engine;
+
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.journal.Journal;
+import ru4dh4n.ordermatching.services.CandleAggregator;
+import ru4dh4n.ordermatching.services.DepthBroadcaster;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster;
+import ru4dh4n.ordermatching.services.MarketDataSubscriber;
+import ru4dh4n.ordermatching.services.TradePropagationService;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+import ru4dh4n.ordermatching.snapshot.SnapshotStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Order ingestion: producers drop commands into a pre-allocated ring and five stages run over it
+ * in order, each on its own thread:
+ * <pre>
+ *   validate -> sequence -> match (one processor per shard, in parallel) -> journal -> publish
+ * </pre>
+ * Journal group-commits whatever matching has finished, so the disk is off the matching path
+ * but callers are still only acked once their order is durable. If the journal can't be written the
+ * pipeline halts for good, see {@link EngineHalt}, and everything submitted from then on fails.
+ */
+public final class OrderPipeline {
+
+    // one order of a batch, see submitAll; price and quantity are in the instrument's scale
+    public record NewOrder(int instrument, Order.Side side, long scaledPrice, long scaledQuantity) { }
+
+    private final RingBuffer<OrderCommand> ringBuffer;
+    private final InstrumentRegistry instrumentRegistry;
+    private final DepthBroadcaster depthBroadcaster;
+    private final int shardCount;
+    private final EngineHalt halt = new EngineHalt();
+    private final List<EventProcessor> processors = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    public OrderPipeline(int ringSize, WaitStrategy waitStrategy, int shardCount,
+                         int journalBatchSize, long journalMaxDelayMillis, long lastOrderId,
+                         InstrumentRegistry instrumentRegistry, Journal journal,
+                         TradePropagationService tradePropagationService, MarketDataBroadcaster marketDataBroadcaster,
+                         DepthBroadcaster depthBroadcaster, CandleAggregator candleAggregator, OrderBookDirectory orderBooks) {
+        this.shardCount = shardCount;
+        this.instrumentRegistry = instrumentRegistry;
+        this.depthBroadcaster = depthBroadcaster;
+        this.ringBuffer = new RingBuffer<>(ringSize, OrderCommand::new, waitStrategy);
+
+        BatchEventProcessor<OrderCommand> validate = new BatchEventProcessor<>("validate", ringBuffer,
+                ringBuffer.newBarrier(), new ValidateStage(instrumentRegistry, shardCount), waitStrategy);
+
+        BatchEventProcessor<OrderCommand> sequence = new BatchEventProcessor<>("sequence", ringBuffer,
+                ringBuffer.newBarrier(validate.getSequence()), new SequenceStage(lastOrderId), waitStrategy);
+
+        SequenceBarrier afterSequence = ringBuffer.newBarrier(sequence.getSequence());
+        Sequence[] shardSequences = new Sequence[shardCount];
+        List<BatchEventProcessor<OrderCommand>> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            BatchEventProcessor<OrderCommand> shard = new BatchEventProcessor<>("matching-" + i, ringBuffer,
+                    afterSequence, new MatchingShard(i, shardCount, orderBooks, halt), waitStrategy);
+            shardSequences[i] = shard.getSequence();
+            shards.add(shard);
+        }
+
+        GroupCommitProcessor<OrderCommand> journaling = new GroupCommitProcessor<>("journal", ringBuffer,
+                ringBuffer.newBarrier(shardSequences), new JournalStage(journal, halt), waitStrategy,
+                journalBatchSize, journalMaxDelayMillis, TimeUnit.MILLISECONDS);
+
+        PublishStage publishStage = new PublishStage(tradePropagationService, marketDataBroadcaster, depthBroadcaster, candleAggregator);
+        BatchEventProcessor<OrderCommand> publish = new BatchEventProcessor<>("publish", ringBuffer,
+                ringBuffer.newBarrier(journaling.getSequence()), publishStage, waitStrategy);
+
+        ringBuffer.setGatingSequences(publish.getSequence());
+
+        processors.add(validate);
+        processors.add(sequence);
+        processors.addAll(shards);
+        processors.add(journaling);
+        processors.add(publish);
+    }
+
+    public void start() {
+        for (EventProcessor processor : processors) {
+            Thread thread = new Thread(processor, processor.getName());
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    // true once the journal has failed, nothing is taken after that
+    public boolean isHalted() { return halt.isHalted(); }
+
+    public void shutdown() {
+        // halting wakes every stage, including ones sharing a barrier
+        processors.forEach(EventProcessor::halt);
+        for (Thread thread : threads) {
+            try {
+                thread.join(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claims a slot and publishes the order into it. Safe to call from any number of threads.
+     * The instrument is its handle from InstrumentRegistry; an unknown one completes empty.
+     * Price and quantity are already in the instrument's scale.
+     */
+    public CompletableFuture<Optional<Long>> submit(String userId, int instrument, Order.Side side,
+                                                    long scaledPrice, long scaledQuantity) {
+        if (halt.isHalted()) return halted();
+        CompletableFuture<Optional<Long>> ack = new CompletableFuture<>();
+
+        long sequence = ringBuffer.next();
+        try {
+            OrderCommand command = ringBuffer.get(sequence);
+            command.type = OrderCommand.Type.PLACE;
+            command.userId = userId;
+            command.instrument = instrument;
+            command.side = side;
+            command.scaledPrice = scaledPrice;
+            command.scaledQuantity = scaledQuantity;
+            command.ack = ack;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+
+        return ack;
+    }
+
+    /**
+     * Places a batch of orders: every order's instrument, price and quantity are checked up front, and if any of them
+     * fails that none are placed. The rest go into one contiguous run of slots, so they are matched back to back with
+     * nothing from other producers in between and made durable by the same journal flush.
+     * <p>
+     * Past the up-front checks it isn't all or nothing. An order its book turns away when it gets there, like one
+     * that would rest too far from the rest of a ladder, fails its own ack and the others are still placed; a batch
+     * can span shards, so no one shard could hold back the others.
+     *
+     * @return one ack per order, in the order given
+     * @throws IllegalArgumentException if any order fails the up-front checks or the batch doesn't fit in the ring
+     */
+    public List<CompletableFuture<Optional<Long>>> submitAll(String userId, List<NewOrder> orders) {
+        for (NewOrder order : orders) {
+            Instrument instrument = instrumentRegistry.getInstrument(order.instrument());
+            if (instrument == null) throw new IllegalArgumentException("Unknown instrument " + order.instrument());
+            ValidateStage.checkPrice(instrument, order.scaledPrice());
+            ValidateStage.checkQuantity(order.scaledQuantity());
+        }
+        if (orders.isEmpty()) return List.of();
+        if (halt.isHalted()) return orders.stream().map(order -> this.<Optional<Long>>halted()).toList();
+        if (orders.size() > ringBuffer.getBufferSize()) {
+            throw new IllegalArgumentException("A batch can't have more than " + ringBuffer.getBufferSize() + " orders");
+        }
+
+        List<CompletableFuture<Optional<Long>>> acks = new ArrayList<>(orders.size());
+        long last = ringBuffer.next(orders.size());
+        long first = last - orders.size() + 1;
+        try {
+            for (int i = 0; i < orders.size(); i++) {
+                NewOrder order = orders.get(i);
+                CompletableFuture<Optional<Long>> ack = new CompletableFuture<>();
+
+                OrderCommand command = ringBuffer.get(first + i);
+                command.type = OrderCommand.Type.PLACE;
+                command.userId = userId;
+                command.instrument = order.instrument();
+                command.side = order.side();
+                command.scaledPrice = order.scaledPrice();
+                command.scaledQuantity = order.scaledQuantity();
+                command.ack = ack;
+                command.batchContinues = i < orders.size() - 1;
+                acks.add(ack);
+            }
+        } finally {
+            ringBuffer.publish(first, last);
+        }
+
+        return acks;
+    }
+
+    /**
+     * Claims a slot and publishes a cancel into it. Completes with what was still open,
+     * in the instrument's scale, or empty if the user has no such order resting on that instrument.
+     */
+    public CompletableFuture<Optional<Long>> cancel(String userId, int instrument, long orderId) {
+        if (halt.isHalted()) return halted();
+        CompletableFuture<Optional<Long>> ack = new CompletableFuture<>();
+
+        long sequence = ringBuffer.next();
+        try {
+            OrderCommand command = ringBuffer.get(sequence);
+            command.type = OrderCommand.Type.CANCEL;
+            command.userId = userId;
+            command.instrument = instrument;
+            command.cancelOrderId = orderId;
+            command.cancelAck = ack;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+
+        return ack;
+    }
+
+    /**
+     * Publishes a snapshot marker. Every shard copies its books when the marker reaches it, so the snapshot
+     * matches the journal exactly up to the sequence it completes with; writing it out is up to the caller.
+     */
+    public CompletableFuture<SnapshotStore.Snapshot> snapshot() {
+        if (halt.isHalted()) return halted();
+        CompletableFuture<SnapshotStore.Snapshot> ack = new CompletableFuture<>();
+
+        long sequence = ringBuffer.next();
+        try {
+            OrderCommand command = ringBuffer.get(sequence);
+            command.type = OrderCommand.Type.SNAPSHOT;
+            command.snapshotParts = new BookSnapshot[shardCount][];
+            command.snapshotAck = ack;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+
+        return ack;
+    }
+
+    /**
+     * Has every shard park the books it owns that haven't been used for {@code idleNanos}.
+     * Completes with how many were parked or dropped.
+     */
+    public CompletableFuture<Integer> offloadIdleBooks(long idleNanos) {
+        if (halt.isHalted()) return halted();
+        CompletableFuture<Integer> ack = new CompletableFuture<>();
+
+        long sequence = ringBuffer.next();
+        try {
+            OrderCommand command = ringBuffer.get(sequence);
+            command.type = OrderCommand.Type.OFFLOAD;
+            command.idleNanos = idleNanos;
+            command.offloadedCounts = new int[shardCount];
+            command.offloadAck = ack;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+
+        return ack;
+    }
+
+    /**
+     * Has the instrument's shard copy its price levels for a new depth subscriber, which joins the feed once
+     * the copy reaches the publish stage; see {@link DepthBroadcaster#join}.
+     */
+    public void subscribeToDepth(int instrument, MarketDataSubscriber subscriber) {
+        if (halt.isHalted()) {
+            depthBroadcaster.reject(subscriber);
+            return;
+        }
+        long sequence = ringBuffer.next();
+        try {
+            OrderCommand command = ringBuffer.get(sequence);
+            command.type = OrderCommand.Type.DEPTH;
+            command.instrument = instrument;
+            command.depthSubscriber = subscriber;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+    }
+
+    private <T> CompletableFuture<T> halted() {
+        return CompletableFuture.failedFuture(new IllegalStateException("Order entry is halted, the journal failed", halt.getCause()));
+    }
+}
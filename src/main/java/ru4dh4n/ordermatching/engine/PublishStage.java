@@ -0,0 +1,203 @@
+package ru4dh4n.ordermatching.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru4dh4n.ordermatching.helper.ObjectPool;
+import ru4dh4n.ordermatching.helper.Trade;
+import ru4dh4n.ordermatching.services.CandleAggregator;
+import ru4dh4n.ordermatching.services.DepthBroadcaster;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster;
+import ru4dh4n.ordermatching.services.TradePropagationService;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+import ru4dh4n.ordermatching.snapshot.SnapshotStore;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Last stage: pushes the batch's trades and cancels to subscribers and acks the callers. It runs behind
+ * the journal stage, so nothing is acked before it is durable, and nothing that wasn't made durable is published
+ * at all: its callers are failed and nobody else hears of it. Slots are cleared here, which is what lets producers
+ * reuse them.
+ */
+final class PublishStage implements EventHandler<OrderCommand> {
+    private static final Logger log = LoggerFactory.getLogger(PublishStage.class);
+
+    private final TradePropagationService tradePropagationService;
+    private final MarketDataBroadcaster marketDataBroadcaster;
+    private final DepthBroadcaster depthBroadcaster;
+    private final CandleAggregator candleAggregator;
+    private final List<OrderCommand> batch = new ArrayList<>();
+    private final List<Trade> trades = new ArrayList<>();
+    // where each order's fills start in trades, they're next to each other
+    private int[] sweepStarts = new int[64];
+    private int sweepCount;
+    // the batch's cancels, grown on demand and then kept, so a batch doesn't box anything
+    private long[] cancelledOrderIds = new long[64];
+    private long[] cancelSequences = new long[64];
+    private long[] cancelTimestamps = new long[64];
+    private String[] cancelUserIds = new String[64];
+    private int cancelCount;
+    // trades are only referenced until the end of the batch, so they're recycled
+    private final ObjectPool<Trade> tradePool = new ObjectPool<>(Trade::new, 1 << 14);
+
+    PublishStage(TradePropagationService tradePropagationService, MarketDataBroadcaster marketDataBroadcaster,
+                 DepthBroadcaster depthBroadcaster, CandleAggregator candleAggregator) {
+        this.tradePropagationService = tradePropagationService;
+        this.marketDataBroadcaster = marketDataBroadcaster;
+        this.depthBroadcaster = depthBroadcaster;
+        this.candleAggregator = candleAggregator;
+    }
+
+    @Override
+    public void onEvent(OrderCommand command, long sequence, boolean endOfBatch) {
+        batch.add(command);
+
+        // the engine halted on it, see EngineHalt
+        if (command.persistError != null) {
+            if (command.type == OrderCommand.Type.DEPTH) depthBroadcaster.reject(command.depthSubscriber);
+            if (endOfBatch) flush();
+            return;
+        }
+
+        // in ring order, so a depth subscriber joins between the changes its snapshot has and the ones it doesn't
+        for (int i = 0; i < command.levelChangeCount; i++) {
+            depthBroadcaster.onLevelChange(command.instrument, command.levelChangeSides[i],
+                    command.levelChangePrices[i], command.levelChangeQuantities[i]);
+        }
+
+        if (command.type == OrderCommand.Type.DEPTH) {
+            if (command.status == OrderCommand.Status.ACCEPTED) {
+                depthBroadcaster.join(command.instrument, command.instrumentId, command.scale, command.depthSubscriber,
+                        command.depthBids, command.depthAsks);
+            } else {
+                depthBroadcaster.reject(command.depthSubscriber);
+            }
+        } else if (command.type == OrderCommand.Type.CANCEL) {
+            if (command.cancelledQuantity >= 0) addCancel(command);
+        } else if (command.status == OrderCommand.Status.ACCEPTED) {
+            boolean takerFilled = command.fillCount > 0 && command.isFilled();
+            if (command.fillCount > 0) addSweep(trades.size());
+            // the same time the journal has them at, so a catch-up sends them exactly as they went out live
+            Instant timestamp = command.fillCount > 0 ? Instant.ofEpochMilli(command.timestamp) : null;
+            for (int i = 0; i < command.fillCount; i++) {
+                Trade trade = tradePool.acquire().set(command.instrumentId, command.fillMakerOrderIds[i], command.orderId,
+                        command.fillPrices[i], command.fillQuantities[i], command.scale, timestamp);
+                trade.setSequence(command.fillSequences[i]);
+                trade.setParties(command.fillMakerUserIds[i], command.fillMakerFilled[i],
+                        command.userId, takerFilled && i == command.fillCount - 1);
+                trades.add(trade);
+                // only queues the message for each subscriber, so it doesn't wait for the end of the batch
+                marketDataBroadcaster.onNewTrade(command.instrument, trade);
+                candleAggregator.onNewTrade(command.instrument, trade);
+            }
+        }
+
+        if (endOfBatch) flush();
+    }
+
+    private void flush() {
+        depthBroadcaster.endOfBatch();
+
+        try {
+            for (int i = 0; i < sweepCount; i++) {
+                int end = i + 1 < sweepCount ? sweepStarts[i + 1] : trades.size();
+                tradePropagationService.propagate(trades.subList(sweepStarts[i], end));
+            }
+            for (int i = 0; i < cancelCount; i++) {
+                tradePropagationService.propagateCancel(cancelUserIds[i], cancelledOrderIds[i], cancelSequences[i],
+                        cancelTimestamps[i]);
+            }
+        } catch (Exception e) {
+            log.error("Failed to propagate batch", e);
+        }
+
+        for (OrderCommand command : batch) {
+            if (command.persistError != null) {
+                fail(command);
+            } else if (command.type == OrderCommand.Type.CANCEL) {
+                completeCancel(command);
+            } else if (command.type == OrderCommand.Type.SNAPSHOT) {
+                completeSnapshot(command);
+            } else if (command.type == OrderCommand.Type.OFFLOAD) {
+                command.offloadAck.complete(Arrays.stream(command.offloadedCounts).sum());
+            } else if (command.type == OrderCommand.Type.DEPTH) {
+                // already joined (or turned away) as it went past
+            } else if (command.status == OrderCommand.Status.ACCEPTED) {
+                command.ack.complete(Optional.of(command.orderId));
+            } else if (command.error != null) {
+                command.ack.completeExceptionally(command.error);
+            } else {
+                command.ack.complete(Optional.empty());
+            }
+            command.clear();
+        }
+
+        batch.clear();
+        trades.forEach(tradePool::release);
+        trades.clear();
+        sweepCount = 0;
+        Arrays.fill(cancelUserIds, 0, cancelCount, null);
+        cancelCount = 0;
+    }
+
+    private void addSweep(int start) {
+        if (sweepCount == sweepStarts.length) sweepStarts = Arrays.copyOf(sweepStarts, sweepCount * 2);
+        sweepStarts[sweepCount++] = start;
+    }
+
+    private void addCancel(OrderCommand command) {
+        if (cancelCount == cancelledOrderIds.length) {
+            int capacity = cancelCount * 2;
+            cancelledOrderIds = Arrays.copyOf(cancelledOrderIds, capacity);
+            cancelSequences = Arrays.copyOf(cancelSequences, capacity);
+            cancelTimestamps = Arrays.copyOf(cancelTimestamps, capacity);
+            cancelUserIds = Arrays.copyOf(cancelUserIds, capacity);
+        }
+
+        cancelledOrderIds[cancelCount] = command.cancelOrderId;
+        cancelSequences[cancelCount] = command.cancelSequence;
+        cancelTimestamps[cancelCount] = command.timestamp;
+        cancelUserIds[cancelCount] = command.userId;
+        cancelCount++;
+    }
+
+    // whatever the command was, its caller is told it failed
+    private static void fail(OrderCommand command) {
+        switch (command.type) {
+            case PLACE -> command.ack.completeExceptionally(command.persistError);
+            case CANCEL -> command.cancelAck.completeExceptionally(command.persistError);
+            case SNAPSHOT -> command.snapshotAck.completeExceptionally(command.persistError);
+            case OFFLOAD -> command.offloadAck.completeExceptionally(command.persistError);
+            case DEPTH -> {
+                // already turned away as it went past
+            }
+        }
+    }
+
+    private static void completeSnapshot(OrderCommand command) {
+        List<BookSnapshot> books = new ArrayList<>();
+        for (BookSnapshot[] part : command.snapshotParts) {
+            if (part == null) {
+                command.snapshotAck.completeExceptionally(new IllegalStateException("A shard failed to take its snapshot"));
+                return;
+            }
+            books.addAll(Arrays.asList(part));
+        }
+        command.snapshotAck.complete(new SnapshotStore.Snapshot(command.snapshotSequence, books));
+    }
+
+    private static void completeCancel(OrderCommand command) {
+        if (command.cancelledQuantity >= 0) {
+            command.cancelAck.complete(Optional.of(command.cancelledQuantity));
+        } else if (command.error != null) {
+            command.cancelAck.completeExceptionally(command.error);
+        } else {
+            command.cancelAck.complete(Optional.empty());
+        }
+        command.clear();
+    }
+}
@@ -0,0 +1,125 @@
+package ru4dh4n.ordermatching.engine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Pre-allocated ring of mutable slots shared by any number of producers and a chain of stages.
+ * <p>
+ * Producers claim a sequence with a CAS on the cursor, fill the slot in place and publish it; no
+ * locks and no allocation. Because claims can be published out of order, each slot has an
+ * availability flag holding the lap it was last published on.
+ */
+public final class RingBuffer<E> {
+
+    private static final VarHandle AVAILABLE = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final Object[] entries;
+    private final int bufferSize;
+    private final int mask;
+    private final int indexShift;
+    private final int[] availableBuffer;
+
+    private final WaitStrategy waitStrategy;
+    private final Sequence cursor = new Sequence();
+    private final Sequence gatingSequenceCache = new Sequence();
+    // the last stage's sequences, producers may not lap them
+    private volatile Sequence[] gatingSequences = new Sequence[0];
+
+    public RingBuffer(int bufferSize, Supplier<E> factory, WaitStrategy waitStrategy) {
+        if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("Ring buffer size must be a power of 2, got " + bufferSize);
+        }
+
+        this.bufferSize = bufferSize;
+        this.mask = bufferSize - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        this.waitStrategy = waitStrategy;
+
+        this.entries = new Object[bufferSize];
+        this.availableBuffer = new int[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            entries[i] = factory.get();
+            availableBuffer[i] = -1;
+        }
+    }
+
+    public int getBufferSize() { return this.bufferSize; }
+    public long getCursor() { return this.cursor.get(); }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    public void setGatingSequences(Sequence... sequences) {
+        this.gatingSequences = sequences;
+    }
+
+    public SequenceBarrier newBarrier(Sequence... dependents) {
+        return new SequenceBarrier(this, waitStrategy, dependents);
+    }
+
+    /**
+     * Claims the next slot, parking briefly while the ring is full.
+     */
+    public long next() {
+        return next(1);
+    }
+
+    /**
+     * Claims the next {@code n} slots as one contiguous run.
+     * @return the last of them
+     */
+    public long next(int n) {
+        if (n < 1 || n > bufferSize) throw new IllegalArgumentException("Can't claim " + n + " slots of " + bufferSize);
+
+        while (true) {
+            long current = cursor.get();
+            long next = current + n;
+
+            long wrapPoint = next - bufferSize;
+            long cachedGatingSequence = gatingSequenceCache.get();
+
+            if (wrapPoint > cachedGatingSequence || cachedGatingSequence > current) {
+                long gatingSequence = Sequence.minimum(gatingSequences, current);
+                if (wrapPoint > gatingSequence) {
+                    LockSupport.parkNanos(1);
+                    continue;
+                }
+                gatingSequenceCache.set(gatingSequence);
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    public void publish(long sequence) {
+        AVAILABLE.setRelease(availableBuffer, (int) sequence & mask, (int) (sequence >>> indexShift));
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    /**
+     * Publishes a claimed run back to front. Readers stop at the first slot that isn't published yet,
+     * so the whole run becomes visible to them at once.
+     */
+    public void publish(long first, long last) {
+        for (long sequence = last; sequence >= first; sequence--) {
+            AVAILABLE.setRelease(availableBuffer, (int) sequence & mask, (int) (sequence >>> indexShift));
+        }
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    public boolean isAvailable(long sequence) {
+        return (int) AVAILABLE.getAcquire(availableBuffer, (int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    public long getHighestPublishedSequence(long lowerBound, long availableSequence) {
+        for (long sequence = lowerBound; sequence <= availableSequence; sequence++) {
+            if (!isAvailable(sequence)) return sequence - 1;
+        }
+        return availableSequence;
+    }
+}
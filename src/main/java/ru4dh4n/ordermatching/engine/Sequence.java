@@ -0,0 +1,50 @@
+package ru4dh4n.ordermatching.engine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A progress counter for the ring buffer, either the producers' cursor or how far a stage has got.
+ * Padded so two hot sequences don't end up sharing a cache line.
+ */
+public final class Sequence {
+    public static final long INITIAL_VALUE = -1L;
+
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(Sequence.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings("unused") private long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long value;
+    @SuppressWarnings("unused") private long p9, p10, p11, p12, p13, p14, p15;
+
+    public Sequence() {
+        this(INITIAL_VALUE);
+    }
+
+    public Sequence(long initialValue) {
+        VALUE.setRelease(this, initialValue);
+    }
+
+    public long get() { return this.value; }
+
+    public void set(long value) { VALUE.setRelease(this, value); }
+
+    public boolean compareAndSet(long expected, long value) { return VALUE.compareAndSet(this, expected, value); }
+
+    public static long minimum(Sequence[] sequences, long minimum) {
+        for (Sequence sequence : sequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+
+    @Override
+    public String toString() { return Long.toString(get()); }
+}
@@ -0,0 +1,47 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * What a stage waits on: the producers' cursor for the first stage, otherwise the stages in front of it.
+ */
+public final class SequenceBarrier {
+    private final RingBuffer<?> ringBuffer;
+    private final WaitStrategy waitStrategy;
+    private final Sequence[] dependents;
+    private volatile boolean alerted;
+
+    SequenceBarrier(RingBuffer<?> ringBuffer, WaitStrategy waitStrategy, Sequence[] dependents) {
+        this.ringBuffer = ringBuffer;
+        this.waitStrategy = waitStrategy;
+        this.dependents = dependents;
+    }
+
+    /**
+     * @return the highest sequence that is safe to process, which may be below {@code sequence}
+     * when a producer has claimed a slot but not published it yet
+     */
+    public long waitFor(long sequence) throws AlertException, InterruptedException {
+        checkAlert();
+
+        long available = waitStrategy.waitFor(sequence, this);
+        if (dependents.length > 0) return available;
+
+        // producers claim out of order, only hand out the contiguous published run
+        return ringBuffer.getHighestPublishedSequence(sequence, available);
+    }
+
+    long dependentSequence() {
+        if (dependents.length == 0) return ringBuffer.getCursor();
+        return Sequence.minimum(dependents, Long.MAX_VALUE);
+    }
+
+    public boolean isAlerted() { return this.alerted; }
+
+    public void alert() {
+        alerted = true;
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    public void checkAlert() throws AlertException {
+        if (alerted) throw AlertException.INSTANCE;
+    }
+}
@@ -0,0 +1,25 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * Second stage: gives every accepted order its id, in arrival order, and every command the time it happened at,
+ * which the journal, the tables and the live updates all carry. Recording the order is left to the journal
+ * stage, so nothing in front of matching waits on the disk.
+ */
+final class SequenceStage implements EventHandler<OrderCommand> {
+    private long lastOrderId;
+    // never goes back, so times go up with the journal sequence even if the clock doesn't
+    private long lastTimestamp;
+
+    SequenceStage(long lastOrderId) {
+        this.lastOrderId = lastOrderId;
+    }
+
+    @Override
+    public void onEvent(OrderCommand command, long sequence, boolean endOfBatch) {
+        lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+        command.timestamp = lastTimestamp;
+        if (command.type == OrderCommand.Type.PLACE && command.status == OrderCommand.Status.ACCEPTED) {
+            command.orderId = ++lastOrderId;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ru4dh4n.ordermatching.engine;
+
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.helper.PriceLevel;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The best bid, best ask and last trade of one instrument, readable from any thread while its shard keeps
+ * matching. It's a seqlock: the shard bumps the version to odd, writes, then bumps it back to even, and a
+ * reader copies the fields and keeps the copy only if the version was even and unchanged around it. Readers
+ * never block the shard and never write anything the shard reads, so polling it costs matching nothing.
+ */
+public final class TopOfBook {
+
+    // what a reader gets, prices and quantities in the instrument's scale, a quantity of 0 means there's none
+    public record Quote(long bidPrice, long bidQuantity, long askPrice, long askQuantity,
+                        long lastPrice, long lastQuantity, long version) { }
+
+    static final Quote EMPTY = new Quote(0, 0, 0, 0, 0, 0, 0);
+
+    private static final VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(TopOfBook.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // instruments on different shards are written side by side, so keep them off each other's cache lines
+    @SuppressWarnings("unused") private long p1, p2, p3, p4, p5, p6, p7;
+    // odd while the shard is writing
+    private volatile long version;
+    // only written between the two version bumps
+    private long bidPrice;
+    private long bidQuantity;
+    private long askPrice;
+    private long askQuantity;
+    private long lastPrice;
+    private long lastQuantity;
+    @SuppressWarnings("unused") private long p9, p10, p11, p12, p13, p14, p15;
+
+    TopOfBook() { }
+
+    /**
+     * Called by the owning shard once a command is done with the book.
+     * @param lastQuantity 0 if the command didn't trade, which keeps the previous last trade
+     */
+    void update(OrderBook orderBook, long lastPrice, long lastQuantity) {
+        PriceLevel bid = orderBook.getBestBid();
+        PriceLevel ask = orderBook.getBestAsk();
+        long newBidPrice = bid == null ? 0 : bid.getPrice();
+        long newBidQuantity = bid == null ? 0 : bid.getTotalQuantity();
+        long newAskPrice = ask == null ? 0 : ask.getPrice();
+        long newAskQuantity = ask == null ? 0 : ask.getTotalQuantity();
+        if (lastQuantity == 0) {
+            lastPrice = this.lastPrice;
+            lastQuantity = this.lastQuantity;
+        }
+
+        // most orders rest behind the best price, readers polling for changes shouldn't see a new version for those
+        if (newBidPrice == bidPrice && newBidQuantity == bidQuantity && newAskPrice == askPrice
+                && newAskQuantity == askQuantity && lastPrice == this.lastPrice && lastQuantity == this.lastQuantity) {
+            return;
+        }
+
+        long current = version;
+        VERSION.setOpaque(this, current + 1);
+        // the odd version has to be visible before any of the fields change
+        VarHandle.storeStoreFence();
+        bidPrice = newBidPrice;
+        bidQuantity = newBidQuantity;
+        askPrice = newAskPrice;
+        askQuantity = newAskQuantity;
+        this.lastPrice = lastPrice;
+        this.lastQuantity = lastQuantity;
+        VERSION.setRelease(this, current + 2);
+    }
+
+    /**
+     * A consistent copy, from any thread. Only spins while the shard is in the middle of a write, which is a
+     * handful of stores.
+     */
+    public Quote read() {
+        while (true) {
+            long before = (long) VERSION.getAcquire(this);
+            if ((before & 1) == 0) {
+                Quote quote = new Quote(bidPrice, bidQuantity, askPrice, askQuantity, lastPrice, lastQuantity, before >>> 1);
+                // the copy has to be finished before the version is checked again
+                VarHandle.loadLoadFence();
+                if (version == before) return quote;
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru4dh4n.ordermatching.engine;
+
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Price;
+
+/**
+ * First stage: resolves the instrument, checks the order against it and picks the shard.
+ * Prices and quantities arrive already in the instrument's fixed-point scale, converting them is up to the edge.
+ */
+final class ValidateStage implements EventHandler<OrderCommand> {
+    private final InstrumentRegistry instrumentRegistry;
+    private final int shardCount;
+
+    ValidateStage(InstrumentRegistry instrumentRegistry, int shardCount) {
+        this.instrumentRegistry = instrumentRegistry;
+        this.shardCount = shardCount;
+    }
+
+    static int shardOf(int instrument, int shardCount) {
+        return instrument % shardCount;
+    }
+
+    @Override
+    public void onEvent(OrderCommand command, long sequence, boolean endOfBatch) {
+        // housekeeping isn't for any one instrument, every shard takes part
+        if (command.type == OrderCommand.Type.SNAPSHOT || command.type == OrderCommand.Type.OFFLOAD) {
+            command.status = OrderCommand.Status.ACCEPTED;
+            return;
+        }
+
+        try {
+            Instrument found = instrumentRegistry.getInstrument(command.instrument);
+            if (found == null) {
+                command.reject(null);
+                return;
+            }
+
+            command.instrumentId = found.instrumentId();
+            command.scale = found.scale();
+            command.shard = shardOf(command.instrument, shardCount);
+
+            if (command.type == OrderCommand.Type.CANCEL || command.type == OrderCommand.Type.DEPTH) {
+                command.status = OrderCommand.Status.ACCEPTED;
+                return;
+            }
+
+            checkPrice(found, command.scaledPrice);
+            checkQuantity(command.scaledQuantity);
+            command.status = OrderCommand.Status.ACCEPTED;
+        } catch (IllegalArgumentException e) {
+            command.reject(e);
+        }
+    }
+
+    // these also let a producer check a batch up front, see OrderPipeline#submitAll
+
+    /**
+     * @throws IllegalArgumentException if the price can't be traded on this instrument
+     */
+    static void checkPrice(Instrument instrument, long scaledPrice) {
+        if (scaledPrice <= 0) {
+            throw new IllegalArgumentException("Price must be positive");
+        }
+        if (instrument.hasTickSize() && scaledPrice % instrument.scaledTickSize() != 0) {
+            throw new IllegalArgumentException("Price " + Price.toPlainString(scaledPrice, instrument.scale()) + " is not a multiple of the tick size " + instrument.tickSize().toPlainString());
+        }
+        if (scaledPrice < instrument.scaledMinPrice() || scaledPrice > instrument.scaledMaxPrice()) {
+            throw new IllegalArgumentException("Price " + Price.toPlainString(scaledPrice, instrument.scale()) + " is outside the price band");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the quantity can't be traded
+     */
+    static void checkQuantity(long scaledQuantity) {
+        if (scaledQuantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive");
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ru4dh4n.ordermatching.engine;
+
+/**
+ * How a stage waits for the stage (or producers) in front of it.
+ * Trades CPU for latency: busy-spin is fastest and burns a core per stage, blocking is the opposite.
+ */
+public interface WaitStrategy {
+
+    /**
+     * @return the highest sequence the barrier's dependents have reached, at least {@code sequence}
+     */
+    long waitFor(long sequence, SequenceBarrier barrier) throws AlertException, InterruptedException;
+
+    // wake anything parked in waitFor, called whenever a producer publishes or a stage moves forward
+    void signalAllWhenBlocking();
+
+    static WaitStrategy fromName(String name) {
+        return switch (name) {
+            case "busy-spin" -> new BusySpinWaitStrategy();
+            case "yielding" -> new YieldingWaitStrategy();
+            case "blocking" -> new BlockingWaitStrategy();
+            default -> throw new IllegalArgumentException("Unknown wait strategy " + name);
+        };
+    }
+}
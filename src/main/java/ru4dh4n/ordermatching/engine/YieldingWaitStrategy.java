@@ -0,0 +1,25 @@
+package ru4dh4n.ordermatching.engine;
+
+// spins for a while, then gives the core away between checks
+public final class YieldingWaitStrategy implements WaitStrategy {
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public long waitFor(long sequence, SequenceBarrier barrier) throws AlertException {
+        long available;
+        int counter = SPIN_TRIES;
+        while ((available = barrier.dependentSequence()) < sequence) {
+            barrier.checkAlert();
+            if (counter > 0) {
+                counter--;
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() { }
+}
@@ -1,39 +1,223 @@
 package ru4dh4n.ordermatching.grpc.services;
 
-import io.grpc.Context;
+import io.grpc.*;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.springframework.beans.factory.annotation.Autowired;
 import ru4dh4n.ordermatching.annotations.PublicEndpoint;
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor;
+import ru4dh4n.ordermatching.engine.TopOfBook;
+import ru4dh4n.ordermatching.grpc.CandleInterval;
+import ru4dh4n.ordermatching.grpc.CandleSubscriptionRequest;
+import ru4dh4n.ordermatching.grpc.CandlesRequest;
+import ru4dh4n.ordermatching.grpc.CandlesResponse;
+import ru4dh4n.ordermatching.grpc.DepthLevel;
 import ru4dh4n.ordermatching.grpc.MarketDataServiceGrpc;
 import ru4dh4n.ordermatching.grpc.MarketSubscriptionRequest;
-import ru4dh4n.ordermatching.grpc.Trade;
+import ru4dh4n.ordermatching.grpc.TopOfBookResponse;
+import ru4dh4n.ordermatching.helper.CandleSeries;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Price;
+import ru4dh4n.ordermatching.services.CandleAggregator;
+import ru4dh4n.ordermatching.services.DepthBroadcaster;
+import ru4dh4n.ordermatching.services.EncodedMessage;
 import ru4dh4n.ordermatching.services.MarketDataBroadcaster;
+import ru4dh4n.ordermatching.services.MarketDataSubscriber;
+import ru4dh4n.ordermatching.services.MatchingEngineService;
 
-// FIXME: this is all outdated
+import java.util.ArrayList;
+import java.util.List;
 
 @GrpcService
-public class MarketDataServiceImpl extends MarketDataServiceGrpc.MarketDataServiceImplBase {
+// not the ImplBase, its bindService is final
+public class MarketDataServiceImpl implements MarketDataServiceGrpc.AsyncService, BindableService {
+    private static final int MAX_CANDLES = 1000;
+
     private final MarketDataBroadcaster broadcaster;
+    private final DepthBroadcaster depthBroadcaster;
+    private final CandleAggregator candleAggregator;
+    private final MatchingEngineService matchingEngineService;
+    private final InstrumentRegistry instrumentRegistry;
 
     @Autowired
-    public MarketDataServiceImpl(MarketDataBroadcaster broadcaster) {
+    public MarketDataServiceImpl(MarketDataBroadcaster broadcaster, DepthBroadcaster depthBroadcaster,
+                                 CandleAggregator candleAggregator, MatchingEngineService matchingEngineService,
+                                 InstrumentRegistry instrumentRegistry) {
         this.broadcaster = broadcaster;
+        this.depthBroadcaster = depthBroadcaster;
+        this.candleAggregator = candleAggregator;
+        this.matchingEngineService = matchingEngineService;
+        this.instrumentRegistry = instrumentRegistry;
+    }
+
+    /**
+     * The generated definition, except that streams fanned out to many subscribers take {@link EncodedMessage}s:
+     * the broadcaster serializes each message once and every call writes the same bytes.
+     */
+    @Override
+    public ServerServiceDefinition bindService() {
+        ServerServiceDefinition generated = MarketDataServiceGrpc.bindService(this);
+        ServiceDescriptor generatedDescriptor = generated.getServiceDescriptor();
+
+        List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+        methods.add(ServerMethodDefinition.create(preEncoded(MarketDataServiceGrpc.getSubscribeToTradesMethod()),
+                ServerCalls.asyncServerStreamingCall(this::subscribeToEncodedTrades)));
+        methods.add(ServerMethodDefinition.create(preEncoded(MarketDataServiceGrpc.getSubscribeToDepthMethod()),
+                ServerCalls.asyncServerStreamingCall(this::subscribeToEncodedDepth)));
+        methods.add(ServerMethodDefinition.create(preEncoded(MarketDataServiceGrpc.getSubscribeToCandlesMethod()),
+                ServerCalls.asyncServerStreamingCall(this::subscribeToEncodedCandles)));
+
+        for (ServerMethodDefinition<?, ?> method : generated.getMethods()) {
+            String name = method.getMethodDescriptor().getFullMethodName();
+            if (methods.stream().noneMatch(replaced -> replaced.getMethodDescriptor().getFullMethodName().equals(name))) {
+                methods.add(method);
+            }
+        }
+
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(generatedDescriptor.getName())
+                .setSchemaDescriptor(generatedDescriptor.getSchemaDescriptor());
+        methods.forEach(method -> descriptor.addMethod(method.getMethodDescriptor()));
+
+        ServerServiceDefinition.Builder definition = ServerServiceDefinition.builder(descriptor.build());
+        methods.forEach(definition::addMethod);
+        return definition.build();
+    }
+
+    private static <ReqT> MethodDescriptor<ReqT, EncodedMessage> preEncoded(MethodDescriptor<ReqT, ?> method) {
+        return method.toBuilder(method.getRequestMarshaller(), EncodedMessage.MARSHALLER).build();
+    }
+
+    @PublicEndpoint("SubscribeToDepth")
+    private void subscribeToEncodedDepth(MarketSubscriptionRequest request, StreamObserver<EncodedMessage> responseObserver) {
+        final int instrument = instrumentRegistry.getHandle(request.getInstrumentId());
+        if (instrument == InstrumentRegistry.UNKNOWN) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription("Unknown instrument " + request.getInstrumentId()).asRuntimeException());
+            return;
+        }
+
+        MarketDataSubscriber subscriber = depthBroadcaster.newSubscriber(instrument,
+                (ServerCallStreamObserver<EncodedMessage>) responseObserver, NumberFormatInterceptor.NUMBER_FORMAT.get());
+        Context.current().addListener(
+                context -> depthBroadcaster.removeSubscriber(instrument, subscriber),
+                Runnable::run
+        );
+        matchingEngineService.subscribeToDepth(instrument, subscriber);
+    }
+
+    @Override
+    @PublicEndpoint
+    public void getTopOfBook(MarketSubscriptionRequest request, StreamObserver<TopOfBookResponse> responseObserver) {
+        int handle = instrumentRegistry.getHandle(request.getInstrumentId());
+        Instrument instrument = instrumentRegistry.getInstrument(handle);
+        if (instrument == null) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription("Unknown instrument " + request.getInstrumentId()).asRuntimeException());
+            return;
+        }
+
+        TopOfBook.Quote quote = matchingEngineService.getTopOfBook(handle);
+        NumberFormatInterceptor.NumberFormat numberFormat = NumberFormatInterceptor.NUMBER_FORMAT.get();
+        TopOfBookResponse.Builder response = TopOfBookResponse.newBuilder()
+                .setInstrumentId(instrument.instrumentId())
+                .setVersion(quote.version());
+        if (quote.bidQuantity() > 0) {
+            response.setBestBid(level(quote.bidPrice(), quote.bidQuantity(), instrument.scale(), numberFormat));
+        }
+        if (quote.askQuantity() > 0) {
+            response.setBestAsk(level(quote.askPrice(), quote.askQuantity(), instrument.scale(), numberFormat));
+        }
+        if (quote.lastQuantity() > 0) {
+            response.setLastTrade(level(quote.lastPrice(), quote.lastQuantity(), instrument.scale(), numberFormat));
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
     }
 
     @Override
     @PublicEndpoint
-    public void subscribeToTrades(MarketSubscriptionRequest request, StreamObserver<Trade> responseObserver) {
-        System.out.println(request.toString()); // TODO: replace with a logger + proper word-ey words
-        final String instrumentId = request.getInstrumentId();
+    public void getCandles(CandlesRequest request, StreamObserver<CandlesResponse> responseObserver) {
+        int handle = instrumentRegistry.getHandle(request.getInstrumentId());
+        Instrument instrument = instrumentRegistry.getInstrument(handle);
+        if (instrument == null) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription("Unknown instrument " + request.getInstrumentId()).asRuntimeException());
+            return;
+        }
+        CandleSeries.Interval interval = intervalOf(request.getInterval());
+        if (interval == null || request.getLimit() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Unknown interval or negative limit").asRuntimeException());
+            return;
+        }
+
+        long to = request.getToNs() == 0 ? Long.MAX_VALUE : request.getToNs();
+        int limit = request.getLimit() == 0 ? MAX_CANDLES : Math.min(request.getLimit(), MAX_CANDLES);
+        NumberFormatInterceptor.NumberFormat numberFormat = NumberFormatInterceptor.NUMBER_FORMAT.get();
+
+        CandlesResponse.Builder response = CandlesResponse.newBuilder();
+        for (CandleSeries.Bar bar : candleAggregator.getCandles(handle, instrument, interval, request.getFromNs(), to, limit)) {
+            response.addCandles(CandleAggregator.toCandle(instrument.instrumentId(), interval, bar, instrument.scale(), numberFormat));
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @PublicEndpoint("SubscribeToCandles")
+    private void subscribeToEncodedCandles(CandleSubscriptionRequest request, StreamObserver<EncodedMessage> responseObserver) {
+        final int instrument = instrumentRegistry.getHandle(request.getInstrumentId());
+        Instrument details = instrumentRegistry.getInstrument(instrument);
+        if (details == null) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription("Unknown instrument " + request.getInstrumentId()).asRuntimeException());
+            return;
+        }
+
+        final CandleSeries.Interval interval = intervalOf(request.getInterval());
+        if (interval == null) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Unknown interval").asRuntimeException());
+            return;
+        }
+
+        MarketDataSubscriber subscriber = candleAggregator.subscribe(instrument, details, interval,
+                (ServerCallStreamObserver<EncodedMessage>) responseObserver, NumberFormatInterceptor.NUMBER_FORMAT.get());
+        Context.current().addListener(
+                context -> candleAggregator.removeSubscriber(instrument, interval, subscriber),
+                Runnable::run
+        );
+    }
+
+    // null for one this build doesn't know
+    private static CandleSeries.Interval intervalOf(CandleInterval interval) {
+        return interval == CandleInterval.UNRECOGNIZED ? null : CandleSeries.Interval.valueOf(interval.name());
+    }
+
+    private static DepthLevel level(long price, long quantity, int scale, NumberFormatInterceptor.NumberFormat numberFormat) {
+        if (numberFormat == NumberFormatInterceptor.NumberFormat.FIXED_POINT) {
+            return DepthLevel.newBuilder()
+                    .setFixedPrice(WireNumbers.toFixedPoint(price, scale))
+                    .setFixedQuantity(WireNumbers.toFixedPoint(quantity, scale))
+                    .build();
+        }
+        return DepthLevel.newBuilder()
+                .setPrice(Price.toPlainString(price, scale))
+                .setQuantity(Price.toPlainString(quantity, scale))
+                .build();
+    }
 
-        // TODO: check that instrumentId is a valid id
+    @PublicEndpoint("SubscribeToTrades")
+    private void subscribeToEncodedTrades(MarketSubscriptionRequest request, StreamObserver<EncodedMessage> responseObserver) {
+        final int instrument = instrumentRegistry.getHandle(request.getInstrumentId());
+        if (instrument == InstrumentRegistry.UNKNOWN) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription("Unknown instrument " + request.getInstrumentId()).asRuntimeException());
+            return;
+        }
 
-        broadcaster.addObserver(instrumentId, responseObserver);
+        ServerCallStreamObserver<EncodedMessage> serverObserver = (ServerCallStreamObserver<EncodedMessage>) responseObserver;
+        broadcaster.addObserver(instrument, serverObserver, NumberFormatInterceptor.NUMBER_FORMAT.get());
 
         Context.current().addListener(
-                context -> broadcaster.removeObserver(instrumentId, responseObserver),
+                context -> broadcaster.removeObserver(instrument, serverObserver),
                 Runnable::run
         );
     }
-}
\ No newline at end of file
+}
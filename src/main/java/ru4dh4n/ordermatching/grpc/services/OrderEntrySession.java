@@ -0,0 +1,175 @@
+package ru4dh4n.ordermatching.grpc.services;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor;
+import ru4dh4n.ordermatching.engine.OrderPipeline;
+import ru4dh4n.ordermatching.grpc.*;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.services.MatchingEngineService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * One order-entry stream. The user was authenticated when the stream opened, so requests on it skip the
+ * per-call JWT check. Answers are queued as they are asked for and only written once everything in front of
+ * them has been, so they come back in the order the requests were sent even when they finish out of order.
+ * <p>
+ * Requests are only read off the stream while fewer than {@code maxInFlight} are waiting on their answer, and
+ * answers are only written while the transport is ready for them. A client that sends faster than it reads is
+ * held up by its own flow control rather than by the server's memory.
+ */
+final class OrderEntrySession implements StreamObserver<OrderEntryRequest> {
+
+    private final String userId;
+    private final MatchingEngineService matchingEngineService;
+    private final InstrumentRegistry instrumentRegistry;
+    // picked when the stream opened, it holds for the whole session
+    private final NumberFormatInterceptor.NumberFormat numberFormat;
+    private final ServerCallStreamObserver<OrderEntryResponse> responseObserver;
+    // answers are built and written here rather than on the engine's publish thread, see OrderServiceImpl
+    private final Executor responseExecutor;
+
+    // guarded by this, oldest first; never more than maxInFlight, see the constructor
+    private final ArrayDeque<CompletableFuture<OrderEntryResponse>> pending = new ArrayDeque<>();
+    private boolean halfClosed;
+    private boolean closed;
+
+    OrderEntrySession(String userId, MatchingEngineService matchingEngineService, InstrumentRegistry instrumentRegistry,
+                      NumberFormatInterceptor.NumberFormat numberFormat, ServerCallStreamObserver<OrderEntryResponse> responseObserver,
+                      int maxInFlight, Executor responseExecutor) {
+        this.userId = userId;
+        this.matchingEngineService = matchingEngineService;
+        this.instrumentRegistry = instrumentRegistry;
+        this.numberFormat = numberFormat;
+        this.responseObserver = responseObserver;
+        this.responseExecutor = responseExecutor;
+
+        // has to happen while the call is being set up; from here on a request is only read once an earlier one's
+        // answer has been written
+        responseObserver.disableAutoRequest();
+        responseObserver.setOnReadyHandler(this::drain);
+        responseObserver.request(maxInFlight);
+    }
+
+    @Override
+    public void onNext(OrderEntryRequest request) {
+        CompletableFuture<OrderEntryResponse> response;
+        try {
+            response = switch (request.getContentCase()) {
+                case ORDER -> place(request.getRequestId(), List.of(request.getOrder()));
+                case ORDERS -> place(request.getRequestId(), request.getOrders().getOrdersList());
+                case CANCEL -> cancel(request.getRequestId(), request.getCancel());
+                default -> throw new IllegalArgumentException("Empty request");
+            };
+        } catch (NumberFormatException e) {
+            response = CompletableFuture.completedFuture(rejected(request.getRequestId(), "Invalid number for price or quantity"));
+        } catch (IllegalArgumentException e) {
+            response = CompletableFuture.completedFuture(rejected(request.getRequestId(), e.getMessage()));
+        } catch (Exception e) {
+            response = CompletableFuture.completedFuture(rejected(request.getRequestId(), "Failed to process request"));
+        }
+
+        synchronized (this) {
+            if (closed) return;
+            pending.add(response);
+        }
+        response.whenCompleteAsync((ignored, error) -> drain(), responseExecutor);
+    }
+
+    private CompletableFuture<OrderEntryResponse> place(long requestId, List<OrderRequest> requests) {
+        List<OrderPipeline.NewOrder> orders = new ArrayList<>(requests.size());
+        for (OrderRequest request : requests) {
+            int handle = instrumentRegistry.getHandle(request.getInstrumentId());
+            Instrument instrument = instrumentRegistry.getInstrument(handle);
+            orders.add(new OrderPipeline.NewOrder(handle, OrderServiceImpl.toInternalSide(request.getSide()),
+                    WireNumbers.scaledPrice(request, instrument), WireNumbers.scaledQuantity(request, instrument)));
+        }
+
+        List<CompletableFuture<Optional<Long>>> acks = matchingEngineService.submitOrders(userId, orders);
+
+        // allOf fails if any of them did, each one's own outcome is what goes in the answer
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).handleAsync((done, error) -> {
+            PlaceOrdersResponse.Builder placed = PlaceOrdersResponse.newBuilder();
+            acks.forEach(ack -> placed.addAcks(ack.handle(OrderEntrySession::toAck).join()));
+            return OrderEntryResponse.newBuilder().setRequestId(requestId).setPlaced(placed).build();
+        }, responseExecutor);
+    }
+
+    private static OrderAck toAck(Optional<Long> orderId, Throwable error) {
+        if (error instanceof CompletionException) error = error.getCause();
+        if (error instanceof IllegalArgumentException) return OrderAck.newBuilder().setRejected(error.getMessage()).build();
+        if (error != null) return OrderAck.newBuilder().setRejected("Failed to process order").build();
+        if (orderId.isEmpty()) return OrderAck.newBuilder().setRejected("Unknown instrument").build();
+        return OrderAck.newBuilder().setOrderId(Long.toString(orderId.get())).build();
+    }
+
+    private CompletableFuture<OrderEntryResponse> cancel(long requestId, CancelOrderRequest request) {
+        long orderId;
+        try {
+            orderId = Long.parseLong(request.getOrderId());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid order id");
+        }
+        int handle = instrumentRegistry.getHandle(request.getInstrumentId());
+        return matchingEngineService.cancelOrder(userId, handle, orderId)
+                .handleAsync((cancelledQuantity, error) -> {
+                    if (error != null) return rejected(requestId, "Failed to cancel order");
+                    if (cancelledQuantity.isEmpty()) {
+                        return rejected(requestId, "No open order " + orderId + " on " + request.getInstrumentId());
+                    }
+                    return OrderEntryResponse.newBuilder()
+                            .setRequestId(requestId)
+                            .setCancelled(OrderServiceImpl.cancelled(request.getOrderId(), cancelledQuantity.get(),
+                                    instrumentRegistry.getInstrument(handle).scale(), numberFormat))
+                            .build();
+                }, responseExecutor);
+    }
+
+    private static OrderEntryResponse rejected(long requestId, String reason) {
+        return OrderEntryResponse.newBuilder().setRequestId(requestId).setRejected(reason).build();
+    }
+
+    // writes every finished answer that is no longer waiting on an earlier one, for as long as the transport takes them
+    private synchronized void drain() {
+        while (!closed && !pending.isEmpty() && pending.peek().isDone() && responseObserver.isReady()) {
+            OrderEntryResponse response = pending.poll().join();
+            try {
+                responseObserver.onNext(response);
+                responseObserver.request(1);
+            } catch (Exception e) {
+                // the call has gone away under us
+                closed = true;
+                pending.clear();
+                return;
+            }
+        }
+
+        if (halfClosed && pending.isEmpty() && !closed) {
+            closed = true;
+            responseObserver.onCompleted();
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        // the client went away, whatever is still in flight gets matched but nobody is told
+        closed = true;
+        pending.clear();
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (this) {
+            halfClosed = true;
+        }
+        drain();
+    }
+}
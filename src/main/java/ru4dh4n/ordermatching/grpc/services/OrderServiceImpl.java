@@ -1,45 +1,90 @@
 package ru4dh4n.ordermatching.grpc.services;
 
-import com.google.protobuf.Timestamp;
+import io.grpc.Context;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import ru4dh4n.ordermatching.grpc.*;
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor;
 import ru4dh4n.ordermatching.components.SignedRequestInterceptor;
+import ru4dh4n.ordermatching.helper.Instrument;
 import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.Price;
 import ru4dh4n.ordermatching.services.MatchingEngineService;
 import ru4dh4n.ordermatching.services.TradePropagationService;
 
-import java.math.BigDecimal;
+import jakarta.annotation.PreDestroy;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @GrpcService
 public class OrderServiceImpl extends OrderServiceGrpc.OrderServiceImplBase {
 
     private final MatchingEngineService matchingEngineService;
     private final TradePropagationService tradePropagationService;
+    private final InstrumentRegistry instrumentRegistry;
+    // requests an order-entry stream may have waiting on their answer before it stops reading more
+    private final int orderEntryMaxInFlight;
+    // the engine completes its acks on the publish thread, the answers are built and written here so that thread
+    // never waits on a client's transport
+    private final ExecutorService responseExecutor;
 
     @Autowired
-    public OrderServiceImpl(MatchingEngineService matchingEngineService, TradePropagationService tradePropagationService) {
+    public OrderServiceImpl(MatchingEngineService matchingEngineService, TradePropagationService tradePropagationService,
+                            InstrumentRegistry instrumentRegistry,
+                            @Value("${order-entry.max-in-flight:256}") int orderEntryMaxInFlight,
+                            @Value("${order-responses.threads:2}") int responseThreads) {
         super();
         this.matchingEngineService = matchingEngineService;
         this.tradePropagationService = tradePropagationService;
+        this.instrumentRegistry = instrumentRegistry;
+        this.orderEntryMaxInFlight = orderEntryMaxInFlight;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.responseExecutor = Executors.newFixedThreadPool(responseThreads, runnable -> {
+            Thread thread = new Thread(runnable, "order-responses-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        responseExecutor.shutdown();
     }
 
     @Override
     public void subscribeToOrderUpdates(OrderUpdateRequest request, StreamObserver<OrderUpdateStream> responseObserver) {
-        Timestamp lastUpdate = request.getLastUpdate();
-        java.sql.Timestamp timestamp = java.sql.Timestamp.from(java.time.Instant.ofEpochSecond(lastUpdate.getSeconds(), lastUpdate.getNanos()));
-
-        boolean result = tradePropagationService.subscribe(Long.parseLong(request.getOrderId()), timestamp, responseObserver);
+        boolean result = tradePropagationService.subscribe(Long.parseLong(request.getOrderId()), request.getAfterSequence(), responseObserver,
+                NumberFormatInterceptor.NUMBER_FORMAT.get(), request.getBatched());
 
         if (result) return;
 
         responseObserver.onError(Status.INTERNAL.withDescription("couldn't subscribe to updates for order: " + request.getOrderId()).asRuntimeException());
     }
 
+    @Override
+    public void subscribeToMyOrders(MyOrdersRequest request, StreamObserver<OrderUpdateStream> responseObserver) {
+        String authUserId = SignedRequestInterceptor.AUTH_USER_ID.get();
+        if (authUserId == null) {
+            responseObserver.onError(Status.INTERNAL.withDescription("Authentication context missing.").asRuntimeException());
+            return;
+        }
+
+        tradePropagationService.subscribeToMyOrders(authUserId, responseObserver, NumberFormatInterceptor.NUMBER_FORMAT.get(),
+                request.getBatched());
+        Context.current().addListener(
+                context -> tradePropagationService.unsubscribeFromMyOrders(authUserId, responseObserver),
+                Runnable::run
+        );
+    }
+
     @Override
     public void placeOrder(OrderRequest request, StreamObserver<PlaceOrderResponse> responseObserver) {
         String authUserId = SignedRequestInterceptor.AUTH_USER_ID.get();
@@ -50,20 +95,34 @@ public class OrderServiceImpl extends OrderServiceGrpc.OrderServiceImplBase {
 
         try {
 
-            BigDecimal price = new BigDecimal(request.getPrice());
-            BigDecimal quantity = new BigDecimal(request.getQuantity());
+            // the engine only deals in handles, an unknown instrument is rejected in there like before
+            int handle = instrumentRegistry.getHandle(request.getInstrumentId());
+            Instrument instrument = instrumentRegistry.getInstrument(handle);
+            long price = WireNumbers.scaledPrice(request, instrument);
+            long quantity = WireNumbers.scaledQuantity(request, instrument);
             Order.Side side = toInternalSide(request.getSide());
 
-            Optional<Long> orderId = this.matchingEngineService.submitOrder(authUserId, request.getInstrumentId(), side, price, quantity);
-
-            if (orderId.isEmpty()) {
-                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Orde r has been cancelled.").asRuntimeException());
-                return;
-            }
-
-            PlaceOrderResponse response = PlaceOrderResponse.newBuilder().setOrderId(Objects.toString(orderId.get())).build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+            this.matchingEngineService.submitOrder(authUserId, handle, side, price, quantity)
+                    .whenCompleteAsync((orderId, error) -> {
+                        if (error instanceof CompletionException) error = error.getCause();
+                        if (error instanceof IllegalArgumentException) {
+                            responseObserver.onError(Status.INTERNAL.withDescription("Argument(s) invalid").withCause(error).asRuntimeException());
+                            return;
+                        }
+                        if (error != null) {
+                            responseObserver.onError(Status.INTERNAL.withDescription("Failed to process order").withCause(error).asRuntimeException());
+                            return;
+                        }
+
+                        if (orderId.isEmpty()) {
+                            responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Orde r has been cancelled.").asRuntimeException());
+                            return;
+                        }
+
+                        PlaceOrderResponse response = PlaceOrderResponse.newBuilder().setOrderId(Objects.toString(orderId.get())).build();
+                        responseObserver.onNext(response);
+                        responseObserver.onCompleted();
+                    }, responseExecutor);
         } catch (NumberFormatException e) {
             responseObserver.onError(Status.INTERNAL.withDescription("Invalid number for for price or quantity").asRuntimeException());
         } catch (IllegalArgumentException e) {
@@ -73,8 +132,73 @@ public class OrderServiceImpl extends OrderServiceGrpc.OrderServiceImplBase {
         }
     }
 
+    @Override
+    public void cancelOrder(CancelOrderRequest request, StreamObserver<CancelOrderResponse> responseObserver) {
+        String authUserId = SignedRequestInterceptor.AUTH_USER_ID.get();
+        if (authUserId == null) {
+            responseObserver.onError(Status.INTERNAL.withDescription("Authentication context missing.").asRuntimeException());
+            return;
+        }
+
+        long orderId;
+        try {
+            orderId = Long.parseLong(request.getOrderId());
+        } catch (NumberFormatException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Invalid order id").asRuntimeException());
+            return;
+        }
+
+        NumberFormatInterceptor.NumberFormat numberFormat = NumberFormatInterceptor.NUMBER_FORMAT.get();
+        int handle = instrumentRegistry.getHandle(request.getInstrumentId());
+        this.matchingEngineService.cancelOrder(authUserId, handle, orderId)
+                .whenCompleteAsync((cancelledQuantity, error) -> {
+                    if (error != null) {
+                        responseObserver.onError(Status.INTERNAL.withDescription("Failed to cancel order").withCause(error).asRuntimeException());
+                        return;
+                    }
+
+                    if (cancelledQuantity.isEmpty()) {
+                        responseObserver.onError(Status.NOT_FOUND.withDescription("No open order " + orderId + " on " + request.getInstrumentId()).asRuntimeException());
+                        return;
+                    }
+
+                    responseObserver.onNext(cancelled(request.getOrderId(), cancelledQuantity.get(),
+                            instrumentRegistry.getInstrument(handle).scale(), numberFormat));
+                    responseObserver.onCompleted();
+                }, responseExecutor);
+    }
+
+    @Override
+    public StreamObserver<OrderEntryRequest> orderEntry(StreamObserver<OrderEntryResponse> responseObserver) {
+        // the interceptor checked the JWT once for the whole stream
+        String authUserId = SignedRequestInterceptor.AUTH_USER_ID.get();
+        if (authUserId == null) {
+            responseObserver.onError(Status.INTERNAL.withDescription("Authentication context missing.").asRuntimeException());
+            return new StreamObserver<>() {
+                @Override public void onNext(OrderEntryRequest request) { }
+                @Override public void onError(Throwable t) { }
+                @Override public void onCompleted() { }
+            };
+        }
+
+        return new OrderEntrySession(authUserId, matchingEngineService, instrumentRegistry,
+                NumberFormatInterceptor.NUMBER_FORMAT.get(), (ServerCallStreamObserver<OrderEntryResponse>) responseObserver,
+                orderEntryMaxInFlight, responseExecutor);
+    }
+
+    static CancelOrderResponse cancelled(String orderId, long cancelledQuantity, int scale,
+                                         NumberFormatInterceptor.NumberFormat numberFormat) {
+        CancelOrderResponse.Builder response = CancelOrderResponse.newBuilder().setOrderId(orderId);
+        if (numberFormat == NumberFormatInterceptor.NumberFormat.FIXED_POINT) {
+            response.setFixedCancelledQuantity(WireNumbers.toFixedPoint(cancelledQuantity, scale));
+        } else {
+            response.setCancelledQuantity(Price.toPlainString(cancelledQuantity, scale));
+        }
+        return response.build();
+    }
+
     // this is probably unnecessary, but I want it to be explicit
-    private static Order.Side toInternalSide(OrderSide side) {
+    static Order.Side toInternalSide(OrderSide side) {
         return switch (side) {
             case BUY -> Order.Side.BUY;
             case SELL -> Order.Side.SELL;
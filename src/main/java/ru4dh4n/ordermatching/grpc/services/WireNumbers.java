@@ -0,0 +1,47 @@
+package ru4dh4n.ordermatching.grpc.services;
+
+import ru4dh4n.ordermatching.grpc.FixedPoint;
+import ru4dh4n.ordermatching.grpc.OrderRequest;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Price;
+
+import java.math.BigDecimal;
+
+/**
+ * Converts numbers between the wire and the engine's fixed-point. A FixedPoint is only ever rescaled,
+ * the decimal strings are the one place left where BigDecimal gets involved.
+ */
+final class WireNumbers {
+
+    private WireNumbers() { }
+
+    /**
+     * @return the price in the instrument's scale, 0 for an unknown instrument (the engine turns those away anyway)
+     * @throws IllegalArgumentException if the price can't be represented on this instrument
+     * @throws NumberFormatException if the decimal string isn't a number
+     */
+    static long scaledPrice(OrderRequest request, Instrument instrument) {
+        if (instrument == null) return 0;
+        return request.hasFixedPrice()
+                ? toScaled(request.getFixedPrice(), instrument.scale())
+                : Price.toScaled(new BigDecimal(request.getPrice()), instrument.scale());
+    }
+
+    /**
+     * @see #scaledPrice
+     */
+    static long scaledQuantity(OrderRequest request, Instrument instrument) {
+        if (instrument == null) return 0;
+        return request.hasFixedQuantity()
+                ? toScaled(request.getFixedQuantity(), instrument.scale())
+                : Price.toScaled(new BigDecimal(request.getQuantity()), instrument.scale());
+    }
+
+    static long toScaled(FixedPoint value, int scale) {
+        return Price.rescale(value.getMantissa(), value.getScale(), scale);
+    }
+
+    static FixedPoint toFixedPoint(long scaled, int scale) {
+        return FixedPoint.newBuilder().setMantissa(scaled).setScale(scale).build();
+    }
+}
@@ -0,0 +1,45 @@
+package ru4dh4n.ordermatching.helper;
+
+import java.util.function.Consumer;
+
+/**
+ * One side of an {@link OrderBook}, holding its price levels best first. Levels come from the book's pool
+ * and go back to it once empty, so a warmed-up side doesn't allocate.
+ */
+abstract class BookSide {
+
+    final Order.Side side;
+    final ObjectPool<PriceLevel> levelPool;
+
+    BookSide(Order.Side side, ObjectPool<PriceLevel> levelPool) {
+        this.side = side;
+        this.levelPool = levelPool;
+    }
+
+    abstract PriceLevel best();
+    abstract int levelCount();
+
+    boolean isEmpty() { return levelCount() == 0; }
+
+    // whether an incoming order on the other side at this price can trade with the best level
+    abstract boolean crosses(long price);
+
+    // whether an order at this price could rest here, checked before matching so a rejected order has not traded
+    abstract boolean canRest(long price);
+
+    // how much an incoming order on the other side at this price could take from here, counted no further than limit
+    abstract long crossingQuantity(long price, long limit);
+
+    // the level at this price, null if there isn't one
+    abstract PriceLevel levelAt(long price);
+
+    abstract void add(Order order);
+    abstract void remove(Order order);
+
+    // best level first
+    abstract void forEachLevel(Consumer<PriceLevel> consumer);
+
+    boolean isBetter(long price, long than) {
+        return side == Order.Side.BUY ? price > than : price < than;
+    }
+}
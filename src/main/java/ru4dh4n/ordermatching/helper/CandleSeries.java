@@ -0,0 +1,174 @@
+package ru4dh4n.ordermatching.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The OHLCV bars of one instrument at one interval: the bar being built, plus the most recent closed ones in a
+ * ring of primitive arrays, so adding a trade never allocates. A bucket nobody traded in has no bar.
+ * Not thread-safe, see CandleAggregator.
+ */
+public final class CandleSeries {
+
+    public enum Interval {
+        ONE_SECOND(1), ONE_MINUTE(60), FIVE_MINUTES(300), ONE_HOUR(3600), ONE_DAY(86400);
+
+        private final long seconds;
+
+        Interval(long seconds) { this.seconds = seconds; }
+
+        public long seconds() { return this.seconds; }
+        public long nanos() { return this.seconds * 1_000_000_000L; }
+
+        // buckets are aligned to the epoch, so a day runs midnight to midnight UTC
+        public long bucketOf(long timeNanos) { return timeNanos - Math.floorMod(timeNanos, nanos()); }
+    }
+
+    /**
+     * Prices and volume in the instrument's scale. The notional is only there for the VWAP, so a double is plenty.
+     */
+    public record Bar(long openTimeNanos, long open, long high, long low, long close, long volume,
+                      double notional, long tradeCount, boolean closed) {
+        public long vwap() { return volume == 0 ? 0 : Math.round(notional / volume); }
+    }
+
+    private final Interval interval;
+
+    // closed bars, oldest at head - size (wrapping)
+    private final long[] openTimes;
+    private final long[] opens;
+    private final long[] highs;
+    private final long[] lows;
+    private final long[] closes;
+    private final long[] volumes;
+    private final double[] notionals;
+    private final long[] tradeCounts;
+    // where the next closed bar goes
+    private int head;
+    private int size;
+
+    // the open bar, there is none while tradeCount is 0
+    private long openTime;
+    private long open;
+    private long high;
+    private long low;
+    private long close;
+    private long volume;
+    private double notional;
+    private long tradeCount;
+
+    public CandleSeries(Interval interval, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("A series has to keep at least one bar");
+        this.interval = interval;
+        this.openTimes = new long[capacity];
+        this.opens = new long[capacity];
+        this.highs = new long[capacity];
+        this.lows = new long[capacity];
+        this.closes = new long[capacity];
+        this.volumes = new long[capacity];
+        this.notionals = new double[capacity];
+        this.tradeCounts = new long[capacity];
+    }
+
+    public Interval getInterval() { return this.interval; }
+
+    /**
+     * @return the bar this trade closed, if it's the first one in a later bucket, otherwise null
+     */
+    public Bar add(long timeNanos, long price, long quantity) {
+        long bucket = interval.bucketOf(timeNanos);
+        Bar closed = null;
+        // a clock that steps back just keeps adding to the open bar
+        if (tradeCount > 0 && bucket > openTime) closed = closeCurrent();
+
+        if (tradeCount == 0) {
+            openTime = bucket;
+            open = price;
+            high = price;
+            low = price;
+        } else {
+            high = Math.max(high, price);
+            low = Math.min(low, price);
+        }
+        close = price;
+        volume += quantity;
+        notional += (double) price * quantity;
+        tradeCount++;
+        return closed;
+    }
+
+    /**
+     * Closes the open bar once its bucket has ended, for when trading has gone quiet.
+     * @return the bar it closed, or null
+     */
+    public Bar closeIfEnded(long nowNanos) {
+        if (tradeCount == 0 || interval.bucketOf(nowNanos) <= openTime) return null;
+        return closeCurrent();
+    }
+
+    /**
+     * Carries on with a bar built before a restart. Has to come before any trade in the same bucket.
+     */
+    public void resume(Bar bar) {
+        if (tradeCount > 0) throw new IllegalStateException("The series already has an open bar");
+        openTime = bar.openTimeNanos();
+        open = bar.open();
+        high = bar.high();
+        low = bar.low();
+        close = bar.close();
+        volume = bar.volume();
+        notional = bar.notional();
+        tradeCount = bar.tradeCount();
+    }
+
+    // the open bar, or null
+    public Bar current() {
+        return tradeCount == 0 ? null : new Bar(openTime, open, high, low, close, volume, notional, tradeCount, false);
+    }
+
+    // the open time of the oldest bar held, Long.MAX_VALUE if there are none
+    public long oldestOpenTime() {
+        if (size > 0) return openTimes[index(0)];
+        return tradeCount == 0 ? Long.MAX_VALUE : openTime;
+    }
+
+    /**
+     * The bars held that opened between {@code from} and {@code to} inclusive, oldest first, only the last
+     * {@code limit} of them if there are more.
+     */
+    public List<Bar> range(long fromNanos, long toNanos, int limit) {
+        List<Bar> bars = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int slot = index(i);
+            if (openTimes[slot] < fromNanos || openTimes[slot] > toNanos) continue;
+            bars.add(new Bar(openTimes[slot], opens[slot], highs[slot], lows[slot], closes[slot], volumes[slot],
+                    notionals[slot], tradeCounts[slot], true));
+        }
+        if (tradeCount > 0 && openTime >= fromNanos && openTime <= toNanos) bars.add(current());
+        return bars.size() > limit ? new ArrayList<>(bars.subList(bars.size() - limit, bars.size())) : bars;
+    }
+
+    private int index(int fromOldest) {
+        return Math.floorMod(head - size + fromOldest, openTimes.length);
+    }
+
+    private Bar closeCurrent() {
+        Bar closed = new Bar(openTime, open, high, low, close, volume, notional, tradeCount, true);
+
+        openTimes[head] = openTime;
+        opens[head] = open;
+        highs[head] = high;
+        lows[head] = low;
+        closes[head] = close;
+        volumes[head] = volume;
+        notionals[head] = notional;
+        tradeCounts[head] = tradeCount;
+        head = (head + 1) % openTimes.length;
+        if (size < openTimes.length) size++;
+
+        volume = 0;
+        notional = 0;
+        tradeCount = 0;
+        return closed;
+    }
+}
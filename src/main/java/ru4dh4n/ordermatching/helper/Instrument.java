@@ -4,7 +4,30 @@ import org.springframework.lang.NonNull;
 
 import java.math.BigDecimal;
 
-public record Instrument(String instrumentId, String name, BigDecimal minOrderQuantity, BigDecimal minDustQuantity) {
+/**
+ * scale is the fixed-point scale used for this instrument's prices and quantities, see Price.
+ * tickSize, minPrice and maxPrice are optional (null when not set); an instrument with a tick size
+ * only trades on multiples of it and gets a price ladder book instead of a sorted one.
+ */
+public record Instrument(String instrumentId, String name, BigDecimal minOrderQuantity, BigDecimal minDustQuantity,
+                         BigDecimal tickSize, BigDecimal minPrice, BigDecimal maxPrice, int scale) {
+
+    public Instrument(String instrumentId, String name, BigDecimal minOrderQuantity, BigDecimal minDustQuantity,
+                      BigDecimal tickSize, BigDecimal minPrice, BigDecimal maxPrice) {
+        this(instrumentId, name, minOrderQuantity, minDustQuantity, tickSize, minPrice, maxPrice,
+                tickSize == null ? Price.scaleOf(minDustQuantity) : Math.max(Price.scaleOf(minDustQuantity), Price.scaleOf(tickSize)));
+    }
+
+    public Instrument(String instrumentId, String name, BigDecimal minOrderQuantity, BigDecimal minDustQuantity) {
+        this(instrumentId, name, minOrderQuantity, minDustQuantity, null, null, null);
+    }
+
+    public boolean hasTickSize() { return tickSize != null; }
+
+    // the scaled tick, or 0 when there is none
+    public long scaledTickSize() { return tickSize == null ? 0 : Price.toScaled(tickSize, scale); }
+    public long scaledMinPrice() { return minPrice == null ? 0 : Price.toScaled(minPrice, scale); }
+    public long scaledMaxPrice() { return maxPrice == null ? Long.MAX_VALUE : Price.toScaled(maxPrice, scale); }
 
     @Override
     @NonNull
@@ -14,6 +37,10 @@ public record Instrument(String instrumentId, String name, BigDecimal minOrderQu
                 ", name='" + name + '\'' +
                 ", minOrderQuantity=" + minOrderQuantity +
                 ", minDustQuantity=" + minDustQuantity +
+                ", tickSize=" + tickSize +
+                ", minPrice=" + minPrice +
+                ", maxPrice=" + maxPrice +
+                ", scale=" + scale +
                 '}';
     }
 }
@@ -0,0 +1,209 @@
+package ru4dh4n.ordermatching.helper;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A book side for an instrument with a tick size: levels sit in a dense array indexed by
+ * {@code (price - base) / tick}, so finding a level is a division instead of a search, and cursors
+ * track the best and worst occupied slots. A price outside the window recentres it around the
+ * occupied range, growing the array as needed up to {@link #MAX_TICKS}. With a price band the window
+ * covers the band from the start and never has to move.
+ */
+final class LadderBookSide extends BookSide {
+
+    private static final int INITIAL_TICKS = 1024;
+    // 8MB of references per side, a book wider than this belongs on a SortedBookSide
+    static final int MAX_TICKS = 1 << 20;
+
+    private final long tick;
+
+    private PriceLevel[] slots;
+    // price of slots[0], always on the tick grid
+    private long base;
+    private boolean centred;
+    private int count;
+    // -1 while the side is empty
+    private int bestIndex = -1;
+    private int worstIndex = -1;
+
+    LadderBookSide(Order.Side side, ObjectPool<PriceLevel> levelPool, long tick, long minPrice, long maxPrice) {
+        super(side, levelPool);
+        if (tick <= 0) throw new IllegalArgumentException("Tick size must be positive");
+        this.tick = tick;
+
+        long low = minPrice - Math.floorMod(minPrice, tick);
+        long span = maxPrice == Long.MAX_VALUE ? Long.MAX_VALUE : (maxPrice - low) / tick + 1;
+        if (span <= MAX_TICKS) {
+            this.slots = new PriceLevel[(int) span];
+            this.base = low;
+            this.centred = true;
+        } else {
+            this.slots = new PriceLevel[INITIAL_TICKS];
+        }
+    }
+
+    @Override PriceLevel best() { return bestIndex < 0 ? null : slots[bestIndex]; }
+    @Override int levelCount() { return this.count; }
+
+    @Override
+    boolean crosses(long price) {
+        if (bestIndex < 0) return false;
+        long bestPrice = slots[bestIndex].getPrice();
+        return side == Order.Side.BUY ? price <= bestPrice : price >= bestPrice;
+    }
+
+    @Override
+    boolean canRest(long price) {
+        if (count == 0) return true;
+        long low = Math.min(price, priceAt(Math.min(bestIndex, worstIndex)));
+        long high = Math.max(price, priceAt(Math.max(bestIndex, worstIndex)));
+        return (high - low) / tick < MAX_TICKS;
+    }
+
+    // only asked when canRest has already said no, so walking the empty slots between levels is fine
+    @Override
+    long crossingQuantity(long price, long limit) {
+        long total = 0;
+        if (bestIndex < 0) return total;
+        int step = towardsWorse();
+        for (int i = bestIndex; total < limit; i += step) {
+            PriceLevel level = slots[i];
+            if (level != null) {
+                if (side == Order.Side.BUY ? price > level.getPrice() : price < level.getPrice()) break;
+                total += level.getTotalQuantity();
+            }
+            if (i == worstIndex) break;
+        }
+        return total;
+    }
+
+    @Override
+    void forEachLevel(Consumer<PriceLevel> consumer) {
+        if (bestIndex < 0) return;
+        int step = towardsWorse();
+        for (int i = bestIndex; ; i += step) {
+            if (slots[i] != null) consumer.accept(slots[i]);
+            if (i == worstIndex) return;
+        }
+    }
+
+    @Override
+    PriceLevel levelAt(long price) {
+        int index = indexOf(price);
+        // a price off the grid lands on the slot below it
+        return index < 0 || slots[index] == null || slots[index].getPrice() != price ? null : slots[index];
+    }
+
+    @Override
+    void add(Order order) {
+        long price = order.getPrice();
+        int index = indexOf(price);
+        if (index < 0) {
+            recentre(price);
+            index = indexOf(price);
+        }
+
+        PriceLevel level = slots[index];
+        if (level == null) {
+            level = levelPool.acquire().init(price);
+            slots[index] = level;
+            if (count++ == 0) {
+                bestIndex = index;
+                worstIndex = index;
+            } else if (isBetterIndex(index, bestIndex)) {
+                bestIndex = index;
+            } else if (isBetterIndex(worstIndex, index)) {
+                worstIndex = index;
+            }
+        }
+        level.add(order);
+    }
+
+    @Override
+    void remove(Order order) {
+        PriceLevel level = order.level;
+        level.remove(order);
+        if (!level.isEmpty()) return;
+
+        int index = indexOf(level.getPrice());
+        slots[index] = null;
+        levelPool.release(level);
+
+        if (--count == 0) {
+            bestIndex = -1;
+            worstIndex = -1;
+            return;
+        }
+        // the cursors walk inwards to the next occupied slot, which is close by in a busy book
+        int step = towardsWorse();
+        if (index == bestIndex) {
+            do { bestIndex += step; } while (slots[bestIndex] == null);
+        } else if (index == worstIndex) {
+            do { worstIndex -= step; } while (slots[worstIndex] == null);
+        }
+    }
+
+    private int towardsWorse() { return side == Order.Side.BUY ? -1 : 1; }
+
+    private boolean isBetterIndex(int index, int than) {
+        return side == Order.Side.BUY ? index > than : index < than;
+    }
+
+    private long priceAt(int index) { return base + index * tick; }
+
+    // -1 if the price is outside the window
+    private int indexOf(long price) {
+        if (!centred || price < base) return -1;
+        long index = (price - base) / tick;
+        return index < slots.length ? (int) index : -1;
+    }
+
+    // moves the window so the occupied range plus this price sit in the middle of it
+    private void recentre(long price) {
+        if (!canRest(price)) {
+            throw new IllegalArgumentException("Price " + price + " is too far from the rest of the book");
+        }
+
+        long low = price;
+        long high = price;
+        if (count > 0) {
+            low = Math.min(low, priceAt(Math.min(bestIndex, worstIndex)));
+            high = Math.max(high, priceAt(Math.max(bestIndex, worstIndex)));
+        }
+        long span = (high - low) / tick + 1;
+
+        int capacity = slots.length;
+        while (capacity < span * 2 && capacity < MAX_TICKS) capacity <<= 1;
+        long newBase = low - (capacity - span) / 2 * tick;
+
+        // nothing to carry over, an empty side's slots are already all null
+        if (!centred || count == 0) {
+            slots = capacity == slots.length ? slots : new PriceLevel[capacity];
+            base = newBase;
+            centred = true;
+            return;
+        }
+
+        // occupied slots keep their price, so they shift by the change in base
+        int shift = (int) ((base - newBase) / tick);
+        if (capacity == slots.length) {
+            if (shift > 0) {
+                System.arraycopy(slots, 0, slots, shift, slots.length - shift);
+                Arrays.fill(slots, 0, shift, null);
+            } else if (shift < 0) {
+                System.arraycopy(slots, -shift, slots, 0, slots.length + shift);
+                Arrays.fill(slots, slots.length + shift, slots.length, null);
+            }
+        } else {
+            PriceLevel[] grown = new PriceLevel[capacity];
+            int from = Math.min(bestIndex, worstIndex);
+            int to = Math.max(bestIndex, worstIndex);
+            System.arraycopy(slots, from, grown, from + shift, to - from + 1);
+            slots = grown;
+        }
+        base = newBase;
+        bestIndex += shift;
+        worstIndex += shift;
+    }
+}
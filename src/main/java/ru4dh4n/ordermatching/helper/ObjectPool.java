@@ -0,0 +1,39 @@
+package ru4dh4n.ordermatching.helper;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Free-list of reusable objects for a single owning thread. Once warmed up, acquire and release
+ * never allocate; anything released past {@code maxSize} is simply left to the GC.
+ */
+public final class ObjectPool<T> {
+    private final Supplier<T> factory;
+    private final int maxSize;
+    private Object[] free = new Object[16];
+    private int size;
+
+    public ObjectPool(Supplier<T> factory, int maxSize) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if (size == 0) return factory.get();
+
+        T value = (T) free[--size];
+        free[size] = null;
+        return value;
+    }
+
+    public void release(T value) {
+        if (size == free.length) {
+            if (size >= maxSize) return;
+            free = Arrays.copyOf(free, Math.min(maxSize, size * 2));
+        }
+        free[size++] = value;
+    }
+
+    public int available() { return this.size; }
+}
@@ -1,22 +1,39 @@
 package ru4dh4n.ordermatching.helper;
 
-import java.math.BigDecimal;
 import java.util.Objects;
 
-public final class Order implements Comparable<Order> {
+/**
+ * A resting or incoming order. Mutable so books can recycle them through an {@link ObjectPool}:
+ * once an order has been handed to an {@link OrderBook} the book owns it, and may reuse it as soon as
+ * it is filled or cancelled.
+ */
+public final class Order implements Comparable<Order>, OrderDetails {
     public enum Side{BUY, SELL}
 
-    private final long orderId;
-    private final String userId;
+    private long orderId;
+    private String userId;
 
-    private final String instrumentId;
-    private final Side side;
+    private String instrumentId;
+    private Side side;
 
-    private final BigDecimal price;
-    private final BigDecimal totalQuantity;
-    private BigDecimal quantityFulfilled;
+    // fixed-point, scaled by the instrument's scale (see Price)
+    private long price;
+    private long totalQuantity;
+    private long quantityFulfilled;
+    private int scale;
 
-    public Order(long orderId, String userId, String instrumentId, Side side, BigDecimal totalQuantity, BigDecimal price) {
+    // intrusive links into the owning PriceLevel's queue, only touched by OrderBook
+    PriceLevel level;
+    Order prev;
+    Order next;
+
+    Order() { }
+
+    public Order(long orderId, String userId, String instrumentId, Side side, long totalQuantity, long price, int scale) {
+        init(orderId, userId, instrumentId, side, totalQuantity, price, scale);
+    }
+
+    Order init(long orderId, String userId, String instrumentId, Side side, long totalQuantity, long price, int scale) {
         this.orderId = orderId;
         this.userId = userId;
 
@@ -24,20 +41,34 @@ public final class Order implements Comparable<Order> {
         this.side = side;
         this.price = price;
         this.totalQuantity = totalQuantity;
-        this.quantityFulfilled = BigDecimal.ZERO;
+        this.quantityFulfilled = 0;
+        this.scale = scale;
+        return this;
     }
 
-    public long getOrderId() { return this.orderId; }
-    public String getUserId() { return this.userId; }
-    public String getInstrumentId() { return this.instrumentId; }
-    public Side getSide() { return this.side; }
-    public BigDecimal getPrice() { return this.price; }
-    public BigDecimal getTotalQuantity() { return this.totalQuantity; }
+    // drops references before going back to a pool, the numbers stay readable until the next init
+    void release() {
+        this.userId = null;
+        this.instrumentId = null;
+        this.level = null;
+        this.prev = null;
+        this.next = null;
+    }
+
+    @Override public long getOrderId() { return this.orderId; }
+    @Override public String getUserId() { return this.userId; }
+    @Override public String getInstrumentId() { return this.instrumentId; }
+    @Override public Side getSide() { return this.side; }
+    @Override public long getPrice() { return this.price; }
+    @Override public long getTotalQuantity() { return this.totalQuantity; }
+    @Override public int getScale() { return this.scale; }
+
+    public long getRemainingQuantity() { return this.totalQuantity - this.quantityFulfilled; }
 
-    public BigDecimal getRemainingQuantity() { return this.totalQuantity.subtract(this.quantityFulfilled); }
+    public boolean isResting() { return this.level != null; }
 
-    public boolean isFulfilled() { return quantityFulfilled.compareTo(totalQuantity) >= 0; }
-    public void addFulfilledQuantity(BigDecimal quantity) { this.quantityFulfilled = this.quantityFulfilled.add(quantity); }
+    public boolean isFulfilled() { return quantityFulfilled >= totalQuantity; }
+    public void addFulfilledQuantity(long quantity) { this.quantityFulfilled += quantity; }
 
     @Override
     public int compareTo(Order o) {
@@ -62,10 +93,10 @@ public final class Order implements Comparable<Order> {
                 ", userId='" + userId + '\'' +
                 ", instrumentId='" + instrumentId + '\'' +
                 ", side=" + side +
-                ", price=" + price +
-                ", totalQuantity=" + totalQuantity +
-                ", quantityFulfilled=" + quantityFulfilled +
-                ", remaining=" + getRemainingQuantity() +
+                ", price=" + Price.toPlainString(price, scale) +
+                ", totalQuantity=" + Price.toPlainString(totalQuantity, scale) +
+                ", quantityFulfilled=" + Price.toPlainString(quantityFulfilled, scale) +
+                ", remaining=" + Price.toPlainString(getRemainingQuantity(), scale) +
                 '}';
     }
-}
\ No newline at end of file
+}
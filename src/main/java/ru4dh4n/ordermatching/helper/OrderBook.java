@@ -1,92 +1,186 @@
 package ru4dh4n.ordermatching.helper;
 
-import ru4dh4n.ordermatching.components.InstrumentRegistry;
-
-import java.math.BigDecimal;
-import java.util.*;
+import java.util.function.Consumer;
 
+// not thread-safe, each book is owned by the single matching thread its instrument is pinned to
 public class OrderBook {
 
-    private final String instrumentId;
-    private final InstrumentRegistry instrumentRegistry;
+    // enough to absorb bursts without holding on to a spike's worth of garbage forever
+    private static final int MAX_POOLED_ORDERS = 1 << 16;
+    private static final int MAX_POOLED_LEVELS = 1 << 12;
+
+    private final Instrument instrument;
+
+    private final BookSide bids;
+    private final BookSide asks;
+    // orderId -> resting order, so a cancel can find the order without scanning its level
+    private final LongObjectMap<Order> restingOrders = new LongObjectMap<>();
 
-    private final PriorityQueue<Order> buyOrders;
-    private final PriorityQueue<Order> sellOrders;
+    private final ObjectPool<Order> orderPool = new ObjectPool<>(Order::new, MAX_POOLED_ORDERS);
+    private final TradeEvent tradeEvent = new TradeEvent();
 
-    public OrderBook(String instrumentId, InstrumentRegistry instrumentRegistry) {
-        this.instrumentId = instrumentId;
-        this.instrumentRegistry = instrumentRegistry;
+    public OrderBook(Instrument instrument) {
+        this.instrument = instrument;
 
-        this.buyOrders = new PriorityQueue<>(Comparator
-                .comparing(Order::getPrice, Comparator.reverseOrder())
-                .thenComparing(Order::getOrderId));
+        ObjectPool<PriceLevel> levelPool = new ObjectPool<>(PriceLevel::new, MAX_POOLED_LEVELS);
+        // instruments trading on a tick grid get a price ladder, anything else a sorted array
+        if (instrument.hasTickSize()) {
+            long tick = instrument.scaledTickSize();
+            this.bids = new LadderBookSide(Order.Side.BUY, levelPool, tick, instrument.scaledMinPrice(), instrument.scaledMaxPrice());
+            this.asks = new LadderBookSide(Order.Side.SELL, levelPool, tick, instrument.scaledMinPrice(), instrument.scaledMaxPrice());
+        } else {
+            this.bids = new SortedBookSide(Order.Side.BUY, levelPool);
+            this.asks = new SortedBookSide(Order.Side.SELL, levelPool);
+        }
+    }
 
-        this.sellOrders = new PriorityQueue<>(Comparator
-                .comparing(Order::getPrice)
-                .thenComparing(Order::getOrderId));
+    public Instrument getInstrument() { return this.instrument; }
+    public PriceLevel getBestBid() { return bids.best(); }
+    public PriceLevel getBestAsk() { return asks.best(); }
+    public int getRestingOrderCount() { return restingOrders.size(); }
+    public Order getOrder(long orderId) { return restingOrders.get(orderId); }
+    public int getLevelCount(Order.Side side) { return sideOf(side).levelCount(); }
+
+    /**
+     * @return everything resting at this price, 0 if there's no level there
+     */
+    public long getLevelQuantity(Order.Side side, long price) {
+        PriceLevel level = sideOf(side).levelAt(price);
+        return level == null ? 0 : level.getTotalQuantity();
     }
 
-    public synchronized void processOrder(Order newOrder, TradeHandler tradeHandler) {
-        assert(newOrder.getInstrumentId().equals(instrumentId));
+    // best level first
+    public void forEachLevel(Order.Side side, Consumer<PriceLevel> consumer) {
+        sideOf(side).forEachLevel(consumer);
+    }
+
+    private BookSide sideOf(Order.Side side) {
+        return side == Order.Side.BUY ? bids : asks;
+    }
+
+    /**
+     * Matches an incoming order using a pooled {@link Order}, so a warmed-up book doesn't allocate.
+     * Nothing about the order outlives the call unless it rests.
+     */
+    public void processOrder(long orderId, String userId, Order.Side side, long price, long quantity, TradeHandler tradeHandler) {
+        Order order = orderPool.acquire().init(orderId, userId, instrument.instrumentId(), side, quantity, price, instrument.scale());
+        try {
+            processOrder(order, tradeHandler);
+        } finally {
+            // filled, or turned away before it got anywhere near the book
+            if (!order.isResting()) release(order);
+        }
+    }
 
-        Optional<Instrument> instrument = instrumentRegistry.getInstrument(newOrder.getInstrumentId());
-        if (instrument.isEmpty()) return;
+    /**
+     * The book takes ownership of the order and may recycle it once it's filled or cancelled.
+     */
+    public void processOrder(Order newOrder, TradeHandler tradeHandler) {
+        assert(newOrder.getInstrumentId().equals(instrument.instrumentId()));
+        BookSide own = newOrder.getSide() == Order.Side.BUY ? bids : asks;
+        BookSide makers = newOrder.getSide() == Order.Side.BUY ? asks : bids;
+        // only a remainder that is left to rest has to fit next to its own side, an order the makers fill never gets there
+        long quantity = newOrder.getRemainingQuantity();
+        if (!own.canRest(newOrder.getPrice()) && makers.crossingQuantity(newOrder.getPrice(), quantity) < quantity) {
+            throw new IllegalArgumentException("Price " + newOrder.getPrice() + " is too far from the rest of the book");
+        }
 
         if (newOrder.getSide() == Order.Side.BUY) {
-            matchWithSellOrders(newOrder, tradeHandler);
+            matchAgainst(asks, newOrder, tradeHandler);
 
             if (!newOrder.isFulfilled()) {
-                buyOrders.add(newOrder);
+                bids.add(newOrder);
+                restingOrders.put(newOrder.getOrderId(), newOrder);
             }
         } else if (newOrder.getSide() == Order.Side.SELL) {
-            matchWithBuyOrders(newOrder, tradeHandler);
+            matchAgainst(bids, newOrder, tradeHandler);
 
             if (!newOrder.isFulfilled()) {
-                sellOrders.add(newOrder);
+                asks.add(newOrder);
+                restingOrders.put(newOrder.getOrderId(), newOrder);
             }
         } else {
             throw new IllegalArgumentException("Invalid order side " + newOrder.getSide());
         }
     }
 
-    private void matchWithBuyOrders(Order sellOrder, TradeHandler handler) {
-        while (!buyOrders.isEmpty() && !sellOrder.isFulfilled()) {
-            Order makerOrder = buyOrders.peek();
+    /**
+     * Visits every resting order, bids then asks, each side best level first and oldest first within a level,
+     * which is the order {@link #restOrder} needs them back in.
+     */
+    public void forEachRestingOrder(Consumer<Order> consumer) {
+        forEachRestingOrder(bids, consumer);
+        forEachRestingOrder(asks, consumer);
+    }
 
-            if (sellOrder.getPrice().compareTo(makerOrder.getPrice()) > 0) break;
+    private static void forEachRestingOrder(BookSide side, Consumer<Order> consumer) {
+        side.forEachLevel(level -> {
+            for (Order order = level.getHead(); order != null; order = order.next) {
+                consumer.accept(order);
+            }
+        });
+    }
 
-            if (match(makerOrder, sellOrder, handler, buyOrders)) break;
-        }
+    /**
+     * Puts an order that was already resting back into the book as it was, without matching it.
+     * Used when rebuilding a book, where the orders come in their original time order.
+     */
+    public void restOrder(long orderId, String userId, Order.Side side, long price, long totalQuantity, long filledQuantity) {
+        if (filledQuantity >= totalQuantity) throw new IllegalArgumentException("Order " + orderId + " has nothing left to rest");
+
+        Order order = orderPool.acquire().init(orderId, userId, instrument.instrumentId(), side, totalQuantity, price, instrument.scale());
+        order.addFulfilledQuantity(filledQuantity);
+
+        (side == Order.Side.BUY ? bids : asks).add(order);
+        restingOrders.put(orderId, order);
     }
 
-    private void matchWithSellOrders(Order buyOrder, TradeHandler handler) {
-        while (!sellOrders.isEmpty() && !buyOrder.isFulfilled()) {
-            Order makerOrder = sellOrders.peek();
+    /**
+     * Takes a resting order out of the book.
+     * @return the quantity that was still open, or -1 if it isn't resting in this book (already filled, cancelled or unknown)
+     */
+    public long cancelOrder(long orderId) {
+        Order order = restingOrders.remove(orderId);
+        if (order == null) return -1;
+
+        (order.getSide() == Order.Side.BUY ? bids : asks).remove(order);
+        long remaining = order.getRemainingQuantity();
+        release(order);
+        return remaining;
+    }
 
-            if (buyOrder.getPrice().compareTo(makerOrder.getPrice()) < 0) break;
+    private void release(Order order) {
+        order.release();
+        orderPool.release(order);
+    }
 
-            if (match(makerOrder, buyOrder, handler, sellOrders)) break;
+    private void matchAgainst(BookSide makers, Order takerOrder, TradeHandler handler) {
+        while (!takerOrder.isFulfilled() && makers.crosses(takerOrder.getPrice())) {
+            if (match(makers, makers.best().getHead(), takerOrder, handler)) break;
         }
     }
 
-    private boolean match(Order makerOrder, Order takerOrder, TradeHandler tradeHandler, PriorityQueue<Order> orderQueue) {
-        BigDecimal matchQty = makerOrder.getRemainingQuantity().min(takerOrder.getRemainingQuantity());
-        BigDecimal tradePrice = makerOrder.getPrice();
+    private boolean match(BookSide makers, Order makerOrder, Order takerOrder, TradeHandler tradeHandler) {
+        long matchQty = Math.min(makerOrder.getRemainingQuantity(), takerOrder.getRemainingQuantity());
+        long tradePrice = makerOrder.getPrice();
 
-        boolean success = tradeHandler.onTrade(
-                makerOrder.getOrderId(),
-                takerOrder.getOrderId(),
-                tradePrice,
-                matchQty
-        );
+        boolean success;
+        try {
+            success = tradeHandler.onTrade(tradeEvent.set(makerOrder, takerOrder, tradePrice, matchQty));
+        } finally {
+            tradeEvent.clear();
+        }
 
         if (!success) return true;
 
         makerOrder.addFulfilledQuantity(matchQty);
         takerOrder.addFulfilledQuantity(matchQty);
+        makerOrder.level.reduce(matchQty);
 
         if (makerOrder.isFulfilled()) {
-            orderQueue.poll();
+            makers.remove(makerOrder);
+            restingOrders.remove(makerOrder.getOrderId());
+            release(makerOrder);
         }
         return false;
     }
@@ -0,0 +1,14 @@
+package ru4dh4n.ordermatching.helper;
+
+/**
+ * What gets stored about an order when it is accepted. Prices and quantities are fixed-point (see Price).
+ */
+public interface OrderDetails {
+    long getOrderId();
+    String getUserId();
+    String getInstrumentId();
+    Order.Side getSide();
+    long getPrice();
+    long getTotalQuantity();
+    int getScale();
+}
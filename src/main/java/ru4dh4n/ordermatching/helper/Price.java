@@ -1,5 +1,83 @@
 package ru4dh4n.ordermatching.helper;
 
-public class Price {
-    // TODO: abstract bigdecimal probably
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point helpers for prices and quantities.
+ * <p>
+ * Inside the engine every price and quantity is a {@code long} holding the value multiplied by
+ * {@code 10^scale}, where the scale comes from the instrument's {@code minDustQuantity}
+ * (e.g. a dust of {@code 0.00000001} gives a scale of 8). {@link BigDecimal} is only used when
+ * converting at the gRPC and database edges, so matching never allocates for arithmetic.
+ */
+public final class Price {
+
+    // 10^18 is the largest power of ten that fits in a long
+    public static final int MAX_SCALE = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private Price() { }
+
+    public static int scaleOf(BigDecimal minDustQuantity) {
+        int scale = Math.max(0, minDustQuantity.stripTrailingZeros().scale());
+        if (scale > MAX_SCALE) {
+            throw new IllegalArgumentException("Dust quantity " + minDustQuantity.toPlainString() + " needs more than " + MAX_SCALE + " decimals");
+        }
+        return scale;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value has more decimals than the scale allows or doesn't fit in a long
+     */
+    public static long toScaled(BigDecimal value, int scale) {
+        try {
+            return value.setScale(scale, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Value " + value.toPlainString() + " can't be represented with scale " + scale, e);
+        }
+    }
+
+    /**
+     * Moves a fixed-point value from one scale to another without going through {@link BigDecimal}.
+     * @throws IllegalArgumentException if the value has more decimals than the new scale allows or doesn't fit in a long
+     */
+    public static long rescale(long value, int fromScale, int toScale) {
+        if (fromScale < 0 || fromScale > MAX_SCALE) {
+            throw new IllegalArgumentException("Scale " + fromScale + " is out of range");
+        }
+        if (fromScale == toScale) return value;
+
+        if (fromScale < toScale) {
+            try {
+                return Math.multiplyExact(value, POWERS_OF_TEN[toScale - fromScale]);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Value " + toPlainString(value, fromScale) + " can't be represented with scale " + toScale, e);
+            }
+        }
+
+        long divisor = POWERS_OF_TEN[fromScale - toScale];
+        if (value % divisor != 0) {
+            throw new IllegalArgumentException("Value " + toPlainString(value, fromScale) + " can't be represented with scale " + toScale);
+        }
+        return value / divisor;
+    }
+
+    // for the legacy double fields, the nearest double as long as the scaled value is below 2^53
+    public static double toDouble(long scaled, int scale) {
+        return (double) scaled / POWERS_OF_TEN[scale];
+    }
+
+    public static BigDecimal toDecimal(long scaled, int scale) {
+        return BigDecimal.valueOf(scaled, scale).stripTrailingZeros();
+    }
+
+    public static String toPlainString(long scaled, int scale) {
+        return toDecimal(scaled, scale).toPlainString();
+    }
 }
@@ -0,0 +1,77 @@
+package ru4dh4n.ordermatching.helper;
+
+/**
+ * All resting orders at a single price, oldest first.
+ * The queue is intrusive (the links live on {@link Order}), so adding and removing never allocates.
+ */
+public final class PriceLevel {
+
+    private long price;
+
+    private Order head;
+    private Order tail;
+    private int orderCount;
+    private long totalQuantity;
+
+    PriceLevel() { }
+
+    // levels are recycled by their BookSide, a level is only ever re-initialised once empty
+    PriceLevel init(long price) {
+        this.price = price;
+        this.head = null;
+        this.tail = null;
+        this.orderCount = 0;
+        this.totalQuantity = 0;
+        return this;
+    }
+
+    public long getPrice() { return this.price; }
+    public Order getHead() { return this.head; }
+    public int getOrderCount() { return this.orderCount; }
+    public long getTotalQuantity() { return this.totalQuantity; }
+    public boolean isEmpty() { return this.head == null; }
+
+    void add(Order order) {
+        order.level = this;
+        order.prev = tail;
+        order.next = null;
+
+        if (tail == null) {
+            head = order;
+        } else {
+            tail.next = order;
+        }
+        tail = order;
+
+        orderCount++;
+        totalQuantity += order.getRemainingQuantity();
+    }
+
+    void remove(Order order) {
+        assert(order.level == this);
+
+        if (order.prev == null) {
+            head = order.next;
+        } else {
+            order.prev.next = order.next;
+        }
+
+        if (order.next == null) {
+            tail = order.prev;
+        } else {
+            order.next.prev = order.prev;
+        }
+
+        orderCount--;
+        totalQuantity -= order.getRemainingQuantity();
+
+        order.level = null;
+        order.prev = null;
+        order.next = null;
+    }
+
+    // called after a resting order in this level has been (partially) filled
+    void reduce(long quantity) {
+        totalQuantity -= quantity;
+    }
+}
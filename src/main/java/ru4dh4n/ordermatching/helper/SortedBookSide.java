@@ -0,0 +1,119 @@
+package ru4dh4n.ordermatching.helper;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A book side for any price: levels in a sorted primitive array, worst first, so the best level is
+ * always the last element and the busy end near the touch moves the fewest elements on insert and delete.
+ */
+final class SortedBookSide extends BookSide {
+
+    private long[] prices = new long[64];
+    private PriceLevel[] levels = new PriceLevel[64];
+    private int count;
+
+    SortedBookSide(Order.Side side, ObjectPool<PriceLevel> levelPool) {
+        super(side, levelPool);
+    }
+
+    @Override PriceLevel best() { return count == 0 ? null : levels[count - 1]; }
+    @Override int levelCount() { return this.count; }
+    @Override boolean canRest(long price) { return true; }
+
+    @Override
+    void forEachLevel(Consumer<PriceLevel> consumer) {
+        for (int i = count - 1; i >= 0; i--) {
+            consumer.accept(levels[i]);
+        }
+    }
+
+    @Override
+    boolean crosses(long price) {
+        if (count == 0) return false;
+        long bestPrice = prices[count - 1];
+        return side == Order.Side.BUY ? price <= bestPrice : price >= bestPrice;
+    }
+
+    @Override
+    long crossingQuantity(long price, long limit) {
+        long total = 0;
+        for (int i = count - 1; i >= 0 && total < limit; i--) {
+            if (side == Order.Side.BUY ? price > prices[i] : price < prices[i]) break;
+            total += levels[i].getTotalQuantity();
+        }
+        return total;
+    }
+
+    // index of the level at this price, or -(insertion point) - 1
+    private int indexOf(long price) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midPrice = prices[mid];
+            if (midPrice == price) return mid;
+
+            if (isBetter(midPrice, price)) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    PriceLevel levelAt(long price) {
+        int index = indexOf(price);
+        return index < 0 ? null : levels[index];
+    }
+
+    @Override
+    void add(Order order) {
+        long price = order.getPrice();
+
+        // most orders join the touch
+        if (count > 0 && prices[count - 1] == price) {
+            levels[count - 1].add(order);
+            return;
+        }
+
+        int index = indexOf(price);
+        if (index < 0) {
+            index = -index - 1;
+            insertLevel(index, price);
+        }
+        levels[index].add(order);
+    }
+
+    private void insertLevel(int index, long price) {
+        if (count == prices.length) {
+            prices = Arrays.copyOf(prices, count * 2);
+            levels = Arrays.copyOf(levels, count * 2);
+        }
+
+        System.arraycopy(prices, index, prices, index + 1, count - index);
+        System.arraycopy(levels, index, levels, index + 1, count - index);
+
+        prices[index] = price;
+        levels[index] = levelPool.acquire().init(price);
+        count++;
+    }
+
+    @Override
+    void remove(Order order) {
+        PriceLevel level = order.level;
+        level.remove(order);
+
+        if (!level.isEmpty()) return;
+
+        int index = (count > 0 && levels[count - 1] == level) ? count - 1 : indexOf(level.getPrice());
+        System.arraycopy(prices, index + 1, prices, index, count - index - 1);
+        System.arraycopy(levels, index + 1, levels, index, count - index - 1);
+        count--;
+        levels[count] = null;
+
+        levelPool.release(level);
+    }
+}
@@ -1,40 +1,90 @@
 package ru4dh4n.ordermatching.helper;
 
-import java.math.BigDecimal;
 import java.time.Instant;
 
+/**
+ * A stored or about-to-be-stored fill. Mutable so the publish stage can recycle them between batches.
+ */
 public class Trade {
 
+    private String instrumentId;
+
     // both access the same, but with user-id obvs
-    private final long makerOrderId;
-    private final long takerOrderId;
+    private long makerOrderId;
+    private long takerOrderId;
+    private String makerUserId;
+    private String takerUserId;
+    // whether the fill left that side with nothing open
+    private boolean makerFilled;
+    private boolean takerFilled;
+
+    // fixed-point, scaled by the instrument's scale (see Price)
+    private long price;
+    private long quantity;
+    private int scale;
+    private Instant timestamp;
+    // the journal sequence it was recorded at, 0 if it never was; both orders' updates for it carry it
+    private long sequence;
 
-    private final BigDecimal price;
-    private final BigDecimal quantity;
-    private final Instant timestamp;
+    public Trade() { }
+
+    public Trade(String instrumentId, long makerOrderid, long takerOrderid, long price, long quantity, int scale) {
+        set(instrumentId, makerOrderid, takerOrderid, price, quantity, scale, Instant.now());
+    }
 
-    public Trade(long makerOrderid, long takerOrderid, BigDecimal price, BigDecimal quantity) {
+    public Trade set(String instrumentId, long makerOrderid, long takerOrderid, long price, long quantity, int scale, Instant timestamp) {
+        this.instrumentId = instrumentId;
         this.makerOrderId = makerOrderid;
         this.takerOrderId = takerOrderid;
         this.price = price;
         this.quantity = quantity;
-        this.timestamp = Instant.now();
+        this.scale = scale;
+        this.timestamp = timestamp;
+        this.sequence = 0;
+        this.makerUserId = null;
+        this.takerUserId = null;
+        this.makerFilled = false;
+        this.takerFilled = false;
+        return this;
+    }
+
+    // only known live, not for stored trades
+    public Trade setParties(String makerUserId, boolean makerFilled, String takerUserId, boolean takerFilled) {
+        this.makerUserId = makerUserId;
+        this.makerFilled = makerFilled;
+        this.takerUserId = takerUserId;
+        this.takerFilled = takerFilled;
+        return this;
+    }
+
+    public Trade setSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
     }
 
+    public String getInstrumentId() { return this.instrumentId; }
     public long getMakerOrderId() { return this.makerOrderId; }
     public long getTakerOrderId() { return this.takerOrderId; }
-    public BigDecimal getPrice() { return this.price; }
-    public BigDecimal getQuantity() { return this.quantity; }
+    public String getMakerUserId() { return this.makerUserId; }
+    public String getTakerUserId() { return this.takerUserId; }
+    public boolean isMakerFilled() { return this.makerFilled; }
+    public boolean isTakerFilled() { return this.takerFilled; }
+    public long getPrice() { return this.price; }
+    public long getQuantity() { return this.quantity; }
+    public int getScale() { return this.scale; }
     public Instant getTimestamp() { return this.timestamp; }
+    public long getSequence() { return this.sequence; }
 
     @Override
     public String toString() {
         return "Trade{" +
-                ", price=" + price +
-                ", quantity=" + quantity +
+                "instrumentId='" + instrumentId + '\'' +
+                ", price=" + Price.toPlainString(price, scale) +
+                ", quantity=" + Price.toPlainString(quantity, scale) +
                 ", makerOrderId='" + makerOrderId + '\'' +
                 ", takerOrderId='" + takerOrderId + '\'' +
                 ", timestamp=" + timestamp +
+                ", sequence=" + sequence +
                 '}';
     }
 }
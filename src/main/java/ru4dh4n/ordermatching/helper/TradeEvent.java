@@ -0,0 +1,39 @@
+package ru4dh4n.ordermatching.helper;
+
+/**
+ * Flyweight describing one fill, reused by its {@link OrderBook} for every trade.
+ * Only valid for the duration of {@link TradeHandler#onTrade}: copy out what you need, don't keep it.
+ */
+public final class TradeEvent {
+    private Order makerOrder;
+    private Order takerOrder;
+    private long price;
+    private long quantity;
+
+    TradeEvent set(Order makerOrder, Order takerOrder, long price, long quantity) {
+        this.makerOrder = makerOrder;
+        this.takerOrder = takerOrder;
+        this.price = price;
+        this.quantity = quantity;
+        return this;
+    }
+
+    void clear() {
+        this.makerOrder = null;
+        this.takerOrder = null;
+    }
+
+    public long getMakerOrderId() { return this.makerOrder.getOrderId(); }
+    public long getTakerOrderId() { return this.takerOrder.getOrderId(); }
+    public String getMakerUserId() { return this.makerOrder.getUserId(); }
+    public String getTakerUserId() { return this.takerOrder.getUserId(); }
+
+    // fixed-point, scaled by the instrument's scale (see Price)
+    public long getPrice() { return this.price; }
+    public long getQuantity() { return this.quantity; }
+    public int getScale() { return this.makerOrder.getScale(); }
+
+    // both as they were before this fill
+    public long getMakerRemainingQuantity() { return this.makerOrder.getRemainingQuantity(); }
+    public long getTakerRemainingQuantity() { return this.takerOrder.getRemainingQuantity(); }
+}
@@ -1,13 +1,10 @@
 package ru4dh4n.ordermatching.helper;
 
-import java.math.BigDecimal;
-
 @FunctionalInterface
 public interface TradeHandler {
-    boolean onTrade(
-            long makerOrderId,
-            long takerOrderId,
-            BigDecimal price,
-            BigDecimal quantity
-    );
+    /**
+     * @param trade flyweight, only valid during this call
+     * @return false to stop matching the incoming order, the fill is then not applied
+     */
+    boolean onTrade(TradeEvent trade);
 }
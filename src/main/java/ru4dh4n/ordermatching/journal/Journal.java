@@ -0,0 +1,204 @@
+package ru4dh4n.ordermatching.journal;
+
+import ru4dh4n.ordermatching.helper.Order;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only record of every accepted order, cancel and trade, written into memory-mapped segment files
+ * that roll over at a fixed size. Every record carries the time it happened at, in epoch millis, so whatever is
+ * rebuilt from the journal has the same times as what went out live. Appends only copy into the mapping; {@link #flush()} forces everything
+ * appended since the last flush to disk in one go, and only then does it count as committed.
+ * One writer at a time, guarded by a lock file; {@link #getCommittedSequence()} may be read from anywhere.
+ */
+public final class Journal implements Closeable {
+    private final Path directory;
+    private final int segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final CRC32C crc = new CRC32C();
+
+    private MappedByteBuffer segment;
+    private int position;
+    private int dirtyFrom;
+    private long lastSequence;
+    private volatile long committedSequence;
+    // the record being written, its length is only filled in by end()
+    private int recordStart;
+    private int recordLength;
+
+    private Journal(Path directory, int segmentSize) throws IOException {
+        if (segmentSize < 1024) throw new IllegalArgumentException("segmentSize must be at least 1024 bytes");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve("journal.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IllegalStateException("Journal " + directory + " is already open elsewhere");
+        }
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed, and positions the writer after the last
+     * intact record. Anything after that (a torn write from a crash) is wiped.
+     */
+    public static Journal open(Path directory, int segmentSize) throws IOException {
+        Journal journal = new Journal(directory, segmentSize);
+        try {
+            journal.recover();
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        long[] segments = Segment.list(directory);
+        if (segments.length == 0) {
+            map(1);
+            lastSequence = 0;
+        } else {
+            long firstSequence = segments[segments.length - 1];
+            map(firstSequence);
+
+            long sequence = firstSequence;
+            int length;
+            while ((length = Segment.recordLength(segment, position, sequence, crc)) > 0) {
+                position += length;
+                sequence++;
+            }
+            lastSequence = sequence - 1;
+
+            for (int i = position; i < segment.capacity(); i++) {
+                segment.put(i, (byte) 0);
+            }
+            segment.force();
+        }
+
+        dirtyFrom = position;
+        committedSequence = lastSequence;
+    }
+
+    private void map(long firstSequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(Segment.path(directory, firstSequence),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // mapping past the end grows the file, so a new segment is all zeros
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+        }
+        position = 0;
+        dirtyFrom = 0;
+    }
+
+    public long getLastSequence() { return this.lastSequence; }
+    public long getCommittedSequence() { return this.committedSequence; }
+    public Path getDirectory() { return this.directory; }
+
+    // instrument is the handle from InstrumentRegistry
+    public long appendOrder(long orderId, String userId, int instrument, Order.Side side,
+                            long price, long quantity, int scale, long timestamp) throws IOException {
+        int offset = begin(Segment.ORDER, 8 + 1 + 8 + 8 + 1 + 4 + 8 + Segment.stringLength(userId));
+        segment.putLong(offset, orderId);
+        segment.put(offset + 8, (byte) side.ordinal());
+        segment.putLong(offset + 9, price);
+        segment.putLong(offset + 17, quantity);
+        segment.put(offset + 25, (byte) scale);
+        segment.putInt(offset + 26, instrument);
+        segment.putLong(offset + 30, timestamp);
+        putString(offset + 38, userId);
+        return end();
+    }
+
+    public long appendTrade(int instrument, long makerOrderId, long takerOrderId, long price, long quantity,
+                            int scale, boolean makerFilled, boolean takerFilled, long timestamp) throws IOException {
+        int offset = begin(Segment.TRADE, 8 + 8 + 8 + 8 + 1 + 1 + 4 + 8);
+        segment.putLong(offset, makerOrderId);
+        segment.putLong(offset + 8, takerOrderId);
+        segment.putLong(offset + 16, price);
+        segment.putLong(offset + 24, quantity);
+        segment.put(offset + 32, (byte) scale);
+        segment.put(offset + 33, (byte) ((makerFilled ? 1 : 0) | (takerFilled ? 2 : 0)));
+        segment.putInt(offset + 34, instrument);
+        segment.putLong(offset + 38, timestamp);
+        return end();
+    }
+
+    public long appendCancel(int instrument, long orderId, long cancelledQuantity, int scale, long timestamp) throws IOException {
+        int offset = begin(Segment.CANCEL, 8 + 8 + 1 + 4 + 8);
+        segment.putLong(offset, orderId);
+        segment.putLong(offset + 8, cancelledQuantity);
+        segment.put(offset + 16, (byte) scale);
+        segment.putInt(offset + 17, instrument);
+        segment.putLong(offset + 21, timestamp);
+        return end();
+    }
+
+    private int begin(byte type, int bodyLength) throws IOException {
+        recordLength = Segment.HEADER_LENGTH + bodyLength;
+        if (recordLength > segmentSize) throw new IllegalArgumentException("Record too large for a journal segment");
+        if (position + recordLength > segment.capacity()) roll();
+
+        recordStart = position;
+        segment.putLong(recordStart + Segment.SEQUENCE_OFFSET, lastSequence + 1);
+        segment.put(recordStart + Segment.TYPE_OFFSET, type);
+        return recordStart + Segment.HEADER_LENGTH;
+    }
+
+    private long end() {
+        segment.putInt(recordStart + 4, Segment.crc(segment, recordStart, recordLength, crc));
+        segment.putInt(recordStart, recordLength);
+        position += recordLength;
+        return ++lastSequence;
+    }
+
+    private int putString(int offset, String value) {
+        int length = value.length();
+        segment.putShort(offset, (short) length);
+        offset += 2;
+        for (int i = 0; i < length; i++, offset += 2) {
+            segment.putChar(offset, value.charAt(i));
+        }
+        return offset;
+    }
+
+    private void roll() throws IOException {
+        force();
+        map(lastSequence + 1);
+    }
+
+    private void force() {
+        if (position > dirtyFrom) segment.force(dirtyFrom, position - dirtyFrom);
+        dirtyFrom = position;
+    }
+
+    /**
+     * Forces everything appended so far to disk, after which it is committed.
+     */
+    public void flush() {
+        force();
+        committedSequence = lastSequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (segment != null) flush();
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ru4dh4n.ordermatching.journal;
+
+import ru4dh4n.ordermatching.helper.Order;
+
+/**
+ * Receives journal records as they are read back, in sequence order. Prices and quantities are
+ * fixed-point at the given scale (see Price), instruments are handles from InstrumentRegistry, timestamps are
+ * epoch millis.
+ */
+public interface JournalHandler {
+
+    default void onOrder(long sequence, long timestamp, long orderId, String userId, int instrument, Order.Side side,
+                         long price, long quantity, int scale) { }
+
+    // the flags say whether this fill left the maker or taker with nothing open
+    default void onTrade(long sequence, long timestamp, int instrument, long makerOrderId, long takerOrderId,
+                         long price, long quantity, int scale, boolean makerFilled, boolean takerFilled) { }
+
+    default void onCancel(long sequence, long timestamp, int instrument, long orderId, long cancelledQuantity, int scale) { }
+}
@@ -0,0 +1,156 @@
+package ru4dh4n.ordermatching.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru4dh4n.ordermatching.dao.WriteBehindDao;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.Trade;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps the database tables in step with the journal. Follows the committed tail on its own thread and
+ * stores each run of records in one transaction, together with the sequence it got to, so a restart
+ * carries on exactly where the last commit left off.
+ */
+public final class JournalProjector implements JournalHandler {
+    private static final Logger log = LoggerFactory.getLogger(JournalProjector.class);
+    // a database that keeps failing is retried less and less often, down to once per this
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Journal journal;
+    private final JournalReader reader;
+    private final WriteBehindDao writeBehindDao;
+    // handle -> instrumentId, the tables still name instruments by id
+    private final IntFunction<String> instrumentIds;
+    private final int batchSize;
+    private final long intervalNanos;
+
+    private final List<WriteBehindDao.AcceptedOrder> orders = new ArrayList<>();
+    private final List<Trade> trades = new ArrayList<>();
+    private final List<Long> completedOrderIds = new ArrayList<>();
+    private final List<WriteBehindDao.Cancel> cancels = new ArrayList<>();
+    private long projectedSequence;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public JournalProjector(Journal journal, WriteBehindDao writeBehindDao, IntFunction<String> instrumentIds,
+                            int batchSize, long intervalMillis) {
+        this.journal = journal;
+        this.reader = new JournalReader(journal.getDirectory());
+        this.writeBehindDao = writeBehindDao;
+        this.instrumentIds = instrumentIds;
+        this.batchSize = batchSize;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        this.projectedSequence = writeBehindDao.getProjectedSequence();
+    }
+
+    public long getProjectedSequence() { return this.projectedSequence; }
+
+    /**
+     * Projects everything committed so far, on the calling thread.
+     */
+    public void catchUp() throws Exception {
+        while (project() > 0) { }
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "journal-projection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (thread == null) return;
+
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long backoffNanos = intervalNanos;
+        int failures = 0;
+        while (running) {
+            try {
+                int projected = project();
+                if (failures > 0) {
+                    log.info("Journal projection recovered at sequence {} after {} failed attempts", projectedSequence, failures);
+                    failures = 0;
+                    backoffNanos = intervalNanos;
+                }
+                if (projected > 0) continue;
+            } catch (Exception e) {
+                // the database lags behind until it recovers, the journal still has everything. Said once per outage,
+                // not once per attempt
+                if (failures++ == 0) {
+                    log.error("Journal projection failed after sequence {}, retrying until the database recovers", projectedSequence, e);
+                }
+                LockSupport.parkNanos(backoffNanos);
+                backoffNanos = Math.min(backoffNanos * 2, Math.max(intervalNanos, MAX_BACKOFF_NANOS));
+                continue;
+            }
+            LockSupport.parkNanos(intervalNanos);
+        }
+
+        try {
+            catchUp();
+        } catch (Exception e) {
+            log.error("Journal projection failed after sequence {}, the rest is projected on the next start", projectedSequence, e);
+        }
+    }
+
+    // stores the next run of committed records, returning how many there were
+    private int project() throws Exception {
+        long committedSequence = journal.getCommittedSequence();
+        if (committedSequence <= projectedSequence) return 0;
+
+        try {
+            long lastSequence = reader.read(projectedSequence, committedSequence, batchSize, this);
+            if (lastSequence == projectedSequence) return 0;
+
+            writeBehindDao.writeBatch(orders, trades, completedOrderIds, cancels, lastSequence);
+            int count = (int) (lastSequence - projectedSequence);
+            projectedSequence = lastSequence;
+            return count;
+        } finally {
+            orders.clear();
+            trades.clear();
+            completedOrderIds.clear();
+            cancels.clear();
+        }
+    }
+
+    @Override
+    public void onOrder(long sequence, long timestamp, long orderId, String userId, int instrument, Order.Side side,
+                        long price, long quantity, int scale) {
+        orders.add(new WriteBehindDao.AcceptedOrder(
+                new Order(orderId, userId, instrumentIds.apply(instrument), side, quantity, price, scale),
+                Instant.ofEpochMilli(timestamp)));
+    }
+
+    @Override
+    public void onTrade(long sequence, long timestamp, int instrument, long makerOrderId, long takerOrderId,
+                        long price, long quantity, int scale, boolean makerFilled, boolean takerFilled) {
+        trades.add(new Trade().set(instrumentIds.apply(instrument), makerOrderId, takerOrderId, price, quantity, scale,
+                Instant.ofEpochMilli(timestamp)).setSequence(sequence));
+        if (makerFilled) completedOrderIds.add(makerOrderId);
+        if (takerFilled) completedOrderIds.add(takerOrderId);
+    }
+
+    @Override
+    public void onCancel(long sequence, long timestamp, int instrument, long orderId, long cancelledQuantity, int scale) {
+        cancels.add(new WriteBehindDao.Cancel(orderId, sequence, Instant.ofEpochMilli(timestamp)));
+    }
+}
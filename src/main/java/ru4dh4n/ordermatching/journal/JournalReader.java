@@ -0,0 +1,135 @@
+package ru4dh4n.ordermatching.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru4dh4n.ordermatching.helper.Order;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads a journal back in sequence order, either once from the start or repeatedly to follow the tail of a
+ * journal that is still being written. Remembers where it got to, so reading on from the last record
+ * returned doesn't have to find its place again. Not thread-safe.
+ */
+public final class JournalReader {
+    private static final Logger log = LoggerFactory.getLogger(JournalReader.class);
+    private static final Order.Side[] SIDES = Order.Side.values();
+
+    private final Path directory;
+    private final CRC32C crc = new CRC32C();
+    private final StringBuilder chars = new StringBuilder();
+
+    private MappedByteBuffer segment;
+    private long segmentFirstSequence = -1;
+    private int position;
+    // the sequence of the record at position
+    private long nextSequence = -1;
+
+    public JournalReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Hands every intact record after {@code afterSequence}, up to and including {@code toSequence}, to the
+     * handler, stopping early after {@code maxRecords}.
+     *
+     * @return the sequence of the last record handed over, or {@code afterSequence} if there was nothing
+     */
+    public long read(long afterSequence, long toSequence, int maxRecords, JournalHandler handler) throws IOException {
+        if (afterSequence >= toSequence || maxRecords <= 0) return afterSequence;
+        if (nextSequence != afterSequence + 1 && !seek(afterSequence + 1)) return afterSequence;
+
+        long lastSequence = afterSequence;
+        int count = 0;
+        while (count < maxRecords && nextSequence <= toSequence) {
+            int length = Segment.recordLength(segment, position, nextSequence, crc);
+            if (length == 0) {
+                // the writer rolls to a segment named after the next sequence, if there is none we are at the end
+                if (segmentFirstSequence == nextSequence || !map(nextSequence)) break;
+                continue;
+            }
+
+            dispatch(handler, nextSequence);
+            lastSequence = nextSequence++;
+            position += length;
+            count++;
+        }
+        return lastSequence;
+    }
+
+    private boolean seek(long sequence) throws IOException {
+        long[] segments = Segment.list(directory);
+        long firstSequence = -1;
+        for (long segmentStart : segments) {
+            if (segmentStart > sequence) break;
+            firstSequence = segmentStart;
+        }
+        if (firstSequence < 0 || !map(firstSequence)) {
+            nextSequence = -1;
+            return false;
+        }
+
+        int length;
+        while (nextSequence < sequence && (length = Segment.recordLength(segment, position, nextSequence, crc)) > 0) {
+            position += length;
+            nextSequence++;
+        }
+        if (nextSequence != sequence) {
+            nextSequence = -1;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean map(long firstSequence) throws IOException {
+        Path path = Segment.path(directory, firstSequence);
+        if (!Files.exists(path)) return false;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        segmentFirstSequence = firstSequence;
+        position = 0;
+        nextSequence = firstSequence;
+        return true;
+    }
+
+    private void dispatch(JournalHandler handler, long sequence) {
+        int offset = position + Segment.HEADER_LENGTH;
+        switch (segment.get(position + Segment.TYPE_OFFSET)) {
+            case Segment.ORDER -> {
+                handler.onOrder(sequence, segment.getLong(offset + 30), segment.getLong(offset), getString(offset + 38),
+                        segment.getInt(offset + 26), SIDES[segment.get(offset + 8)],
+                        segment.getLong(offset + 9), segment.getLong(offset + 17), segment.get(offset + 25));
+            }
+            case Segment.TRADE -> {
+                byte flags = segment.get(offset + 33);
+                handler.onTrade(sequence, segment.getLong(offset + 38), segment.getInt(offset + 34), segment.getLong(offset),
+                        segment.getLong(offset + 8),
+                        segment.getLong(offset + 16), segment.getLong(offset + 24), segment.get(offset + 32),
+                        (flags & 1) != 0, (flags & 2) != 0);
+            }
+            case Segment.CANCEL -> handler.onCancel(sequence, segment.getLong(offset + 21), segment.getInt(offset + 17),
+                    segment.getLong(offset), segment.getLong(offset + 8), segment.get(offset + 16));
+            default -> {
+                // written by a newer version, skip it
+                log.warn("Skipping journal record {} of unknown type {}", sequence, segment.get(position + Segment.TYPE_OFFSET));
+            }
+        }
+    }
+
+    private String getString(int offset) {
+        int length = segment.getShort(offset);
+        chars.setLength(0);
+        for (int i = 0; i < length; i++) {
+            chars.append(segment.getChar(offset + 2 + i * 2));
+        }
+        return chars.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package ru4dh4n.ordermatching.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Layout of a journal segment. Each segment file is named after the sequence of its first record and is
+ * pre-sized when created, so anything past the last record reads as zeros. A record is
+ * <pre>
+ *   int length | int crc32c | long sequence | byte type | body
+ * </pre>
+ * where the crc covers everything after itself, and the length is written last so a record is only ever
+ * seen whole. Strings in a body are a short char count followed by the chars; instruments are the int
+ * handle from the instrument registry, and every body has the epoch-millis time the record happened at.
+ */
+final class Segment {
+    static final int HEADER_LENGTH = 4 + 4 + 8 + 1;
+    static final int SEQUENCE_OFFSET = 8;
+    static final int TYPE_OFFSET = 16;
+
+    static final byte ORDER = 1;
+    static final byte TRADE = 2;
+    static final byte CANCEL = 3;
+
+    private static final String SUFFIX = ".journal";
+
+    private Segment() { }
+
+    static Path path(Path directory, long firstSequence) {
+        return directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+    }
+
+    /**
+     * @return the first sequence of every segment in the directory, oldest first
+     */
+    static long[] list(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return new long[0];
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - SUFFIX.length())))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    static int stringLength(String value) {
+        if (value.length() > Short.MAX_VALUE) throw new IllegalArgumentException("String too long for the journal");
+        return 2 + value.length() * 2;
+    }
+
+    /**
+     * @return the length of the record at {@code position} if it is intact and carries {@code expectedSequence},
+     * otherwise 0, which marks the end of the segment's usable data
+     */
+    static int recordLength(ByteBuffer segment, int position, long expectedSequence, CRC32C crc) {
+        if (position + HEADER_LENGTH > segment.capacity()) return 0;
+
+        int length = segment.getInt(position);
+        if (length < HEADER_LENGTH || position + length > segment.capacity()) return 0;
+        if (segment.getLong(position + SEQUENCE_OFFSET) != expectedSequence) return 0;
+
+        return crc(segment, position, length, crc) == segment.getInt(position + 4) ? length : 0;
+    }
+
+    // crc of a record from its sequence onwards, without allocating a view of the buffer
+    static int crc(ByteBuffer segment, int position, int length, CRC32C crc) {
+        int limit = segment.limit();
+        int oldPosition = segment.position();
+
+        crc.reset();
+        segment.limit(position + length).position(position + SEQUENCE_OFFSET);
+        crc.update(segment);
+        segment.limit(limit).position(oldPosition);
+
+        return (int) crc.getValue();
+    }
+}
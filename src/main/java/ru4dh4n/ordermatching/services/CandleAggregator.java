@@ -0,0 +1,334 @@
+package ru4dh4n.ordermatching.services;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
+import ru4dh4n.ordermatching.dao.CandleDao;
+import ru4dh4n.ordermatching.grpc.Candle;
+import ru4dh4n.ordermatching.grpc.CandleInterval;
+import ru4dh4n.ordermatching.grpc.FixedPoint;
+import ru4dh4n.ordermatching.helper.CandleSeries;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Price;
+import ru4dh4n.ordermatching.helper.Trade;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster.SlowConsumerPolicy;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds OHLCV bars at every {@link CandleSeries.Interval} from the trades the publish stage hands over, so
+ * nobody has to rebuild them from the trades table. Every {@code candles.flush-ms} bars whose bucket has ended
+ * are closed, and whatever changed goes to subscribers and to the candles table in one batch. The bar still
+ * being built is stored too, so a restart carries on with it rather than starting the bucket over.
+ */
+@Service
+public class CandleAggregator {
+
+    private static final Logger log = LoggerFactory.getLogger(CandleAggregator.class);
+    private static final CandleSeries.Interval[] INTERVALS = CandleSeries.Interval.values();
+
+    private final CandleDao candleDao;
+    private final InstrumentRegistry instrumentRegistry;
+    private final int history;
+    private final int queueCapacity;
+    private final ExecutorService drainExecutor;
+    private final long flushMillis;
+    // the flush is a SQLite transaction, so it gets a thread of its own rather than the shared scheduler
+    private final ScheduledExecutorService flushExecutor;
+
+    // indexed by instrument handle, see InstrumentRegistry
+    private volatile InstrumentCandles[] instruments = new InstrumentCandles[64];
+    // bars that didn't make it into the table last time, guarded by itself, which also keeps flushes apart
+    private final List<CandleDao.StoredBar> unwritten = new ArrayList<>();
+
+    public CandleAggregator(CandleDao candleDao, InstrumentRegistry instrumentRegistry,
+                            // closed bars kept in memory per instrument and interval, older ones come from the table
+                            @Value("${candles.history:1000}") int history,
+                            @Value("${market-data.queue-capacity:1024}") int queueCapacity,
+                            @Value("${market-data.threads:2}") int threads,
+                            @Value("${candles.flush-ms:1000}") long flushMillis) {
+        this.candleDao = candleDao;
+        this.instrumentRegistry = instrumentRegistry;
+        this.history = history;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.drainExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "market-candles-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushMillis = flushMillis;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "market-candles-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void resume() {
+        long now = epochNanos(Instant.now());
+        for (CandleDao.StoredBar stored : candleDao.getOpenBars(id -> instrumentRegistry.getInstrument(id).map(Instrument::scale).orElse(null))) {
+            int instrument = instrumentRegistry.getHandle(stored.instrumentId());
+            InstrumentCandles candles = getOrCreate(instrument, stored.instrumentId(), stored.scale());
+            CandleSeries.Bar bar = stored.bar();
+
+            if (stored.interval().bucketOf(now) == bar.openTimeNanos()) {
+                candles.series[stored.interval().ordinal()].resume(bar);
+            } else {
+                // its bucket ended while we were down, so it's as complete as it will ever be
+                unwritten.add(new CandleDao.StoredBar(stored.instrumentId(), stored.scale(), stored.interval(), closed(bar)));
+            }
+        }
+
+        flushExecutor.scheduleWithFixedDelay(() -> {
+            // an exception would cancel the flush for good
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Failed to flush the candles", e);
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // the engine has already stopped by now, so this stores the last of it
+    @PreDestroy
+    public void shutdown() {
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        drainExecutor.shutdownNow();
+    }
+
+    private InstrumentCandles candlesOf(int instrument) {
+        InstrumentCandles[] current = instruments;
+        return instrument >= 0 && instrument < current.length ? current[instrument] : null;
+    }
+
+    private synchronized InstrumentCandles getOrCreate(int instrument, String instrumentId, int scale) {
+        InstrumentCandles[] current = instruments;
+        if (instrument < current.length && current[instrument] != null) return current[instrument];
+
+        if (instrument >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, instrument + 1));
+        }
+        current[instrument] = new InstrumentCandles(instrumentId, scale, history);
+        instruments = current;
+        return current[instrument];
+    }
+
+    /**
+     * Called on the publish stage's thread for every trade, in the order they were matched.
+     */
+    public void onNewTrade(int instrument, Trade trade) {
+        InstrumentCandles candles = candlesOf(instrument);
+        if (candles == null) candles = getOrCreate(instrument, trade.getInstrumentId(), trade.getScale());
+
+        long time = epochNanos(trade.getTimestamp());
+        synchronized (candles) {
+            for (int i = 0; i < INTERVALS.length; i++) {
+                CandleSeries.Bar closed = candles.series[i].add(time, trade.getPrice(), trade.getQuantity());
+                if (closed != null) {
+                    candles.closed.add(new CandleDao.StoredBar(candles.instrumentId, candles.scale, INTERVALS[i], closed));
+                    publish(candles, INTERVALS[i], closed);
+                }
+                candles.dirty[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Closes the bars whose bucket has ended and sends out and stores whatever changed since the last flush.
+     * Runs on the flush thread every {@code candles.flush-ms}, and once more on shutdown.
+     */
+    public void flush() {
+        synchronized (unwritten) {
+            flush(epochNanos(Instant.now()));
+        }
+    }
+
+    private void flush(long now) {
+        List<CandleDao.StoredBar> writes = new ArrayList<>(unwritten);
+        unwritten.clear();
+
+        for (InstrumentCandles candles : instruments) {
+            if (candles == null) continue;
+            synchronized (candles) {
+                writes.addAll(candles.closed);
+                candles.closed.clear();
+
+                for (int i = 0; i < INTERVALS.length; i++) {
+                    CandleSeries.Bar closed = candles.series[i].closeIfEnded(now);
+                    if (closed != null) {
+                        writes.add(new CandleDao.StoredBar(candles.instrumentId, candles.scale, INTERVALS[i], closed));
+                        publish(candles, INTERVALS[i], closed);
+                    } else if (candles.dirty[i]) {
+                        CandleSeries.Bar current = candles.series[i].current();
+                        writes.add(new CandleDao.StoredBar(candles.instrumentId, candles.scale, INTERVALS[i], current));
+                        publish(candles, INTERVALS[i], current);
+                    }
+                    candles.dirty[i] = false;
+                }
+            }
+        }
+
+        try {
+            candleDao.writeBatch(writes);
+        } catch (Exception e) {
+            // kept for the next flush, in order, so an open bar is never written over by an older copy of itself
+            unwritten.addAll(writes);
+            log.warn("Failed to store {} candles, kept for the next flush", writes.size(), e);
+        }
+    }
+
+    /**
+     * The last {@code limit} bars that opened between {@code from} and {@code to} inclusive, oldest first. Recent
+     * bars come from memory, anything older than that from the table.
+     */
+    public List<CandleSeries.Bar> getCandles(int instrument, Instrument details, CandleSeries.Interval interval,
+                                             long fromNanos, long toNanos, int limit) {
+        List<CandleSeries.Bar> recent = List.of();
+        long oldestHeld = Long.MAX_VALUE;
+        InstrumentCandles candles = candlesOf(instrument);
+        if (candles != null) {
+            synchronized (candles) {
+                CandleSeries series = candles.series[interval.ordinal()];
+                recent = series.range(fromNanos, toNanos, limit);
+                oldestHeld = series.oldestOpenTime();
+            }
+        }
+        if (recent.size() >= limit || fromNanos >= oldestHeld) return recent;
+
+        List<CandleSeries.Bar> bars = new ArrayList<>(candleDao.getCandles(details.instrumentId(), details.scale(), interval,
+                fromNanos, Math.min(toNanos, oldestHeld - 1), limit - recent.size()));
+        bars.addAll(recent);
+        return bars;
+    }
+
+    /**
+     * Sends the bar being built straight away, then every change to it once per flush, then the next one.
+     * Must be called from the service method, before it returns, so the ready handler is in place.
+     */
+    public MarketDataSubscriber subscribe(int instrument, Instrument details, CandleSeries.Interval interval,
+                                          ServerCallStreamObserver<EncodedMessage> observer, NumberFormat numberFormat) {
+        InstrumentCandles candles = getOrCreate(instrument, details.instrumentId(), details.scale());
+        // a client that falls behind only needs the latest state of the bar, which is what it's left with
+        MarketDataSubscriber subscriber = new MarketDataSubscriber(observer, numberFormat, SlowConsumerPolicy.CONFLATE,
+                queueCapacity, drainExecutor, closed -> removeSubscriber(instrument, interval, closed));
+
+        synchronized (candles) {
+            CandleSeries.Bar current = candles.series[interval.ordinal()].current();
+            if (current != null) {
+                EncodedMessage encoded = EncodedMessage.of(toCandle(candles.instrumentId, interval, current, candles.scale, numberFormat));
+                subscriber.offer(encoded, encoded, latest -> latest);
+            }
+            candles.subscribers[interval.ordinal()].add(subscriber);
+        }
+        return subscriber;
+    }
+
+    public void removeSubscriber(int instrument, CandleSeries.Interval interval, MarketDataSubscriber subscriber) {
+        subscriber.cancel();
+        InstrumentCandles candles = candlesOf(instrument);
+        if (candles != null) candles.subscribers[interval.ordinal()].remove(subscriber);
+    }
+
+    // guarded by candles
+    private static void publish(InstrumentCandles candles, CandleSeries.Interval interval, CandleSeries.Bar bar) {
+        EncodedMessage decimal = null;
+        EncodedMessage fixedPoint = null;
+        for (MarketDataSubscriber subscriber : candles.subscribers[interval.ordinal()]) {
+            EncodedMessage encoded;
+            if (subscriber.numberFormat() == NumberFormat.FIXED_POINT) {
+                if (fixedPoint == null) fixedPoint = EncodedMessage.of(toCandle(candles.instrumentId, interval, bar, candles.scale, NumberFormat.FIXED_POINT));
+                encoded = fixedPoint;
+            } else {
+                if (decimal == null) decimal = EncodedMessage.of(toCandle(candles.instrumentId, interval, bar, candles.scale, NumberFormat.DECIMAL));
+                encoded = decimal;
+            }
+            subscriber.offer(encoded, encoded, latest -> latest);
+        }
+    }
+
+    public static Candle toCandle(String instrumentId, CandleSeries.Interval interval, CandleSeries.Bar bar, int scale,
+                                  NumberFormat numberFormat) {
+        Candle.Builder candle = Candle.newBuilder()
+                .setInstrumentId(instrumentId)
+                .setInterval(CandleInterval.valueOf(interval.name()))
+                .setOpenTimeNs(bar.openTimeNanos())
+                .setTradeCount(bar.tradeCount())
+                .setClosed(bar.closed());
+        if (numberFormat == NumberFormat.FIXED_POINT) {
+            candle.setFixedOpen(toFixedPoint(bar.open(), scale))
+                    .setFixedHigh(toFixedPoint(bar.high(), scale))
+                    .setFixedLow(toFixedPoint(bar.low(), scale))
+                    .setFixedClose(toFixedPoint(bar.close(), scale))
+                    .setFixedVolume(toFixedPoint(bar.volume(), scale))
+                    .setFixedVwap(toFixedPoint(bar.vwap(), scale));
+        } else {
+            candle.setOpen(Price.toPlainString(bar.open(), scale))
+                    .setHigh(Price.toPlainString(bar.high(), scale))
+                    .setLow(Price.toPlainString(bar.low(), scale))
+                    .setClose(Price.toPlainString(bar.close(), scale))
+                    .setVolume(Price.toPlainString(bar.volume(), scale))
+                    .setVwap(Price.toPlainString(bar.vwap(), scale));
+        }
+        return candle.build();
+    }
+
+    private static FixedPoint toFixedPoint(long scaled, int scale) {
+        return FixedPoint.newBuilder().setMantissa(scaled).setScale(scale).build();
+    }
+
+    private static CandleSeries.Bar closed(CandleSeries.Bar bar) {
+        return new CandleSeries.Bar(bar.openTimeNanos(), bar.open(), bar.high(), bar.low(), bar.close(), bar.volume(),
+                bar.notional(), bar.tradeCount(), true);
+    }
+
+    private static long epochNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private static final class InstrumentCandles {
+        final String instrumentId;
+        final int scale;
+        // all indexed by interval ordinal
+        @SuppressWarnings("unchecked")
+        final List<MarketDataSubscriber>[] subscribers = new List[INTERVALS.length];
+
+        // guarded by this
+        final CandleSeries[] series = new CandleSeries[INTERVALS.length];
+        // the open bar changed since the last flush
+        final boolean[] dirty = new boolean[INTERVALS.length];
+        // closed by a trade since the last flush, waiting to be stored
+        final List<CandleDao.StoredBar> closed = new ArrayList<>();
+
+        InstrumentCandles(String instrumentId, int scale, int history) {
+            this.instrumentId = instrumentId;
+            this.scale = scale;
+            for (int i = 0; i < INTERVALS.length; i++) {
+                series[i] = new CandleSeries(INTERVALS[i], history);
+                subscribers[i] = new CopyOnWriteArrayList<>();
+            }
+        }
+    }
+}
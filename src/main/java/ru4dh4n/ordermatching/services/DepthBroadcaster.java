@@ -0,0 +1,228 @@
+package ru4dh4n.ordermatching.services;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
+import ru4dh4n.ordermatching.grpc.DepthLevel;
+import ru4dh4n.ordermatching.grpc.DepthUpdate;
+import ru4dh4n.ordermatching.grpc.FixedPoint;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.Price;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster.SlowConsumerPolicy;
+
+import jakarta.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The L2 feed. The match stage reports every level an order or cancel changed, already aggregated, and the
+ * publish stage hands them over here in ring order. Changes to the same level are merged until the next flush,
+ * which is the end of each published batch, or every {@code market-data.depth-conflation-ms} if that's set, and
+ * each flush goes out as one numbered update per instrument.
+ * <p>
+ * A new subscriber's snapshot is taken by the book's own shard as a DEPTH command goes past, and it joins the
+ * feed here when that command is published, so the snapshot and the updates after it line up exactly.
+ */
+@Service
+public class DepthBroadcaster {
+
+    private final long conflationMillis;
+    private final int queueCapacity;
+    private final ExecutorService drainExecutor;
+    private final ScheduledExecutorService flushExecutor;
+
+    // indexed by instrument handle, see InstrumentRegistry
+    private volatile InstrumentDepth[] instruments = new InstrumentDepth[64];
+
+    public DepthBroadcaster(@Value("${market-data.depth-conflation-ms:0}") long conflationMillis,
+                            @Value("${market-data.queue-capacity:1024}") int queueCapacity,
+                            @Value("${market-data.threads:2}") int threads) {
+        this.conflationMillis = conflationMillis;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.drainExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "market-depth-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (conflationMillis > 0) {
+            this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "market-depth-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flushExecutor.scheduleAtFixedRate(this::flushAll, conflationMillis, conflationMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.flushExecutor = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flushExecutor != null) flushExecutor.shutdownNow();
+        drainExecutor.shutdownNow();
+    }
+
+    /**
+     * A depth stream that hasn't joined the feed yet, hand it to the engine to have its snapshot taken.
+     * Must be called from the service method, before it returns, so the ready handler is in place.
+     */
+    public MarketDataSubscriber newSubscriber(int instrument, ServerCallStreamObserver<EncodedMessage> observer, NumberFormat numberFormat) {
+        // a client that misses an update has a broken book, so it's sent off to subscribe again rather than skipped ahead
+        return new MarketDataSubscriber(observer, numberFormat, SlowConsumerPolicy.DISCONNECT, queueCapacity, drainExecutor,
+                subscriber -> removeSubscriber(instrument, subscriber));
+    }
+
+    // the engine didn't know the instrument after all
+    public void reject(MarketDataSubscriber subscriber) {
+        subscriber.close(Status.NOT_FOUND.withDescription("Unknown instrument"));
+    }
+
+    public void removeSubscriber(int instrument, MarketDataSubscriber subscriber) {
+        subscriber.cancel();
+        InstrumentDepth depth = depthOf(instrument);
+        if (depth != null) depth.subscribers.remove(subscriber);
+    }
+
+    private InstrumentDepth depthOf(int instrument) {
+        InstrumentDepth[] current = instruments;
+        return instrument >= 0 && instrument < current.length ? current[instrument] : null;
+    }
+
+    private synchronized InstrumentDepth getOrCreate(int instrument, String instrumentId, int scale) {
+        InstrumentDepth[] current = instruments;
+        if (instrument >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, instrument + 1));
+        }
+        if (current[instrument] == null) current[instrument] = new InstrumentDepth(instrumentId, scale);
+        instruments = current;
+        return current[instrument];
+    }
+
+    /**
+     * Called on the publish stage's thread with the snapshot the shard took, after every change before it
+     * and before any change after it.
+     * @param bids price, quantity pairs, best first, same for asks
+     */
+    public void join(int instrument, String instrumentId, int scale, MarketDataSubscriber subscriber, long[] bids, long[] asks) {
+        InstrumentDepth depth = getOrCreate(instrument, instrumentId, scale);
+        synchronized (depth) {
+            if (subscriber.isClosed()) return;
+            // the snapshot already has whatever is pending, but everyone else needs it under its own number first
+            flush(depth);
+
+            DepthUpdate.Builder snapshot = DepthUpdate.newBuilder()
+                    .setInstrumentId(instrumentId)
+                    .setSequence(depth.sequence)
+                    .setSnapshot(true);
+            for (int i = 0; i < bids.length; i += 2) {
+                snapshot.addBids(toLevel(bids[i], bids[i + 1], scale, subscriber.numberFormat()));
+            }
+            for (int i = 0; i < asks.length; i += 2) {
+                snapshot.addAsks(toLevel(asks[i], asks[i + 1], scale, subscriber.numberFormat()));
+            }
+
+            subscriber.offer(EncodedMessage.of(snapshot.build()), null, null);
+            depth.subscribers.add(subscriber);
+        }
+    }
+
+    /**
+     * Called on the publish stage's thread for every level a command changed, in ring order.
+     */
+    public void onLevelChange(int instrument, Order.Side side, long price, long quantity) {
+        InstrumentDepth depth = depthOf(instrument);
+        // nobody to tell, a later subscriber gets it in its snapshot
+        if (depth == null || depth.subscribers.isEmpty()) return;
+
+        synchronized (depth) {
+            (side == Order.Side.BUY ? depth.pendingBids : depth.pendingAsks).put(price, quantity);
+        }
+    }
+
+    // called on the publish stage's thread once it has handed over a whole batch
+    public void endOfBatch() {
+        if (conflationMillis == 0) flushAll();
+    }
+
+    private void flushAll() {
+        for (InstrumentDepth depth : instruments) {
+            if (depth == null) continue;
+            synchronized (depth) {
+                flush(depth);
+            }
+        }
+    }
+
+    // guarded by depth
+    private static void flush(InstrumentDepth depth) {
+        if (depth.pendingBids.isEmpty() && depth.pendingAsks.isEmpty()) return;
+
+        depth.sequence++;
+        EncodedMessage decimal = null;
+        EncodedMessage fixedPoint = null;
+        for (MarketDataSubscriber subscriber : depth.subscribers) {
+            if (subscriber.numberFormat() == NumberFormat.FIXED_POINT) {
+                if (fixedPoint == null) fixedPoint = EncodedMessage.of(toUpdate(depth, NumberFormat.FIXED_POINT));
+                subscriber.offer(fixedPoint, null, null);
+            } else {
+                if (decimal == null) decimal = EncodedMessage.of(toUpdate(depth, NumberFormat.DECIMAL));
+                subscriber.offer(decimal, null, null);
+            }
+        }
+
+        depth.pendingBids.clear();
+        depth.pendingAsks.clear();
+    }
+
+    private static DepthUpdate toUpdate(InstrumentDepth depth, NumberFormat numberFormat) {
+        DepthUpdate.Builder update = DepthUpdate.newBuilder()
+                .setInstrumentId(depth.instrumentId)
+                .setSequence(depth.sequence);
+        depth.pendingBids.forEach((price, quantity) -> update.addBids(toLevel(price, quantity, depth.scale, numberFormat)));
+        depth.pendingAsks.forEach((price, quantity) -> update.addAsks(toLevel(price, quantity, depth.scale, numberFormat)));
+        return update.build();
+    }
+
+    private static DepthLevel toLevel(long price, long quantity, int scale, NumberFormat numberFormat) {
+        if (numberFormat == NumberFormat.FIXED_POINT) {
+            return DepthLevel.newBuilder()
+                    .setFixedPrice(FixedPoint.newBuilder().setMantissa(price).setScale(scale))
+                    .setFixedQuantity(FixedPoint.newBuilder().setMantissa(quantity).setScale(scale))
+                    .build();
+        }
+        return DepthLevel.newBuilder()
+                .setPrice(Price.toPlainString(price, scale))
+                .setQuantity(Price.toPlainString(quantity, scale))
+                .build();
+    }
+
+    private static final class InstrumentDepth {
+        final String instrumentId;
+        final int scale;
+        final List<MarketDataSubscriber> subscribers = new CopyOnWriteArrayList<>();
+
+        // guarded by this
+        long sequence;
+        // changed since the last flush, price -> what's left there, kept best first
+        final Map<Long, Long> pendingBids = new TreeMap<>(Collections.reverseOrder());
+        final Map<Long, Long> pendingAsks = new TreeMap<>();
+
+        InstrumentDepth(String instrumentId, int scale) {
+            this.instrumentId = instrumentId;
+            this.scale = scale;
+        }
+    }
+}
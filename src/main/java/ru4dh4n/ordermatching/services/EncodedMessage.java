@@ -0,0 +1,71 @@
+package ru4dh4n.ordermatching.services;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A protobuf message that has already been serialized. Fanned out to many calls it is encoded once,
+ * and each call only wraps the same bytes in a stream of its own; the bytes are immutable, so sharing
+ * them needs no reference counting, they go once the last call has written them.
+ */
+public final class EncodedMessage {
+
+    /**
+     * Writes the bytes as they are. Use it as the response marshaller of a method in place of the proto one,
+     * clients see no difference on the wire.
+     */
+    public static final MethodDescriptor.Marshaller<EncodedMessage> MARSHALLER = new MethodDescriptor.Marshaller<>() {
+        @Override
+        public InputStream stream(EncodedMessage value) {
+            return new EncodedStream(value.bytes);
+        }
+
+        @Override
+        public EncodedMessage parse(InputStream stream) {
+            try {
+                return new EncodedMessage(stream.readAllBytes());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not read message", e);
+            }
+        }
+    };
+
+    private final byte[] bytes;
+
+    private EncodedMessage(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static EncodedMessage of(MessageLite message) {
+        return new EncodedMessage(message.toByteArray());
+    }
+
+    public int size() { return this.bytes.length; }
+
+    /**
+     * @return a copy, for tests and anything that wants to decode it again
+     */
+    public byte[] toByteArray() { return this.bytes.clone(); }
+
+    // gRPC's framer copies a Drainable straight into its buffers and uses KnownLength to size the frame up front
+    private static final class EncodedStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        EncodedStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
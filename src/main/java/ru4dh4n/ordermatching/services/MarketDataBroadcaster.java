@@ -1,41 +1,136 @@
 package ru4dh4n.ordermatching.services;
 
-import io.grpc.stub.StreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
+import ru4dh4n.ordermatching.grpc.FixedPoint;
 import ru4dh4n.ordermatching.grpc.Trade;
+import ru4dh4n.ordermatching.helper.Price;
 
+import jakarta.annotation.PreDestroy;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-// FIXME: probably should fix this
-
+/**
+ * Fans trades out to market data subscribers. The publish stage only encodes the message, once per number
+ * format however many subscribers there are, and drops it into each subscriber's bounded queue; the queues
+ * are drained on a small pool of their own, and only while the client's transport is ready to take more.
+ * A subscriber whose queue fills up is dealt with by the slow-consumer policy, so a slow client never holds
+ * up matching or anyone else.
+ */
 @Service
 public class MarketDataBroadcaster {
-    private final Map<String, List<StreamObserver<Trade>>> observers = new ConcurrentHashMap<>();
 
-    public void addObserver(String instrumentId, StreamObserver<Trade> observer) {
-        observers.computeIfAbsent(instrumentId, k -> new CopyOnWriteArrayList<>()).add(observer);
+    public enum SlowConsumerPolicy {
+        // the newest queued trade is replaced, the client always ends up with the latest price
+        CONFLATE,
+        // new trades are dropped until there is room again, the next one through is flagged as a gap
+        DROP,
+        // the stream is closed with RESOURCE_EXHAUSTED
+        DISCONNECT
+    }
+
+    private final SlowConsumerPolicy policy;
+    private final int queueCapacity;
+    // each subscriber has at most one drain queued here, so it never grows past the subscriber count
+    private final ExecutorService drainExecutor;
+
+    // subscribers are indexed by instrument handle, see InstrumentRegistry
+    @SuppressWarnings("unchecked")
+    private volatile List<MarketDataSubscriber>[] subscribers = new List[64];
+
+    public MarketDataBroadcaster(@Value("${market-data.slow-consumer-policy:DROP}") SlowConsumerPolicy policy,
+                                 @Value("${market-data.queue-capacity:1024}") int queueCapacity,
+                                 @Value("${market-data.threads:2}") int threads) {
+        this.policy = policy;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.drainExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "market-data-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    public void removeObserver(String instrumentId, StreamObserver<Trade> observer) {
-        if (observers.containsKey(instrumentId)) {
-            observers.get(instrumentId).remove(observer);
+    @PreDestroy
+    public void shutdown() {
+        drainExecutor.shutdownNow();
+    }
+
+    /**
+     * Must be called from the service method, before it returns, so the ready handler is in place.
+     */
+    public synchronized void addObserver(int instrument, ServerCallStreamObserver<EncodedMessage> observer, NumberFormat numberFormat) {
+        List<MarketDataSubscriber>[] current = subscribers;
+        if (instrument >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, instrument + 1));
         }
+        if (current[instrument] == null) current[instrument] = new CopyOnWriteArrayList<>();
+
+        current[instrument].add(new MarketDataSubscriber(observer, numberFormat, policy, queueCapacity, drainExecutor,
+                subscriber -> removeObserver(instrument, observer)));
+        subscribers = current;
     }
 
-    public void onNewTrade(Trade trade) {
-        String instrumentId = trade.getInstrumentId();
+    public void removeObserver(int instrument, ServerCallStreamObserver<EncodedMessage> observer) {
+        List<MarketDataSubscriber> subscribed = subscribersOf(instrument);
+        if (subscribed != null) subscribed.removeIf(subscriber -> subscriber.observer() == observer);
+    }
 
-        if (!observers.containsKey(instrumentId)) return;
+    private List<MarketDataSubscriber> subscribersOf(int instrument) {
+        List<MarketDataSubscriber>[] current = subscribers;
+        return instrument >= 0 && instrument < current.length ? current[instrument] : null;
+    }
+
+    // called on the publish stage's thread, the trade is recycled afterwards so nothing may hold on to it
+    public void onNewTrade(int instrument, ru4dh4n.ordermatching.helper.Trade trade) {
+        List<MarketDataSubscriber> subscribed = subscribersOf(instrument);
+        if (subscribed == null || subscribed.isEmpty()) return;
 
-        for (StreamObserver<Trade> observer : observers.get(instrumentId)) {
-            try {
-                observer.onNext(trade);
-            } catch (Exception e) {
-                removeObserver(instrumentId, observer);
+        Trade decimal = null;
+        EncodedMessage encodedDecimal = null;
+        Trade fixedPoint = null;
+        EncodedMessage encodedFixedPoint = null;
+        for (MarketDataSubscriber subscriber : subscribed) {
+            if (subscriber.numberFormat() == NumberFormat.FIXED_POINT) {
+                if (fixedPoint == null) {
+                    fixedPoint = toMessage(trade, NumberFormat.FIXED_POINT);
+                    encodedFixedPoint = EncodedMessage.of(fixedPoint);
+                }
+                subscriber.offer(encodedFixedPoint, fixedPoint, MarketDataBroadcaster::withGap);
+            } else {
+                if (decimal == null) {
+                    decimal = toMessage(trade, NumberFormat.DECIMAL);
+                    encodedDecimal = EncodedMessage.of(decimal);
+                }
+                subscriber.offer(encodedDecimal, decimal, MarketDataBroadcaster::withGap);
             }
         }
     }
+
+    private static Trade toMessage(ru4dh4n.ordermatching.helper.Trade trade, NumberFormat numberFormat) {
+        Trade.Builder message = Trade.newBuilder()
+                // a taker only ever meets a given maker once
+                .setTradeId(trade.getMakerOrderId() + "-" + trade.getTakerOrderId())
+                .setInstrumentId(trade.getInstrumentId())
+                .setTimestampNs(trade.getTimestamp().getEpochSecond() * 1_000_000_000L + trade.getTimestamp().getNano());
+
+        if (numberFormat == NumberFormat.FIXED_POINT) {
+            message.setFixedPrice(FixedPoint.newBuilder().setMantissa(trade.getPrice()).setScale(trade.getScale()))
+                    .setFixedQuantity(FixedPoint.newBuilder().setMantissa(trade.getQuantity()).setScale(trade.getScale()));
+        } else {
+            message.setPrice(Price.toDouble(trade.getPrice(), trade.getScale()))
+                    .setQuantity(Price.toDouble(trade.getQuantity(), trade.getScale()));
+        }
+        return message.build();
+    }
+
+    private static EncodedMessage withGap(Trade trade) {
+        return EncodedMessage.of(trade.toBuilder().setGap(true).build());
+    }
 }
@@ -0,0 +1,153 @@
+package ru4dh4n.ordermatching.services;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster.SlowConsumerPolicy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One market data stream: a bounded queue of encoded messages, drained on the broadcaster's pool only while the
+ * client's transport is ready to take more. What happens when the queue is full is up to the slow-consumer policy.
+ * Doubles as its own drain task, so scheduling one doesn't allocate.
+ */
+public final class MarketDataSubscriber implements Runnable {
+
+    private final ServerCallStreamObserver<EncodedMessage> observer;
+    private final NumberFormat numberFormat;
+    private final SlowConsumerPolicy policy;
+    private final int queueCapacity;
+    private final Executor drainExecutor;
+    // takes it out of whatever it was subscribed to once the stream is over
+    private final Consumer<MarketDataSubscriber> onClose;
+
+    // all guarded by this
+    private final ArrayDeque<EncodedMessage> queue = new ArrayDeque<>();
+    private boolean gap;
+    private boolean scheduled;
+    private boolean closed;
+    // closed by the server, the next drain tells the client why
+    private Status closeStatus;
+
+    /**
+     * Must be called from the service method, before it returns, so the ready handler is in place.
+     */
+    MarketDataSubscriber(ServerCallStreamObserver<EncodedMessage> observer, NumberFormat numberFormat, SlowConsumerPolicy policy,
+                         int queueCapacity, Executor drainExecutor, Consumer<MarketDataSubscriber> onClose) {
+        this.observer = observer;
+        this.numberFormat = numberFormat;
+        this.policy = policy;
+        this.queueCapacity = queueCapacity;
+        this.drainExecutor = drainExecutor;
+        this.onClose = onClose;
+        observer.setOnReadyHandler(this::wake);
+    }
+
+    NumberFormat numberFormat() { return this.numberFormat; }
+    ServerCallStreamObserver<EncodedMessage> observer() { return this.observer; }
+
+    synchronized boolean isClosed() { return this.closed; }
+
+    /**
+     * Queues the message. If the client has fallen behind, {@code withGap} encodes the message again with its gap
+     * flag set; it is only needed for the CONFLATE and DROP policies.
+     */
+    <M> void offer(EncodedMessage encoded, M message, Function<M, EncodedMessage> withGap) {
+        synchronized (this) {
+            if (closed) return;
+
+            if (queue.size() < queueCapacity) {
+                queue.add(gap ? withGap.apply(message) : encoded);
+                gap = false;
+            } else if (policy == SlowConsumerPolicy.CONFLATE) {
+                queue.pollLast();
+                queue.add(withGap.apply(message));
+            } else if (policy == SlowConsumerPolicy.DROP) {
+                gap = true;
+                return;
+            } else {
+                closeLocked(Status.RESOURCE_EXHAUSTED.withDescription("Too far behind on market data"));
+            }
+
+            if (scheduled) return;
+            scheduled = true;
+        }
+        drainExecutor.execute(this);
+    }
+
+    /**
+     * Ends the stream with this status once whatever is being written has gone out.
+     */
+    void close(Status status) {
+        synchronized (this) {
+            if (closed) return;
+            closeLocked(status);
+            if (scheduled) return;
+            scheduled = true;
+        }
+        drainExecutor.execute(this);
+    }
+
+    // the client went away, there's nobody left to tell
+    synchronized void cancel() {
+        closed = true;
+        queue.clear();
+    }
+
+    private void closeLocked(Status status) {
+        closed = true;
+        closeStatus = status;
+        queue.clear();
+        onClose.accept(this);
+    }
+
+    // the transport has room again
+    private void wake() {
+        synchronized (this) {
+            if (scheduled || closed || queue.isEmpty()) return;
+            scheduled = true;
+        }
+        drainExecutor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            EncodedMessage next = null;
+            Status status = null;
+            synchronized (this) {
+                if (closeStatus != null) {
+                    status = closeStatus;
+                    closeStatus = null;
+                } else if (!closed && !queue.isEmpty() && observer.isReady()) {
+                    next = queue.poll();
+                }
+                // a ready handler firing after this finds scheduled cleared and starts a new drain
+                if (next == null) scheduled = false;
+            }
+
+            if (status != null) {
+                try {
+                    observer.onError(status.asRuntimeException());
+                } catch (Exception ignored) {
+                    // already gone
+                }
+                return;
+            }
+            if (next == null) return;
+
+            try {
+                observer.onNext(next);
+            } catch (Exception e) {
+                // the call is gone
+                cancel();
+                onClose.accept(this);
+                return;
+            }
+        }
+    }
+}
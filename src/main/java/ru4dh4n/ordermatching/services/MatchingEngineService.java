@@ -1,67 +1,245 @@
 package ru4dh4n.ordermatching.services;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import ru4dh4n.ordermatching.components.InstrumentRegistry;
 import ru4dh4n.ordermatching.dao.OrderDao;
-import ru4dh4n.ordermatching.dao.TradeDao;
+import ru4dh4n.ordermatching.dao.WriteBehindDao;
+import ru4dh4n.ordermatching.engine.OrderBookDirectory;
+import ru4dh4n.ordermatching.engine.OrderPipeline;
+import ru4dh4n.ordermatching.engine.TopOfBook;
+import ru4dh4n.ordermatching.engine.WaitStrategy;
 import ru4dh4n.ordermatching.helper.Order;
-import ru4dh4n.ordermatching.helper.OrderBook;
-import ru4dh4n.ordermatching.helper.Trade;
+import ru4dh4n.ordermatching.journal.Journal;
+import ru4dh4n.ordermatching.journal.JournalProjector;
+import ru4dh4n.ordermatching.snapshot.SnapshotStore;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class MatchingEngineService {
 
+    private static final Logger log = LoggerFactory.getLogger(MatchingEngineService.class);
+
     private final TradePropagationService tradePropagationService;
-    // instrumentId -> OrderBook
-    private Cache<String, OrderBook> orderBookCache; // FIXME: this will cause a memory leak over time
-    private ExecutorService executor;
+    private final MarketDataBroadcaster marketDataBroadcaster;
+    private final DepthBroadcaster depthBroadcaster;
+    private final CandleAggregator candleAggregator;
+    // instrument handle -> OrderBook, idle books are parked off-heap rather than evicted
+    private final OrderBookDirectory orderBooks;
+    private OrderPipeline pipeline;
+    private Journal journal;
+    private JournalProjector journalProjector;
     private final OrderDao orderDao;
-    private final TradeDao tradeDao;
+    private final WriteBehindDao writeBehindDao;
     private final InstrumentRegistry instrumentRegistry;
+    private final RecoveryService recoveryService;
+    private final SnapshotStore snapshotStore;
+    private volatile long lastSnapshotSequence = -1;
 
+    private final int shardCount;
+    private final int ringSize;
+    private final String waitStrategy;
+    private final Path journalDirectory;
+    private final int journalSegmentSize;
+    private final int journalBatchSize;
+    private final long journalMaxDelayMillis;
+    private final int projectionBatchSize;
+    private final long projectionIntervalMillis;
+    private final long bookIdleOffloadMillis;
+    private final long snapshotIntervalMillis;
+    // encoding and writing every book takes a while, so it gets a thread of its own rather than the shared scheduler
+    private final ScheduledExecutorService snapshotExecutor;
 
     @PostConstruct
     public void start() {
-        this.orderBookCache = Caffeine.newBuilder().maximumSize(10_000).build();
-        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            this.journal = Journal.open(journalDirectory, journalSegmentSize);
+            this.journalProjector = new JournalProjector(journal, writeBehindDao,
+                    instrument -> instrumentRegistry.getInstrument(instrument).instrumentId(), projectionBatchSize, projectionIntervalMillis);
+            // the tables have to have caught up before the books and the last order id can be read from them
+            this.journalProjector.catchUp();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not open the journal in " + journalDirectory, e);
+        }
+        this.journalProjector.start();
+
+        try {
+            // this runs while the context is still starting, so the gRPC server only comes up once the books are back
+            recoveryService.recover(journal.getDirectory(), journal.getCommittedSequence()).forEach(orderBooks::put);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not recover the order books", e);
+        }
+
+        this.pipeline = new OrderPipeline(ringSize, WaitStrategy.fromName(waitStrategy), shardCount,
+                journalBatchSize, journalMaxDelayMillis, orderDao.getLastOrderId(),
+                instrumentRegistry, journal, tradePropagationService, marketDataBroadcaster, depthBroadcaster,
+                candleAggregator, orderBooks);
+        this.pipeline.start();
+        if (snapshotIntervalMillis > 0) {
+            this.snapshotExecutor.scheduleWithFixedDelay(this::scheduledSnapshot, snapshotIntervalMillis,
+                    snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
-    public MatchingEngineService(OrderDao orderDao, TradeDao tradeDao, InstrumentRegistry instrumentRegistry, TradePropagationService tradePropagationService) {
+    public MatchingEngineService(OrderDao orderDao, WriteBehindDao writeBehindDao, InstrumentRegistry instrumentRegistry,
+                                 TradePropagationService tradePropagationService, MarketDataBroadcaster marketDataBroadcaster,
+                                 DepthBroadcaster depthBroadcaster, CandleAggregator candleAggregator,
+                                 RecoveryService recoveryService,
+                                 SnapshotStore snapshotStore,
+                                 @Value("${matching.shards:0}") int shardCount,
+                                 @Value("${matching.ring-size:4096}") int ringSize,
+                                 @Value("${matching.wait-strategy:blocking}") String waitStrategy,
+                                 @Value("${journal.directory:journal}") String journalDirectory,
+                                 @Value("${journal.segment-size:67108864}") int journalSegmentSize,
+                                 // 0 commits whatever matching has finished as soon as the journal stage catches up
+                                 @Value("${journal.batch-size:1024}") int journalBatchSize,
+                                 @Value("${journal.max-delay-ms:0}") long journalMaxDelayMillis,
+                                 @Value("${projection.batch-size:1024}") int projectionBatchSize,
+                                 @Value("${projection.interval-ms:5}") long projectionIntervalMillis,
+                                 @Value("${books.idle-offload-ms:900000}") long bookIdleOffloadMillis,
+                                 @Value("${snapshot.interval-ms:60000}") long snapshotIntervalMillis) {
         this.orderDao = orderDao;
-        this.tradeDao = tradeDao;
+        this.writeBehindDao = writeBehindDao;
         this.instrumentRegistry = instrumentRegistry;
         this.tradePropagationService = tradePropagationService;
+        this.marketDataBroadcaster = marketDataBroadcaster;
+        this.depthBroadcaster = depthBroadcaster;
+        this.candleAggregator = candleAggregator;
+        this.recoveryService = recoveryService;
+        this.snapshotStore = snapshotStore;
+        this.shardCount = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        this.ringSize = ringSize;
+        this.waitStrategy = waitStrategy;
+        this.journalDirectory = Path.of(journalDirectory);
+        this.journalSegmentSize = journalSegmentSize;
+        this.journalBatchSize = journalBatchSize;
+        this.journalMaxDelayMillis = journalMaxDelayMillis;
+        this.projectionBatchSize = projectionBatchSize;
+        this.projectionIntervalMillis = projectionIntervalMillis;
+        this.bookIdleOffloadMillis = bookIdleOffloadMillis;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "book-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.orderBooks = new OrderBookDirectory(instrumentRegistry::getInstrument);
     }
 
     @PreDestroy
     public void shutdown() {
-        if (this.executor != null) this.executor.shutdown();
+        // let a snapshot that's being written finish, it needs the pipeline
+        snapshotExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.pipeline != null) this.pipeline.shutdown();
+        if (this.journalProjector != null) this.journalProjector.shutdown();
+        try {
+            if (this.journal != null) this.journal.close();
+        } catch (IOException e) {
+            log.error("Failed to close the journal", e);
+        }
     }
 
-    public Optional<Long> submitOrder(String userId, String instrumentId, Order.Side side,
-                                      BigDecimal orderPrice, BigDecimal quantity) {
-        Optional<Order> order = orderDao.saveOrder(userId, instrumentId, side, orderPrice, quantity);
-        if (order.isEmpty()) { return Optional.empty(); }
-
-        OrderBook orderBook = orderBookCache.get(instrumentId, k -> new OrderBook(instrumentId, instrumentRegistry));
-        orderBook.processOrder(order.get(), (makerId, takerId, price, qty) -> {
-            Trade trade = new Trade(makerId, takerId, price, qty);
-            Optional<Long> tradeIdOpt = tradeDao.saveTrade(instrumentId, trade);
-            tradeIdOpt.ifPresent(tradeId ->
-                    tradePropagationService.propagate(trade)
-            );
-            return tradeIdOpt.isPresent();
-        });
+    // runs on the snapshot thread, see start
+    public void scheduledSnapshot() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            // the previous snapshot and the journal still cover everything
+            log.warn("Failed to snapshot the order books", e);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${books.offload-check-ms:60000}", fixedDelayString = "${books.offload-check-ms:60000}")
+    public void scheduledOffload() {
+        if (bookIdleOffloadMillis <= 0) return;
+        try {
+            offloadIdleBooks(bookIdleOffloadMillis);
+        } catch (Exception e) {
+            log.warn("Failed to offload idle order books", e);
+        }
+    }
+
+    /**
+     * Parks every book that hasn't seen an order for {@code idleMillis}; it comes back on its next order.
+     * @return how many books were parked or dropped
+     */
+    public int offloadIdleBooks(long idleMillis) {
+        return pipeline.offloadIdleBooks(TimeUnit.MILLISECONDS.toNanos(idleMillis)).join();
+    }
+
+    /**
+     * Snapshots every order book. Matching only pauses for the copy; encoding and writing happen on this thread.
+     * @return the journal sequence the snapshot was taken at
+     */
+    public long snapshot() throws IOException {
+        SnapshotStore.Snapshot snapshot = pipeline.snapshot().join();
+        // nothing was journaled since the last one, so it would be the same snapshot again
+        if (snapshot.sequence() == lastSnapshotSequence) return snapshot.sequence();
+
+        snapshotStore.write(snapshot);
+        lastSnapshotSequence = snapshot.sequence();
+        return snapshot.sequence();
+    }
+
+    /**
+     * Hands the order to the ingestion pipeline. The returned future completes once the order has been
+     * validated, matched (and rested, if anything is left), journaled and its trades published; it is empty
+     * if the instrument is unknown and fails with an IllegalArgumentException if the numbers are invalid.
+     * The instrument is its handle, see {@link InstrumentRegistry#getHandle}, and the numbers are in its scale.
+     */
+    public CompletableFuture<Optional<Long>> submitOrder(String userId, int instrument, Order.Side side,
+                                                         long scaledPrice, long scaledQuantity) {
+        return pipeline.submit(userId, instrument, side, scaledPrice, scaledQuantity);
+    }
+
+    /**
+     * Hands a batch of orders to the pipeline in one run, see {@link OrderPipeline#submitAll}.
+     * @return one future per order, in the order given, each completing like {@link #submitOrder}'s
+     * @throws IllegalArgumentException if any of the orders fails the up-front checks, in which case none were placed
+     */
+    public List<CompletableFuture<Optional<Long>>> submitOrders(String userId, List<OrderPipeline.NewOrder> orders) {
+        return pipeline.submitAll(userId, orders);
+    }
+
+    /**
+     * Pulls a resting order out of its book. Completes with the quantity that was still open, in the
+     * instrument's scale, or empty if the user has no such order resting on that instrument.
+     */
+    public CompletableFuture<Optional<Long>> cancelOrder(String userId, int instrument, long orderId) {
+        return pipeline.cancel(userId, instrument, orderId);
+    }
+
+    /**
+     * Starts a depth stream: the subscriber gets a snapshot of the instrument's book, then every change after it.
+     * The instrument is its handle, see {@link InstrumentRegistry#getHandle}.
+     */
+    public void subscribeToDepth(int instrument, MarketDataSubscriber subscriber) {
+        pipeline.subscribeToDepth(instrument, subscriber);
+    }
 
-        return Optional.of(order.get().getOrderId());
+    /**
+     * The instrument's best bid, best ask and last trade as of the last order its shard matched. Never waits
+     * on the engine, so it's fine to call as often as anyone likes.
+     */
+    public TopOfBook.Quote getTopOfBook(int instrument) {
+        return orderBooks.quote(instrument);
     }
 }
@@ -0,0 +1,175 @@
+package ru4dh4n.ordermatching.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs order update work on a few lanes of its own. An order (or a user, for their whole-account stream) always
+ * lands on the same lane and each lane is one thread working through its queue in order, so an order's updates reach
+ * its subscribers in the order they were handed over, and no two threads ever write to the same stream at once. A
+ * lane takes whatever has queued up in one go, up to a batch, and work can leave something to be done once the batch
+ * is through. The queues are bounded: when one is full the work is dropped and counted rather than holding up whoever
+ * handed it over, which is the publish stage.
+ */
+public final class OrderUpdateDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderUpdateDispatcher.class);
+
+    // exported over JMX, see TradePropagationService
+    public interface StatsMXBean {
+        int getLanes();
+        int getQueueDepth();
+        long getDispatched();
+        long getDropped();
+        long getBatches();
+        long getLargestBatch();
+        double getAverageBatchSize();
+    }
+
+    // the lane the current thread runs, if it runs one
+    private static final ThreadLocal<Lane> CURRENT_LANE = new ThreadLocal<>();
+
+    private final Lane[] lanes;
+    private final int batchSize;
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder executed = new LongAdder();
+    private final LongAccumulator largestBatch = new LongAccumulator(Long::max, 0);
+
+    public OrderUpdateDispatcher(int laneCount, int queueCapacity, int batchSize) {
+        if (laneCount <= 0 || queueCapacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Lanes, queue capacity and batch size must all be positive");
+        }
+        this.batchSize = batchSize;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane("order-updates-" + i, queueCapacity);
+        }
+    }
+
+    public void start() {
+        for (Lane lane : lanes) lane.thread.start();
+    }
+
+    // whatever is still queued is dropped, the streams are going away with the server
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            lane.thread.interrupt();
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues the work on the key's lane, behind everything already queued for that key. The key is an order id,
+     * or the hash of a user id.
+     * @return false if the lane was full and the work was dropped
+     */
+    public boolean dispatch(long key, Runnable work) {
+        Lane lane = lanes[Math.floorMod(Long.hashCode(key), lanes.length)];
+        if (!lane.queue.offer(work)) {
+            dropped.increment();
+            return false;
+        }
+        dispatched.increment();
+        return true;
+    }
+
+    /**
+     * Runs the action on the caller's lane once the batch it's part of has run, before the lane takes anything else.
+     * Only for work that's running on a lane.
+     */
+    public void afterBatch(Runnable action) {
+        Lane lane = CURRENT_LANE.get();
+        if (lane == null) throw new IllegalStateException("Not running on an order update lane");
+        lane.afterBatch.add(action);
+    }
+
+    public StatsMXBean stats() {
+        return new StatsMXBean() {
+            @Override public int getLanes() { return lanes.length; }
+
+            @Override
+            public int getQueueDepth() {
+                int depth = 0;
+                for (Lane lane : lanes) depth += lane.queue.size();
+                return depth;
+            }
+
+            @Override public long getDispatched() { return dispatched.sum(); }
+            @Override public long getDropped() { return dropped.sum(); }
+            @Override public long getBatches() { return batches.sum(); }
+            @Override public long getLargestBatch() { return largestBatch.get(); }
+
+            @Override
+            public double getAverageBatchSize() {
+                long count = batches.sum();
+                return count == 0 ? 0 : (double) executed.sum() / count;
+            }
+        };
+    }
+
+    private final class Lane implements Runnable {
+        final ArrayBlockingQueue<Runnable> queue;
+        final Thread thread;
+        volatile boolean running = true;
+        // only touched by the lane's own thread
+        private final List<Runnable> batch = new ArrayList<>();
+        private final List<Runnable> afterBatch = new ArrayList<>();
+
+        Lane(String name, int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            CURRENT_LANE.set(this);
+            while (running) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, batchSize - 1);
+
+                batches.increment();
+                executed.add(batch.size());
+                largestBatch.accumulate(batch.size());
+                for (Runnable work : batch) {
+                    execute(work);
+                }
+                batch.clear();
+                // by index, an action may add another
+                for (int i = 0; i < afterBatch.size(); i++) {
+                    execute(afterBatch.get(i));
+                }
+                afterBatch.clear();
+            }
+        }
+
+        private void execute(Runnable work) {
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                log.error("Failed to deliver an order update", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ru4dh4n.ordermatching.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru4dh4n.ordermatching.components.InstrumentRegistry;
+import ru4dh4n.ordermatching.dao.OrderDao;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.journal.JournalHandler;
+import ru4dh4n.ordermatching.journal.JournalReader;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+import ru4dh4n.ordermatching.snapshot.SnapshotStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/**
+ * Rebuilds the resting order books on startup, from the newest snapshot plus the journal after it, or from the
+ * database when there is no snapshot yet. Every instrument is rebuilt as its own task on a fork-join pool,
+ * so a large book only holds up its own instrument.
+ */
+@Service
+public class RecoveryService {
+
+    private static final Logger log = LoggerFactory.getLogger(RecoveryService.class);
+
+    public record InstrumentRecovery(String instrumentId, int restingOrders, Duration elapsed) { }
+
+    private record Rebuilt(int instrument, OrderBook orderBook, InstrumentRecovery recovery) { }
+
+    private final OrderDao orderDao;
+    private final InstrumentRegistry instrumentRegistry;
+    private final SnapshotStore snapshotStore;
+    private final int parallelism;
+    private volatile List<InstrumentRecovery> lastRecovery = List.of();
+
+    public RecoveryService(OrderDao orderDao, InstrumentRegistry instrumentRegistry, SnapshotStore snapshotStore,
+                           @Value("${recovery.parallelism:0}") int parallelism) {
+        this.orderDao = orderDao;
+        this.instrumentRegistry = instrumentRegistry;
+        this.snapshotStore = snapshotStore;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    // per instrument timings of the last recovery, slowest first
+    public List<InstrumentRecovery> getLastRecovery() { return this.lastRecovery; }
+
+    /**
+     * Restores the newest snapshot and replays the journal after it up to {@code journalSequence}, or rebuilds
+     * from the database tables when there is no usable snapshot.
+     *
+     * @return instrument handle -> rebuilt book, for every known instrument that still has open orders
+     */
+    public Map<Integer, OrderBook> recover(Path journalDirectory, long journalSequence) throws IOException {
+        Optional<SnapshotStore.Snapshot> snapshot = snapshotStore.loadLatest()
+                .filter(candidate -> candidate.sequence() <= journalSequence);
+        if (snapshot.isEmpty()) return rebuildAll(orderDao.getInstrumentsWithOpenOrders(), this::rebuild);
+
+        Map<Integer, OrderBook> orderBooks = rebuildAll(snapshot.get().books(), this::restore);
+        replay(journalDirectory, snapshot.get().sequence(), journalSequence, orderBooks);
+        return orderBooks;
+    }
+
+    private <T> Map<Integer, OrderBook> rebuildAll(List<T> sources, Function<T, Optional<Rebuilt>> rebuild) {
+        List<ForkJoinTask<Optional<Rebuilt>>> tasks = new ArrayList<>();
+        List<InstrumentRecovery> recoveries = new ArrayList<>();
+        Map<Integer, OrderBook> orderBooks = new HashMap<>();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (T source : sources) {
+                tasks.add(pool.submit(() -> rebuild.apply(source)));
+            }
+
+            for (ForkJoinTask<Optional<Rebuilt>> task : tasks) {
+                task.join().ifPresent(rebuilt -> {
+                    orderBooks.put(rebuilt.instrument(), rebuilt.orderBook());
+                    recoveries.add(rebuilt.recovery());
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        recoveries.sort((a, b) -> b.elapsed().compareTo(a.elapsed()));
+        this.lastRecovery = List.copyOf(recoveries);
+
+        // one line per instrument only on request, getLastRecovery() has them all anyway
+        log.info("Recovered {} order books", recoveries.size());
+        if (log.isDebugEnabled()) {
+            recoveries.forEach(recovery -> log.debug("Recovered {}: {} resting orders in {} ms",
+                    recovery.instrumentId(), recovery.restingOrders(), recovery.elapsed().toMillis()));
+        }
+        return orderBooks;
+    }
+
+    // re-runs the orders and cancels journaled after the snapshot, matching is deterministic so the trades come out the same
+    private void replay(Path journalDirectory, long afterSequence, long toSequence, Map<Integer, OrderBook> orderBooks) throws IOException {
+        long start = System.nanoTime();
+        long lastSequence = new JournalReader(journalDirectory).read(afterSequence, toSequence, Integer.MAX_VALUE, new JournalHandler() {
+            @Override
+            public void onOrder(long sequence, long timestamp, long orderId, String userId, int instrument, Order.Side side,
+                                long price, long quantity, int scale) {
+                OrderBook orderBook = orderBook(orderBooks, instrument);
+                if (orderBook != null) orderBook.processOrder(orderId, userId, side, price, quantity, trade -> true);
+            }
+
+            @Override
+            public void onCancel(long sequence, long timestamp, int instrument, long orderId, long cancelledQuantity, int scale) {
+                OrderBook orderBook = orderBook(orderBooks, instrument);
+                if (orderBook != null) orderBook.cancelOrder(orderId);
+            }
+        });
+
+        if (lastSequence < toSequence) {
+            log.warn("Journal ends at {}, expected it to reach {}", lastSequence, toSequence);
+        }
+        log.info("Replayed {} journal records after sequence {} in {} ms",
+                lastSequence - afterSequence, afterSequence, Duration.ofNanos(System.nanoTime() - start).toMillis());
+    }
+
+    private OrderBook orderBook(Map<Integer, OrderBook> orderBooks, int instrument) {
+        OrderBook orderBook = orderBooks.get(instrument);
+        if (orderBook != null) return orderBook;
+
+        Instrument found = instrumentRegistry.getInstrument(instrument);
+        if (found == null) return null;
+
+        orderBook = new OrderBook(found);
+        orderBooks.put(instrument, orderBook);
+        return orderBook;
+    }
+
+    private Optional<Rebuilt> restore(BookSnapshot snapshot) {
+        int handle = instrumentRegistry.getHandle(snapshot.getInstrumentId());
+        Instrument instrument = instrumentRegistry.getInstrument(handle);
+        if (instrument == null) {
+            log.warn("Snapshot has a book for unknown instrument {}, not recovered", snapshot.getInstrumentId());
+            return Optional.empty();
+        }
+
+        long start = System.nanoTime();
+        OrderBook orderBook = snapshot.restore(instrument);
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        return Optional.of(new Rebuilt(handle, orderBook, new InstrumentRecovery(snapshot.getInstrumentId(), orderBook.getRestingOrderCount(), elapsed)));
+    }
+
+    private Optional<Rebuilt> rebuild(String instrumentId) {
+        int handle = instrumentRegistry.getHandle(instrumentId);
+        Instrument instrument = instrumentRegistry.getInstrument(handle);
+        if (instrument == null) {
+            log.warn("Open orders found for unknown instrument {}, not recovered", instrumentId);
+            return Optional.empty();
+        }
+
+        long start = System.nanoTime();
+        OrderBook orderBook = new OrderBook(instrument);
+        Map<Long, Long> filled = orderDao.getOpenFilledQuantities(instrument);
+        orderDao.forEachOpenOrder(instrument, (orderId, userId, side, price, totalQuantity) -> {
+            long filledQuantity = filled.getOrDefault(orderId, 0L);
+            // a fill whose completion never made it into the table, nothing is left to rest
+            if (filledQuantity < totalQuantity) orderBook.restOrder(orderId, userId, side, price, totalQuantity, filledQuantity);
+        });
+
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        return Optional.of(new Rebuilt(handle, orderBook, new InstrumentRecovery(instrumentId, orderBook.getRestingOrderCount(), elapsed)));
+    }
+}
@@ -4,113 +4,363 @@ import com.google.protobuf.Empty;
 import com.google.protobuf.Timestamp;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.core.task.TaskExecutor;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
 import ru4dh4n.ordermatching.dao.OrderDao;
 import ru4dh4n.ordermatching.dao.TradeDao;
+import ru4dh4n.ordermatching.dao.WriteBehindDao;
+import ru4dh4n.ordermatching.grpc.Fill;
+import ru4dh4n.ordermatching.grpc.FixedPoint;
 import ru4dh4n.ordermatching.grpc.OrderUpdate;
+import ru4dh4n.ordermatching.grpc.OrderUpdateBatch;
 import ru4dh4n.ordermatching.grpc.OrderUpdateRequest;
 import ru4dh4n.ordermatching.grpc.OrderUpdateStream;
+import ru4dh4n.ordermatching.helper.Price;
 import ru4dh4n.ordermatching.helper.Trade;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
 import java.time.Instant;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Order updates for subscribers. Everything written to an order's streams, fills, the cancel, keep-alives and the
+ * history a new subscriber is sent, goes through that order's lane on the {@link OrderUpdateDispatcher}, so it
+ * arrives in order and never from two threads at once.
+ * <p>
+ * Every update carries the journal sequence of the fill or cancel behind it, which the tables store too, so a
+ * subscriber is sent what's stored after the sequence it asked for a page at a time, then whatever arrived live in
+ * the meantime, skipping what the pages already had, and from then on live updates as they come. If a live update
+ * can't be queued because the lane is full, the streams it was for are ended with UNAVAILABLE rather than carry on
+ * without it.
+ * <p>
+ * A user can instead take every update of all their orders on one stream, live only, on the lane their user id
+ * hashes to.
+ * <p>
+ * A subscriber that asks for batches gets everything that came up for it in one run of its lane in a single frame,
+ * sent once the run is through if the transport is ready for it, otherwise once it is or the latency budget is up.
+ * That budget, and the retries of catch-ups and of ending streams that fell behind, are kept by a timer thread of
+ * its own, so they never wait behind the snapshot or candle writes on the shared scheduler.
+ */
 @Service
 public class TradePropagationService {
 
-    private final TaskExecutor taskExecutor;
+    private static final Logger log = LoggerFactory.getLogger(TradePropagationService.class);
+    private static final String STATS_NAME = "ru4dh4n.ordermatching:type=OrderUpdateDispatcher";
+
+    private final OrderUpdateDispatcher dispatcher;
     private final TradeDao tradeDao;
     private final OrderDao orderDao;
+    private final WriteBehindDao writeBehindDao;
+    private final int catchUpPageSize;
+    // a taker gets all the fills of its order in one update rather than one update each
+    private final boolean aggregateSweeps;
+
+    // the format is the one the client asked for when it subscribed; everything else is only touched on the lane
+    private static final class Subscriber {
+        final StreamObserver<OrderUpdateStream> observer;
+        final NumberFormat numberFormat;
+        // the order id, or the user id's hash for a whole-account stream
+        final long laneKey;
+        // only for a whole-account stream
+        final String userId;
+        final boolean batched;
+        long lastSequence;
+        // live updates that came in while it was still catching up, null once it has
+        List<OrderUpdateStream> held = new ArrayList<>();
+        // its last update has been sent or held, the stream is completed once that's gone out
+        boolean finished;
+        boolean closed;
+        // batched only: updates waiting to go out in the next frame, since when, and whether a flush is on its way
+        final List<OrderUpdate> pending = new ArrayList<>();
+        long pendingSince;
+        boolean flushQueued;
+        // set by whoever couldn't get an update for it onto its lane; the lane ends the stream, see endFallenBehind
+        volatile boolean fellBehind;
+
+        Subscriber(StreamObserver<OrderUpdateStream> observer, NumberFormat numberFormat, long laneKey, String userId,
+                   boolean batched, long afterSequence) {
+            this.observer = observer;
+            this.numberFormat = numberFormat;
+            this.laneKey = laneKey;
+            this.userId = userId;
+            this.batched = batched;
+            this.lastSequence = afterSequence;
+        }
+
+        boolean isReady() {
+            return !(observer instanceof ServerCallStreamObserver<OrderUpdateStream> call) || call.isReady();
+        }
+    }
 
-    private final ConcurrentHashMap<Long, List<StreamObserver<OrderUpdateStream>>> orderUpdates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, List<Subscriber>> orderUpdates = new ConcurrentHashMap<>();
+    // userId -> whole-account streams, which never catch up so they're live from the start
+    private final ConcurrentHashMap<String, List<Subscriber>> userUpdates = new ConcurrentHashMap<>();
+    // the highest journal sequence handed to propagate, only written by the publish thread
+    private volatile long publishedSequence;
+    // catch-ups waiting for the tables to get further, or for room on their lane
+    private final Queue<CatchUp> waiting = new ConcurrentLinkedQueue<>();
+    // batched subscribers whose transport wasn't ready, flushed once it is or their updates have waited long enough
+    private final Queue<Subscriber> stalled = new ConcurrentLinkedQueue<>();
+    // subscribers that missed an update because their lane was full, waiting to be ended on it
+    private final Queue<Subscriber> fallenBehind = new ConcurrentLinkedQueue<>();
+    private final long batchLatencyMillis;
+    private final long catchUpRetryMillis;
+    private final long batchLatencyNanos;
+    private final ScheduledExecutorService timer;
+    private boolean exported;
 
     @Autowired
-    public TradePropagationService(TaskExecutor taskExecutor, TradeDao tradeDao, OrderDao orderDao) {
-        this.taskExecutor = taskExecutor;
+    public TradePropagationService(TradeDao tradeDao, OrderDao orderDao, WriteBehindDao writeBehindDao,
+                                   @Value("${order-updates.lanes:4}") int lanes,
+                                   @Value("${order-updates.queue-capacity:16384}") int queueCapacity,
+                                   @Value("${order-updates.batch-size:256}") int batchSize,
+                                   @Value("${order-updates.catch-up-page-size:512}") int catchUpPageSize,
+                                   @Value("${order-updates.aggregate-sweeps:false}") boolean aggregateSweeps,
+                                   @Value("${order-updates.batch-latency-ms:5}") long batchLatencyMillis,
+                                   @Value("${order-updates.catch-up-retry-ms:20}") long catchUpRetryMillis) {
+        this.dispatcher = new OrderUpdateDispatcher(lanes, queueCapacity, batchSize);
         this.tradeDao = tradeDao;
         this.orderDao = orderDao;
+        this.writeBehindDao = writeBehindDao;
+        this.catchUpPageSize = catchUpPageSize;
+        this.aggregateSweeps = aggregateSweeps;
+        this.batchLatencyMillis = batchLatencyMillis;
+        this.catchUpRetryMillis = catchUpRetryMillis;
+        this.batchLatencyNanos = TimeUnit.MILLISECONDS.toNanos(batchLatencyMillis);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "order-updates-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        dispatcher.start();
+        repeat(this::flushStalled, batchLatencyMillis);
+        repeat(this::retryCatchUps, catchUpRetryMillis);
+        repeat(this::endFallenBehind, catchUpRetryMillis);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(STATS_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(dispatcher.stats(), OrderUpdateDispatcher.StatsMXBean.class, true), name);
+                exported = true;
+            }
+        } catch (JMException e) {
+            log.warn("Failed to export the order update stats", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        dispatcher.shutdown();
+        if (!exported) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STATS_NAME));
+        } catch (JMException ignored) {
+            // already gone
+        }
     }
 
+    public OrderUpdateDispatcher.StatsMXBean getStats() { return dispatcher.stats(); }
+
     @Scheduled(cron = "*/30 * * * * ?")
     public void checkObservers() {
-        orderUpdates.forEach((s, o) -> {
-            orderUpdates.computeIfPresent(s, (key, list) -> {
-                list.removeIf(o1 -> {
-                    try {
-                        o1.onNext(OrderUpdateStream.newBuilder().setKeepAlive(Empty.newBuilder().build()).build());
-                        return false;
-                    } catch (Exception ignored) {
-                        return true;
-                    }
-                });
-                return list.isEmpty() ? null : list;
-            });
-        });
+        OrderUpdateStream keepAlive = OrderUpdateStream.newBuilder().setKeepAlive(Empty.newBuilder().build()).build();
+        // a full lane is busy delivering anyway, which says as much about its streams as a keep-alive would
+        orderUpdates.keySet().forEach(orderId -> dispatcher.dispatch(orderId, () -> keepAlive(orderId, keepAlive)));
+        userUpdates.keySet().forEach(userId -> dispatcher.dispatch(userId.hashCode(), () -> {
+            List<Subscriber> subscribers = userUpdates.get(userId);
+            if (subscribers != null) subscribers.forEach(subscriber -> write(subscriber, keepAlive));
+        }));
     }
 
-    private OrderUpdate createOrder(Trade trade) {
-        return OrderUpdate.newBuilder()
-                .setFulfilledQuantity(trade.getQuantity().toPlainString())
-                .setTradePrice(trade.getPrice().toPlainString())
-                .setTimestamp(Timestamp.newBuilder()
-                        .setSeconds(trade.getTimestamp().getEpochSecond())
-                        .setNanos(trade.getTimestamp().getNano())
-                        .build()
-                )
-                .build();
+    // runs on the timer, see start
+    public void retryCatchUps() {
+        for (int i = waiting.size(); i > 0; i--) {
+            CatchUp catchUp = waiting.poll();
+            if (catchUp == null) return;
+            resume(catchUp);
+        }
     }
 
-    private void propagateHistoricalUpdates(Long orderId, java.sql.Timestamp lastUpdate, StreamObserver<OrderUpdateStream> streamObserver) {
-        try {
-            List<Trade> tradeList = tradeDao.getTrades(orderId, lastUpdate);
+    // runs on the timer, see start
+    public void flushStalled() {
+        for (int i = stalled.size(); i > 0; i--) {
+            Subscriber subscriber = stalled.poll();
+            if (subscriber == null) return;
+            // the lane is full, try again next time
+            if (!dispatcher.dispatch(subscriber.laneKey, () -> flush(subscriber, false))) stalled.add(subscriber);
+        }
+    }
 
-            for (Trade trade : tradeList) {
-                streamObserver.onNext(OrderUpdateStream.newBuilder().setUpdate(this.createOrder(trade)).build());
-            }
-        } catch (Exception e) {
-            orderUpdates.computeIfPresent(orderId, (key, list) -> {
-                list.remove(streamObserver);
-                return list.isEmpty() ? null : list;
-            });
+    // runs on the timer, see start
+    public void endFallenBehind() {
+        for (int i = fallenBehind.size(); i > 0; i--) {
+            Subscriber subscriber = fallenBehind.poll();
+            if (subscriber == null) return;
+            if (!dispatcher.dispatch(subscriber.laneKey, () -> endFallenBehind(subscriber))) fallenBehind.add(subscriber);
+        }
+    }
 
+    private void repeat(Runnable task, long delayMillis) {
+        timer.scheduleWithFixedDelay(() -> {
+            // an exception would cancel the task for good
             try {
-                streamObserver.onError(new StatusRuntimeException(
-                        Status.INTERNAL.withDescription("Failed to load historical updates")
-                ));
-            } catch (Exception ignored) {
-                // observer might already be disconnected TODO: log this
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Order update timer task failed", e);
             }
+        }, Math.max(1, delayMillis), Math.max(1, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void keepAlive(long orderId, OrderUpdateStream keepAlive) {
+        List<Subscriber> subscribers = orderUpdates.get(orderId);
+        if (subscribers == null) return;
+        subscribers.forEach(subscriber -> send(orderId, subscriber, keepAlive));
+    }
+
+    private OrderUpdate createOrder(Trade trade, NumberFormat numberFormat) {
+        OrderUpdate.Builder update = OrderUpdate.newBuilder()
+                .setTimestamp(toTimestamp(trade.getTimestamp()))
+                .setSequence(trade.getSequence());
+
+        if (numberFormat == NumberFormat.FIXED_POINT) {
+            update.setFixedFulfilledQuantity(FixedPoint.newBuilder().setMantissa(trade.getQuantity()).setScale(trade.getScale()))
+                    .setFixedTradePrice(FixedPoint.newBuilder().setMantissa(trade.getPrice()).setScale(trade.getScale()));
+        } else {
+            update.setFulfilledQuantity(Price.toPlainString(trade.getQuantity(), trade.getScale()))
+                    .setTradePrice(Price.toPlainString(trade.getPrice(), trade.getScale()));
         }
+        return update.build();
     }
 
-    public boolean subscribe(long orderId, java.sql.Timestamp lastUpdate, StreamObserver<OrderUpdateStream> streamObserver) {
-        try {
-            boolean complete = orderDao.orderComplete(orderId);
+    // the taker's view of its order's fills, in one update
+    private OrderUpdate createSweep(List<Trade> sweep, NumberFormat numberFormat) {
+        Trade last = sweep.getLast();
+        OrderUpdate.Builder update = createOrder(last, numberFormat).toBuilder();
 
-            if (complete) {
-                taskExecutor.execute(() -> propagateHistoricalUpdates(orderId, lastUpdate, streamObserver));
-                return false;
+        long quantity = 0;
+        for (Trade trade : sweep) {
+            quantity += trade.getQuantity();
+            Fill.Builder fill = Fill.newBuilder().setSequence(trade.getSequence());
+            if (numberFormat == NumberFormat.FIXED_POINT) {
+                fill.setFixedQuantity(FixedPoint.newBuilder().setMantissa(trade.getQuantity()).setScale(trade.getScale()))
+                        .setFixedPrice(FixedPoint.newBuilder().setMantissa(trade.getPrice()).setScale(trade.getScale()));
+            } else {
+                fill.setQuantity(Price.toPlainString(trade.getQuantity(), trade.getScale()))
+                        .setPrice(Price.toPlainString(trade.getPrice(), trade.getScale()));
+            }
+            update.addFills(fill);
+        }
+
+        if (numberFormat == NumberFormat.FIXED_POINT) {
+            update.setFixedFulfilledQuantity(FixedPoint.newBuilder().setMantissa(quantity).setScale(last.getScale()));
+        } else {
+            update.setFulfilledQuantity(Price.toPlainString(quantity, last.getScale()));
+        }
+        return update.build();
+    }
+
+    // what's left of an aggregated update once the fills up to the sequence are taken out
+    private static OrderUpdate dropFillsUpTo(OrderUpdate update, long sequence) {
+        OrderUpdate.Builder trimmed = update.toBuilder().clearFills();
+        BigDecimal quantity = BigDecimal.ZERO;
+        long fixedQuantity = 0;
+        for (Fill fill : update.getFillsList()) {
+            if (fill.getSequence() <= sequence) continue;
+            trimmed.addFills(fill);
+            if (fill.hasFixedQuantity()) {
+                fixedQuantity += fill.getFixedQuantity().getMantissa();
+            } else {
+                quantity = quantity.add(new BigDecimal(fill.getQuantity()));
+            }
+        }
+
+        if (update.hasFixedFulfilledQuantity()) {
+            trimmed.setFixedFulfilledQuantity(update.getFixedFulfilledQuantity().toBuilder().setMantissa(fixedQuantity));
+        } else {
+            trimmed.setFulfilledQuantity(quantity.stripTrailingZeros().toPlainString());
+        }
+        return trimmed.build();
+    }
+
+    private static OrderUpdateStream createCancel(Timestamp timestamp, long sequence) {
+        return OrderUpdateStream.newBuilder().setUpdate(OrderUpdate.newBuilder()
+                .setCancelled(true)
+                .setTimestamp(timestamp)
+                .setSequence(sequence)
+                .build()
+        ).build();
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return Timestamp.newBuilder()
+                .setSeconds(instant.getEpochSecond())
+                .setNanos(instant.getNano())
+                .build();
+    }
+
+    private static Timestamp toTimestamp(long epochMillis) {
+        return Timestamp.newBuilder()
+                .setSeconds(Math.floorDiv(epochMillis, 1000))
+                .setNanos((int) Math.floorMod(epochMillis, 1000) * 1_000_000)
+                .build();
+    }
+
+    /**
+     * Sends the order's updates after {@code afterSequence}, then live ones until the order is done.
+     * @return false if the subscription couldn't be set up, nothing has been sent in that case
+     */
+    public boolean subscribe(long orderId, long afterSequence, StreamObserver<OrderUpdateStream> streamObserver,
+                             NumberFormat numberFormat, boolean batched) {
+        Subscriber subscriber = new Subscriber(streamObserver, numberFormat, orderId, null, batched, afterSequence);
+        flushWhenReady(subscriber);
+        try {
+            // everything it will ever get is already stored
+            if (orderDao.orderComplete(orderId)) {
+                subscriber.finished = true;
+                return dispatcher.dispatch(orderId, new CatchUp(orderId, subscriber, 0));
             }
 
             orderUpdates.compute(orderId, (key, list) -> {
                 if (list == null) {
                     list = new CopyOnWriteArrayList<>();
                 }
-                list.add(streamObserver);
+                list.add(subscriber);
                 return list;
             });
 
-            taskExecutor.execute(() -> propagateHistoricalUpdates(orderId, lastUpdate, streamObserver));
+            // read after registering, see propagate
+            long handoverSequence = publishedSequence;
+            if (!dispatcher.dispatch(orderId, new CatchUp(orderId, subscriber, handoverSequence))) {
+                removeSubscriber(orderId, subscriber);
+                return false;
+            }
         } catch (Exception ignored) {
             return false;
         }
@@ -118,49 +368,417 @@ public class TradePropagationService {
         return true;
     }
 
-    public void unsubscribe(Long orderId) {
-        List<StreamObserver<OrderUpdateStream>> observers = orderUpdates.remove(orderId);
-        if (observers != null) {
-            observers.forEach(observer -> {
-                try {
-                    observer.onCompleted();
-                } catch (Exception e) {
-                    // client might have disconnected already, TODO: log this probably
+    /**
+     * Sends every fill and cancel of the user's orders from now on, until {@link #unsubscribeFromMyOrders}.
+     */
+    public void subscribeToMyOrders(String userId, StreamObserver<OrderUpdateStream> streamObserver, NumberFormat numberFormat,
+                                    boolean batched) {
+        Subscriber subscriber = new Subscriber(streamObserver, numberFormat, userId.hashCode(), userId, batched, 0);
+        subscriber.held = null;
+        flushWhenReady(subscriber);
+        userUpdates.compute(userId, (key, list) -> {
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+            }
+            list.add(subscriber);
+            return list;
+        });
+    }
+
+    public void unsubscribeFromMyOrders(String userId, StreamObserver<OrderUpdateStream> streamObserver) {
+        userUpdates.computeIfPresent(userId, (key, list) -> {
+            list.removeIf(subscriber -> subscriber.observer == streamObserver);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    // has to be set while the call is being set up
+    private void flushWhenReady(Subscriber subscriber) {
+        if (subscriber.batched && subscriber.observer instanceof ServerCallStreamObserver<OrderUpdateStream> call) {
+            call.setOnReadyHandler(() -> dispatcher.dispatch(subscriber.laneKey, () -> flush(subscriber, false)));
+        }
+    }
+
+    private void removeSubscriber(long orderId, Subscriber subscriber) {
+        orderUpdates.computeIfPresent(orderId, (key, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private void resume(CatchUp catchUp) {
+        if (!dispatcher.dispatch(catchUp.orderId, catchUp)) waiting.add(catchUp);
+    }
+
+    /**
+     * Sends a subscriber the stored updates it's missing, one page per run so the rest of the lane isn't held up
+     * for long. Once the tables have everything up to the handover sequence, whatever it hasn't been sent live was
+     * in the pages, so what was held back is sent and it goes live.
+     */
+    private final class CatchUp implements Runnable {
+        final long orderId;
+        final Subscriber subscriber;
+        // every update of the order that isn't held for the subscriber is at or below this
+        final long handoverSequence;
+
+        CatchUp(long orderId, Subscriber subscriber, long handoverSequence) {
+            this.orderId = orderId;
+            this.subscriber = subscriber;
+            this.handoverSequence = handoverSequence;
+        }
+
+        @Override
+        public void run() {
+            if (subscriber.closed) return;
+
+            List<TradeDao.StoredUpdate> page;
+            // before the page, so the page has at least everything up to it
+            long projectedSequence;
+            try {
+                projectedSequence = writeBehindDao.getProjectedSequence();
+                page = tradeDao.getUpdates(orderId, subscriber.lastSequence, catchUpPageSize);
+            } catch (Exception e) {
+                fail();
+                return;
+            }
+
+            for (TradeDao.StoredUpdate update : page) {
+                OrderUpdateStream message = update.cancelled()
+                        ? createCancel(toTimestamp(update.timestamp()), update.sequence())
+                        : OrderUpdateStream.newBuilder().setUpdate(createOrder(update.fill(), subscriber.numberFormat)).build();
+                if (!send(orderId, subscriber, message)) return;
+            }
+
+            if (page.size() == catchUpPageSize) {
+                resume(this);
+            } else if (projectedSequence < handoverSequence) {
+                waiting.add(this);
+            } else {
+                handOver();
+            }
+        }
+
+        private void handOver() {
+            List<OrderUpdateStream> held = subscriber.held;
+            subscriber.held = null;
+            for (OrderUpdateStream message : held) {
+                if (!send(orderId, subscriber, message)) return;
+            }
+            if (subscriber.finished) complete(orderId, subscriber);
+        }
+
+        private void fail() {
+            subscriber.closed = true;
+            removeSubscriber(orderId, subscriber);
+            try {
+                subscriber.observer.onError(new StatusRuntimeException(
+                        Status.INTERNAL.withDescription("Failed to load historical updates")
+                ));
+            } catch (Exception ignored) {
+                // observer might already be disconnected TODO: log this
+            }
+        }
+    }
+
+    // lane only; drops the subscriber if it's gone
+    private boolean send(long orderId, Subscriber subscriber, OrderUpdateStream message) {
+        if (subscriber.closed) return false;
+        if (message.hasUpdate()) {
+            long sequence = message.getUpdate().getSequence();
+            // already sent while catching up; 0 was never journaled, so it can't have been
+            if (sequence != 0 && sequence <= subscriber.lastSequence) return true;
+            // an aggregated update that the catch-up already sent some of the fills of, one by one
+            if (sequence != 0 && message.getUpdate().getFillsCount() > 0
+                    && message.getUpdate().getFills(0).getSequence() <= subscriber.lastSequence) {
+                message = OrderUpdateStream.newBuilder().setUpdate(dropFillsUpTo(message.getUpdate(), subscriber.lastSequence)).build();
+            }
+            if (sequence != 0) subscriber.lastSequence = sequence;
+            if (message.getUpdate().getCancelled()) subscriber.finished = true;
+        }
+        return write(subscriber, message);
+    }
+
+    // lane only; a user's stream has updates of many orders, so there's no sequence to check there. A batched
+    // subscriber's updates wait for the end of the lane's run, see flush
+    private boolean write(Subscriber subscriber, OrderUpdateStream message) {
+        if (subscriber.closed) return false;
+        // nothing after a missed update may go out, the client couldn't tell it had missed it
+        if (subscriber.fellBehind) {
+            endFallenBehind(subscriber);
+            return false;
+        }
+        if (subscriber.batched) {
+            if (message.hasUpdate()) {
+                if (subscriber.pending.isEmpty()) subscriber.pendingSince = System.nanoTime();
+                subscriber.pending.add(message.getUpdate());
+                if (!subscriber.flushQueued) {
+                    subscriber.flushQueued = true;
+                    dispatcher.afterBatch(() -> flush(subscriber, false));
                 }
+                return true;
+            }
+            // the updates about to go out say as much as a keep-alive would
+            if (!subscriber.pending.isEmpty()) return true;
+        }
+        return onNext(subscriber, message);
+    }
+
+    // lane only; everything pending in one frame, unless the transport isn't ready and there's still time to wait
+    private void flush(Subscriber subscriber, boolean force) {
+        subscriber.flushQueued = false;
+        if (subscriber.closed || subscriber.pending.isEmpty()) return;
+        if (!force && !subscriber.isReady() && System.nanoTime() - subscriber.pendingSince < batchLatencyNanos) {
+            subscriber.flushQueued = true;
+            stalled.add(subscriber);
+            return;
+        }
+
+        OrderUpdateStream frame = subscriber.pending.size() == 1
+                ? OrderUpdateStream.newBuilder().setUpdate(subscriber.pending.getFirst()).build()
+                : OrderUpdateStream.newBuilder().setBatch(OrderUpdateBatch.newBuilder().addAllUpdates(subscriber.pending)).build();
+        subscriber.pending.clear();
+        onNext(subscriber, frame);
+    }
+
+    // drops the subscriber if it's gone
+    private boolean onNext(Subscriber subscriber, OrderUpdateStream message) {
+        try {
+            subscriber.observer.onNext(message);
+            return true;
+        } catch (Exception e) {
+            close(subscriber);
+            return false;
+        }
+    }
+
+    private void close(Subscriber subscriber) {
+        subscriber.closed = true;
+        if (subscriber.userId != null) {
+            userUpdates.computeIfPresent(subscriber.userId, (key, list) -> {
+                list.remove(subscriber);
+                return list.isEmpty() ? null : list;
             });
+        } else {
+            removeSubscriber(subscriber.laneKey, subscriber);
         }
     }
 
-    @Async
-    public void propagate(Trade trade) {
-        List<StreamObserver<OrderUpdateStream>> makerObservers = orderUpdates.get(trade.getMakerOrderId());
-        List<StreamObserver<OrderUpdateStream>> takerObservers = orderUpdates.get(trade.getTakerOrderId());
+    // lane only; what's pending still goes out, it's all from before the missed update
+    private void endFallenBehind(Subscriber subscriber) {
+        if (subscriber.closed) return;
+        flush(subscriber, true);
+        close(subscriber);
+        String description = subscriber.userId != null
+                ? "Fell behind on order updates, subscribe again"
+                : "Fell behind on order updates, subscribe again with after_sequence set to the last sequence received";
+        try {
+            subscriber.observer.onError(Status.UNAVAILABLE.withDescription(description).asRuntimeException());
+        } catch (Exception ignored) {
+            // observer might already be disconnected TODO: log this
+        }
+    }
 
-        if ((makerObservers == null || makerObservers.isEmpty()) &&
-                (takerObservers == null || takerObservers.isEmpty())) {
+    // a lane that's full drops the work, and with it an update its subscribers couldn't tell they'd missed; they
+    // are ended instead so they come back for it
+    private void dispatch(long key, List<Subscriber> subscribers, Runnable work) {
+        if (dispatcher.dispatch(key, work) || subscribers == null) return;
+        for (Subscriber subscriber : subscribers) {
+            // only the publish stage sets it, so it's queued once
+            if (subscriber.fellBehind) continue;
+            subscriber.fellBehind = true;
+            fallenBehind.add(subscriber);
+        }
+    }
+
+    private void complete(long orderId, Subscriber subscriber) {
+        // it would look like the order had no more updates
+        if (subscriber.fellBehind) {
+            endFallenBehind(subscriber);
             return;
         }
+        // what's pending goes out ahead of the end of the stream, ready or not
+        flush(subscriber, true);
+        subscriber.closed = true;
+        removeSubscriber(orderId, subscriber);
+        try {
+            subscriber.observer.onCompleted();
+        } catch (Exception e) {
+            // client might have disconnected already, TODO: log this probably
+        }
+    }
 
-        OrderUpdateStream message = OrderUpdateStream.newBuilder().setUpdate(this.createOrder(trade)).build();
+    // last update an order gets, the streams are closed afterwards since nothing else can happen to it
+    public void propagateCancel(String userId, long orderId, long sequence, long epochMillis) {
+        published(sequence);
+        OrderUpdateStream message = createCancel(toTimestamp(epochMillis), sequence);
 
-        if (makerObservers != null) {
-            makerObservers.forEach(observer -> {
-                try {
-                    observer.onNext(message);
-                } catch (Exception e) {
-                    // disconnected client, exception will be caught in the keep-alive loop
-                }
-            });
+        if (userUpdates.containsKey(userId)) {
+            OrderUpdateStream userMessage = OrderUpdateStream.newBuilder().setUpdate(message.getUpdate().toBuilder()
+                    .setOrderId(String.valueOf(orderId))
+                    .setCompleted(true)
+            ).build();
+            dispatch(userId.hashCode(), userUpdates.get(userId), () -> deliverToUser(userId, userMessage, userMessage));
         }
+        if (!orderUpdates.containsKey(orderId)) return;
 
-        if (takerObservers != null) {
-            takerObservers.forEach(observer -> {
-                try {
-                    observer.onNext(message);
-                } catch (Exception e) {
-                    // disconnected client, exception will be caught in the keep-alive loop
-                }
-            });
+        dispatch(orderId, orderUpdates.get(orderId), () -> {
+            List<Subscriber> subscribers = orderUpdates.get(orderId);
+            if (subscribers == null) return;
+
+            deliver(orderId, message, message, subscribers);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.finished = true;
+                // one still catching up is completed once it has caught up
+                if (subscriber.held == null) complete(orderId, subscriber);
+            }
+        });
+    }
+
+    /**
+     * Sends out every fill of one taker order, in the order they happened. Makers always get an update per fill;
+     * with aggregate-sweeps on, the taker gets one update for all of them.
+     */
+    public void propagate(List<Trade> sweep) {
+        if (sweep.isEmpty()) return;
+        // before anything is looked up, see published
+        sweep.forEach(trade -> published(trade.getSequence()));
+
+        boolean aggregate = aggregateSweeps && sweep.size() > 1;
+        for (Trade trade : sweep) {
+            propagate(trade, !aggregate);
+        }
+        if (aggregate) propagateSweep(sweep);
+    }
+
+    // the messages are built straight away so the caller can recycle the trade, only delivery is on the lanes;
+    // each format is only built if someone subscribed with it
+    private void propagate(Trade trade, boolean toTaker) {
+        if (!userUpdates.isEmpty()) {
+            propagateToUser(trade.getMakerUserId(), trade.getMakerOrderId(), trade.isMakerFilled(), trade);
+            if (toTaker) propagateToUser(trade.getTakerUserId(), trade.getTakerOrderId(), trade.isTakerFilled(), trade);
+        }
+
+        List<Subscriber> makerSubscribers = orderUpdates.get(trade.getMakerOrderId());
+        List<Subscriber> takerSubscribers = toTaker ? orderUpdates.get(trade.getTakerOrderId()) : null;
+
+        if ((makerSubscribers == null || makerSubscribers.isEmpty()) &&
+                (takerSubscribers == null || takerSubscribers.isEmpty())) {
+            return;
+        }
+
+        OrderUpdateStream decimal = null;
+        OrderUpdateStream fixedPoint = null;
+        if (wants(makerSubscribers, NumberFormat.DECIMAL) || wants(takerSubscribers, NumberFormat.DECIMAL)) {
+            decimal = OrderUpdateStream.newBuilder().setUpdate(this.createOrder(trade, NumberFormat.DECIMAL)).build();
+        }
+        if (wants(makerSubscribers, NumberFormat.FIXED_POINT) || wants(takerSubscribers, NumberFormat.FIXED_POINT)) {
+            fixedPoint = OrderUpdateStream.newBuilder().setUpdate(this.createOrder(trade, NumberFormat.FIXED_POINT)).build();
+        }
+
+        OrderUpdateStream decimalMessage = decimal;
+        OrderUpdateStream fixedPointMessage = fixedPoint;
+        // maker and taker may well be on different lanes, each side is in order with the rest of its own order
+        if (makerSubscribers != null && !makerSubscribers.isEmpty()) {
+            long makerOrderId = trade.getMakerOrderId();
+            dispatch(makerOrderId, makerSubscribers,
+                    () -> deliver(makerOrderId, decimalMessage, fixedPointMessage, orderUpdates.get(makerOrderId)));
         }
+        if (takerSubscribers != null && !takerSubscribers.isEmpty()) {
+            long takerOrderId = trade.getTakerOrderId();
+            dispatch(takerOrderId, takerSubscribers,
+                    () -> deliver(takerOrderId, decimalMessage, fixedPointMessage, orderUpdates.get(takerOrderId)));
+        }
+    }
+
+    private void propagateSweep(List<Trade> sweep) {
+        Trade last = sweep.getLast();
+        long takerOrderId = last.getTakerOrderId();
+
+        List<Subscriber> subscribers = orderUpdates.get(takerOrderId);
+        if (subscribers != null && !subscribers.isEmpty()) {
+            OrderUpdateStream decimal = wants(subscribers, NumberFormat.DECIMAL)
+                    ? OrderUpdateStream.newBuilder().setUpdate(createSweep(sweep, NumberFormat.DECIMAL)).build() : null;
+            OrderUpdateStream fixedPoint = wants(subscribers, NumberFormat.FIXED_POINT)
+                    ? OrderUpdateStream.newBuilder().setUpdate(createSweep(sweep, NumberFormat.FIXED_POINT)).build() : null;
+            dispatch(takerOrderId, subscribers, () -> deliver(takerOrderId, decimal, fixedPoint, orderUpdates.get(takerOrderId)));
+        }
+
+        String userId = last.getTakerUserId();
+        List<Subscriber> userSubscribers = userId == null ? null : userUpdates.get(userId);
+        if (userSubscribers != null && !userSubscribers.isEmpty()) {
+            OrderUpdateStream decimal = wants(userSubscribers, NumberFormat.DECIMAL)
+                    ? createUserUpdate(createSweep(sweep, NumberFormat.DECIMAL), takerOrderId, last.isTakerFilled()) : null;
+            OrderUpdateStream fixedPoint = wants(userSubscribers, NumberFormat.FIXED_POINT)
+                    ? createUserUpdate(createSweep(sweep, NumberFormat.FIXED_POINT), takerOrderId, last.isTakerFilled()) : null;
+            dispatch(userId.hashCode(), userSubscribers, () -> deliverToUser(userId, decimal, fixedPoint));
+        }
+    }
+
+    // a self-trade goes to the same user twice, once for each of their orders
+    private void propagateToUser(String userId, long orderId, boolean filled, Trade trade) {
+        if (userId == null) return;
+        List<Subscriber> subscribers = userUpdates.get(userId);
+        if (subscribers == null || subscribers.isEmpty()) return;
+
+        OrderUpdateStream decimal = null;
+        OrderUpdateStream fixedPoint = null;
+        if (wants(subscribers, NumberFormat.DECIMAL)) {
+            decimal = createUserUpdate(createOrder(trade, NumberFormat.DECIMAL), orderId, filled);
+        }
+        if (wants(subscribers, NumberFormat.FIXED_POINT)) {
+            fixedPoint = createUserUpdate(createOrder(trade, NumberFormat.FIXED_POINT), orderId, filled);
+        }
+
+        OrderUpdateStream decimalMessage = decimal;
+        OrderUpdateStream fixedPointMessage = fixedPoint;
+        dispatch(userId.hashCode(), subscribers, () -> deliverToUser(userId, decimalMessage, fixedPointMessage));
+    }
+
+    private static OrderUpdateStream createUserUpdate(OrderUpdate update, long orderId, boolean filled) {
+        return OrderUpdateStream.newBuilder().setUpdate(update.toBuilder()
+                .setOrderId(String.valueOf(orderId))
+                .setCompleted(filled)
+        ).build();
+    }
+
+    private void deliverToUser(String userId, OrderUpdateStream decimal, OrderUpdateStream fixedPoint) {
+        List<Subscriber> subscribers = userUpdates.get(userId);
+        if (subscribers == null) return;
+
+        subscribers.forEach(subscriber -> {
+            OrderUpdateStream message = subscriber.numberFormat == NumberFormat.FIXED_POINT ? fixedPoint : decimal;
+            // subscribed after the message was built, and a user's stream is live only
+            if (message != null) write(subscriber, message);
+        });
+    }
+
+    // Written before the subscribers are looked up, while subscribe registers before reading it. So when propagate
+    // misses a new subscriber, subscribe is sure to see a sequence at least as high as the one it missed, and the
+    // subscriber's catch-up waits for the tables to have it.
+    private void published(long sequence) {
+        if (sequence > publishedSequence) publishedSequence = sequence;
+    }
+
+    private static boolean wants(List<Subscriber> subscribers, NumberFormat numberFormat) {
+        if (subscribers == null) return false;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.numberFormat == numberFormat) return true;
+        }
+        return false;
+    }
+
+    private void deliver(long orderId, OrderUpdateStream decimal, OrderUpdateStream fixedPoint, List<Subscriber> subscribers) {
+        if (subscribers == null) return;
+
+        subscribers.forEach(subscriber -> {
+            OrderUpdateStream message = subscriber.numberFormat == NumberFormat.FIXED_POINT ? fixedPoint : decimal;
+            // subscribed after the message was built, so its catch-up has it
+            if (message == null) return;
+            if (subscriber.held != null) {
+                subscriber.held.add(message);
+            } else {
+                send(orderId, subscriber, message);
+            }
+        });
     }
-}
\ No newline at end of file
+}
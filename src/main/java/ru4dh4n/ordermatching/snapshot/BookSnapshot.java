@@ -0,0 +1,154 @@
+package ru4dh4n.ordermatching.snapshot;
+
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderBook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A copy of every resting order in one book, in the order the book needs them back. Taking one is a flat copy
+ * into primitive arrays on the book's own thread; encoding and writing it happens elsewhere.
+ */
+public final class BookSnapshot {
+    private static final Order.Side[] SIDES = Order.Side.values();
+
+    private final String instrumentId;
+    private final int scale;
+    private int count;
+    private long[] orderIds;
+    private String[] userIds;
+    private byte[] sides;
+    // fixed-point, scaled by the instrument's scale (see Price)
+    private long[] prices;
+    private long[] totalQuantities;
+    private long[] filledQuantities;
+
+    private BookSnapshot(String instrumentId, int scale, int capacity) {
+        this.instrumentId = instrumentId;
+        this.scale = scale;
+        this.orderIds = new long[capacity];
+        this.userIds = new String[capacity];
+        this.sides = new byte[capacity];
+        this.prices = new long[capacity];
+        this.totalQuantities = new long[capacity];
+        this.filledQuantities = new long[capacity];
+    }
+
+    /**
+     * Must be called on the thread that owns the book.
+     */
+    public static BookSnapshot of(OrderBook orderBook) {
+        Instrument instrument = orderBook.getInstrument();
+        BookSnapshot snapshot = new BookSnapshot(instrument.instrumentId(), instrument.scale(), orderBook.getRestingOrderCount());
+        orderBook.forEachRestingOrder(snapshot::add);
+        return snapshot;
+    }
+
+    public String getInstrumentId() { return this.instrumentId; }
+    public int getScale() { return this.scale; }
+    public int getOrderCount() { return this.count; }
+
+    private void add(Order order) {
+        if (count == orderIds.length) grow(Math.max(8, count * 2));
+
+        orderIds[count] = order.getOrderId();
+        userIds[count] = order.getUserId();
+        sides[count] = (byte) order.getSide().ordinal();
+        prices[count] = order.getPrice();
+        totalQuantities[count] = order.getTotalQuantity();
+        filledQuantities[count] = order.getTotalQuantity() - order.getRemainingQuantity();
+        count++;
+    }
+
+    private void grow(int capacity) {
+        orderIds = Arrays.copyOf(orderIds, capacity);
+        userIds = Arrays.copyOf(userIds, capacity);
+        sides = Arrays.copyOf(sides, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        totalQuantities = Arrays.copyOf(totalQuantities, capacity);
+        filledQuantities = Arrays.copyOf(filledQuantities, capacity);
+    }
+
+    /**
+     * Rebuilds the book as it was when the snapshot was taken.
+     */
+    public OrderBook restore(Instrument instrument) {
+        if (instrument.scale() != scale) {
+            throw new IllegalStateException("Scale of " + instrumentId + " changed from " + scale + " to " + instrument.scale());
+        }
+
+        OrderBook orderBook = new OrderBook(instrument);
+        for (int i = 0; i < count; i++) {
+            orderBook.restOrder(orderIds[i], userIds[i], SIDES[sides[i]], prices[i], totalQuantities[i], filledQuantities[i]);
+        }
+        return orderBook;
+    }
+
+    /**
+     * The snapshot in the same encoding as a snapshot file, in a direct buffer so it costs no heap while it is parked.
+     */
+    public ByteBuffer encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+        buffer.put(bytes.toByteArray()).flip();
+        return buffer;
+    }
+
+    public static BookSnapshot decode(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return readFrom(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(instrumentId);
+        out.writeByte(scale);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(orderIds[i]);
+            out.writeUTF(userIds[i]);
+            out.writeByte(sides[i]);
+            out.writeLong(prices[i]);
+            out.writeLong(totalQuantities[i]);
+            out.writeLong(filledQuantities[i]);
+        }
+    }
+
+    static BookSnapshot readFrom(DataInput in) throws IOException {
+        String instrumentId = in.readUTF();
+        int scale = in.readByte();
+        int count = in.readInt();
+
+        BookSnapshot snapshot = new BookSnapshot(instrumentId, scale, count);
+        for (int i = 0; i < count; i++) {
+            snapshot.orderIds[i] = in.readLong();
+            snapshot.userIds[i] = in.readUTF();
+            snapshot.sides[i] = in.readByte();
+            snapshot.prices[i] = in.readLong();
+            snapshot.totalQuantities[i] = in.readLong();
+            snapshot.filledQuantities[i] = in.readLong();
+        }
+        snapshot.count = count;
+        return snapshot;
+    }
+}
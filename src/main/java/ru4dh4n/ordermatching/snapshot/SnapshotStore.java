@@ -0,0 +1,118 @@
+package ru4dh4n.ordermatching.snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot files of every order book, each named after the journal sequence it was taken at, so recovery can
+ * restore the newest one and replay only the journal after it. A file is written under a temporary name and
+ * moved into place, and ends in a crc, so a half-written or damaged snapshot is skipped rather than trusted.
+ */
+@Component
+public class SnapshotStore {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotStore.class);
+    private static final int MAGIC = 0x534E4150;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".snapshot";
+
+    public record Snapshot(long sequence, List<BookSnapshot> books) { }
+
+    private final Path directory;
+    private final int retained;
+
+    public SnapshotStore(@Value("${snapshot.directory:snapshots}") String directory,
+                         @Value("${snapshot.retained:2}") int retained) {
+        this.directory = Path.of(directory);
+        this.retained = Math.max(1, retained);
+    }
+
+    public void write(Snapshot snapshot) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(String.format("%020d%s", snapshot.sequence(), SUFFIX));
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary)), new CRC32());
+        try (DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshot.sequence());
+            out.writeInt(snapshot.books().size());
+            for (BookSnapshot book : snapshot.books()) {
+                book.writeTo(out);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        prune();
+    }
+
+    /**
+     * @return the newest snapshot that reads back intact, if there is one
+     */
+    public Optional<Snapshot> loadLatest() throws IOException {
+        List<Path> files = list();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            try {
+                return Optional.of(read(files.get(i)));
+            } catch (IOException e) {
+                log.warn("Skipping unreadable snapshot {}", files.get(i), e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Snapshot read(Path file) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a snapshot");
+
+            long sequence = in.readLong();
+            int bookCount = in.readInt();
+            List<BookSnapshot> books = new ArrayList<>(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                books.add(BookSnapshot.readFrom(in));
+            }
+
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) throw new IOException("crc mismatch");
+            return new Snapshot(sequence, books);
+        }
+    }
+
+    // oldest first
+    private List<Path> list() throws IOException {
+        if (!Files.isDirectory(directory)) return List.of();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+    }
+
+    private void prune() throws IOException {
+        List<Path> files = list();
+        for (int i = 0; i < files.size() - retained; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+}
@@ -7,6 +7,9 @@ CREATE TABLE orders (
                         price TEXT NOT NULL,
                         complete BOOLEAN NOT NULL DEFAULT false,
                         created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                        -- journal sequence of the cancel, which is the order's last update, NULL if it wasn't cancelled
+                        cancel_sequence INTEGER,
+                        cancelled_at TIMESTAMP,
                         FOREIGN KEY (instrument) REFERENCES instruments(instrument_id)
 );
 
@@ -15,23 +18,64 @@ CREATE TABLE trades (
                         instrument TEXT NOT NULL,
                         quantity TEXT NOT NULL,
                         price TEXT NOT NULL,
+                        -- the instrument's scale when the trade was made, so it reads back even once the instrument is gone
+                        scale INTEGER NOT NULL,
                         maker_order_id INT NOT NULL,
                         taker_order_id INT NOT NULL,
+                        -- journal sequence of the trade, the update sequence both orders see it with
+                        journal_sequence INTEGER NOT NULL,
                         created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
                         FOREIGN KEY (instrument) REFERENCES instruments(instrument_id),
                         FOREIGN KEY (maker_order_id) REFERENCES orders(order_id),
                         FOREIGN KEY (taker_order_id) REFERENCES orders(order_id)
 );
 
+-- an order's updates are read back a page at a time from either side
+CREATE INDEX trades_maker_updates ON trades (maker_order_id, journal_sequence);
+CREATE INDEX trades_taker_updates ON trades (taker_order_id, journal_sequence);
+
+-- OHLCV bars built from trades as they're matched. The bar still being built is rewritten every flush until it
+-- closes, so history queries never have to aggregate trades.
+CREATE TABLE candles (
+                         instrument TEXT NOT NULL,
+                         interval_seconds INTEGER NOT NULL,
+                         -- nanoseconds since the epoch, aligned to the interval
+                         open_time INTEGER NOT NULL,
+                         open TEXT NOT NULL,
+                         high TEXT NOT NULL,
+                         low TEXT NOT NULL,
+                         close TEXT NOT NULL,
+                         volume TEXT NOT NULL,
+                         vwap TEXT NOT NULL,
+                         trade_count INTEGER NOT NULL,
+                         closed BOOLEAN NOT NULL,
+                         PRIMARY KEY (instrument, interval_seconds, open_time),
+                         FOREIGN KEY (instrument) REFERENCES instruments(instrument_id)
+);
+
+-- how far the tables above have caught up with the journal, a single row
+CREATE TABLE journal_projection (
+                                    id INTEGER PRIMARY KEY CHECK (id = 0),
+                                    sequence INTEGER NOT NULL
+);
+
+INSERT INTO journal_projection (id, sequence) VALUES (0, 0);
+
 CREATE TABLE instruments (
                              instrument_id TEXT PRIMARY KEY,
+                             -- dense id the engine and journal use instead of instrument_id, never reused
+                             handle INTEGER NOT NULL UNIQUE CHECK (handle >= 0),
                              name TEXT NOT NULL,
                              min_order_quantity TEXT NOT NULL,
-                             min_dust_quantity TEXT NOT NULL
+                             min_dust_quantity TEXT NOT NULL,
+                             -- optional, prices must be a multiple of the tick and inside the band
+                             tick_size TEXT,
+                             min_price TEXT,
+                             max_price TEXT
 );
 
 -- Remove this (Testing)
-INSERT INTO instruments (instrument_id, name, min_order_quantity, min_dust_quantity) VALUES
-                                                                                         ('BTC-USD', 'Bitcoin/US Dollar', '0.0001', '0.00000001'),
-                                                                                         ('ETH-USD', 'Ethereum/US Dollar', '0.001', '0.000001'),
-                                                                                         ('SOL-USD', 'Solana/US Dollar', '0.01', '0.0001');
\ No newline at end of file
+INSERT INTO instruments (instrument_id, handle, name, min_order_quantity, min_dust_quantity, tick_size, min_price, max_price) VALUES
+                                                                                         ('BTC-USD', 0, 'Bitcoin/US Dollar', '0.0001', '0.00000001', NULL, NULL, NULL),
+                                                                                         ('ETH-USD', 1, 'Ethereum/US Dollar', '0.001', '0.000001', '0.01', NULL, NULL),
+                                                                                         ('SOL-USD', 2, 'Solana/US Dollar', '0.01', '0.0001', '0.01', '0.01', '10000');
\ No newline at end of file
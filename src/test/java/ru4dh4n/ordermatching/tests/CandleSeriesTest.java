@@ -0,0 +1,97 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.helper.CandleSeries;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for building OHLCV bars out of trades.
+ */
+public class CandleSeriesTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long MINUTE = 60 * SECOND;
+
+    @Test
+    @DisplayName("Should build open, high, low, close, volume and VWAP within a bucket and close it on the next")
+    void testBarsRollOver() {
+        CandleSeries series = new CandleSeries(CandleSeries.Interval.ONE_MINUTE, 10);
+        long start = 1_000 * MINUTE;
+
+        assertNull(series.add(start + SECOND, 100, 2));
+        assertNull(series.add(start + 2 * SECOND, 110, 1));
+        assertNull(series.add(start + 59 * SECOND, 90, 1));
+
+        CandleSeries.Bar current = series.current();
+        assertEquals(start, current.openTimeNanos());
+        assertEquals(100, current.open());
+        assertEquals(110, current.high());
+        assertEquals(90, current.low());
+        assertEquals(90, current.close());
+        assertEquals(4, current.volume());
+        assertEquals(100, current.vwap());
+        assertEquals(3, current.tradeCount());
+        assertFalse(current.closed());
+
+        CandleSeries.Bar closed = series.add(start + MINUTE, 95, 1);
+        assertEquals(start, closed.openTimeNanos());
+        assertTrue(closed.closed());
+        assertEquals(start + MINUTE, series.current().openTimeNanos());
+        assertEquals(95, series.current().open());
+        assertEquals(1, series.current().tradeCount());
+    }
+
+    @Test
+    @DisplayName("Should close a quiet bar once its bucket has ended, and not before")
+    void testCloseIfEnded() {
+        CandleSeries series = new CandleSeries(CandleSeries.Interval.ONE_SECOND, 10);
+        series.add(5 * SECOND + 10, 100, 1);
+
+        assertNull(series.closeIfEnded(5 * SECOND + 999_999_999));
+        assertNotNull(series.closeIfEnded(6 * SECOND));
+        assertNull(series.current());
+        assertNull(series.closeIfEnded(7 * SECOND));
+        assertEquals(1, series.range(0, Long.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    @DisplayName("Should only keep the most recent closed bars, and return the last ones asked for in order")
+    void testRingKeepsMostRecent() {
+        CandleSeries series = new CandleSeries(CandleSeries.Interval.ONE_SECOND, 3);
+        for (int i = 0; i < 6; i++) {
+            series.add(i * SECOND, 100 + i, 1);
+        }
+
+        // three closed and the open one
+        List<CandleSeries.Bar> bars = series.range(0, Long.MAX_VALUE, 10);
+        assertEquals(4, bars.size());
+        assertEquals(2 * SECOND, series.oldestOpenTime());
+        assertEquals(List.of(102L, 103L, 104L, 105L), bars.stream().map(CandleSeries.Bar::open).toList());
+
+        List<CandleSeries.Bar> lastTwo = series.range(3 * SECOND, 4 * SECOND, 2);
+        assertEquals(List.of(3 * SECOND, 4 * SECOND), lastTwo.stream().map(CandleSeries.Bar::openTimeNanos).toList());
+        assertEquals(1, series.range(0, Long.MAX_VALUE, 1).size());
+    }
+
+    @Test
+    @DisplayName("Should carry on with a bar built before a restart")
+    void testResume() {
+        CandleSeries series = new CandleSeries(CandleSeries.Interval.ONE_HOUR, 10);
+        series.resume(new CandleSeries.Bar(0, 100, 120, 80, 110, 2, 200.0, 5, false));
+        series.add(MINUTE, 130, 2);
+
+        CandleSeries.Bar current = series.current();
+        assertEquals(100, current.open());
+        assertEquals(130, current.high());
+        assertEquals(80, current.low());
+        assertEquals(130, current.close());
+        assertEquals(4, current.volume());
+        assertEquals(115, current.vwap());
+        assertEquals(6, current.tradeCount());
+        assertThrows(IllegalStateException.class, () -> series.resume(current));
+    }
+}
@@ -0,0 +1,193 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.engine.BatchEventProcessor;
+import ru4dh4n.ordermatching.engine.BatchHandler;
+import ru4dh4n.ordermatching.engine.BlockingWaitStrategy;
+import ru4dh4n.ordermatching.engine.EventProcessor;
+import ru4dh4n.ordermatching.engine.GroupCommitProcessor;
+import ru4dh4n.ordermatching.engine.RingBuffer;
+import ru4dh4n.ordermatching.engine.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the group-commit stage on its own: how it cuts the ring into runs, how long it waits for one to
+ * fill, and that the acks behind it are only released, or failed, once the run has been handled.
+ */
+public class GroupCommitProcessorTest {
+
+    static final class Slot {
+        long value;
+        // like OrderCommand.batchContinues
+        boolean continues;
+        // set by the committing stage when the run couldn't be committed, like OrderCommand.persistError
+        Throwable error;
+        CompletableFuture<Long> ack;
+    }
+
+    record Run(long first, long last) { }
+
+    private final WaitStrategy waitStrategy = new BlockingWaitStrategy();
+    private final RingBuffer<Slot> ringBuffer = new RingBuffer<>(64, Slot::new, waitStrategy);
+    private final List<Run> runs = new CopyOnWriteArrayList<>();
+    private final List<EventProcessor> processors = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    private void publish(int count, boolean continues) {
+        for (int i = 0; i < count; i++) {
+            long sequence = ringBuffer.next();
+            Slot slot = ringBuffer.get(sequence);
+            slot.value = sequence;
+            slot.continues = continues;
+            slot.error = null;
+            slot.ack = new CompletableFuture<>();
+            ringBuffer.publish(sequence);
+        }
+    }
+
+    // a stage in front, since the group commit never goes first, then the group commit, then one releasing the acks
+    private void start(BatchHandler<Slot> handler, int maxBatchSize, long maxDelayMillis) {
+        BatchEventProcessor<Slot> front = new BatchEventProcessor<>("front", ringBuffer, ringBuffer.newBarrier(),
+                (slot, sequence, endOfBatch) -> { }, waitStrategy);
+        GroupCommitProcessor<Slot> commit = new GroupCommitProcessor<>("commit", ringBuffer,
+                ringBuffer.newBarrier(front.getSequence()), handler, waitStrategy, maxBatchSize, maxDelayMillis, TimeUnit.MILLISECONDS);
+        BatchEventProcessor<Slot> acks = new BatchEventProcessor<>("acks", ringBuffer,
+                ringBuffer.newBarrier(commit.getSequence()),
+                (slot, sequence, endOfBatch) -> {
+                    if (slot.error != null) {
+                        slot.ack.completeExceptionally(slot.error);
+                    } else {
+                        slot.ack.complete(slot.value);
+                    }
+                }, waitStrategy);
+        ringBuffer.setGatingSequences(acks.getSequence());
+
+        for (EventProcessor processor : List.of(front, commit, acks)) {
+            Thread thread = new Thread(processor, processor.getName());
+            thread.setDaemon(true);
+            thread.start();
+            processors.add(processor);
+            threads.add(thread);
+        }
+    }
+
+    private void stop() throws InterruptedException {
+        for (EventProcessor processor : processors) processor.halt();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+            assertFalse(thread.isAlive(), thread.getName() + " didn't stop");
+        }
+    }
+
+    private BatchHandler<Slot> recording() {
+        return new BatchHandler<>() {
+            @Override
+            public void onBatch(RingBuffer<Slot> ringBuffer, long first, long last) {
+                runs.add(new Run(first, last));
+            }
+
+            @Override
+            public boolean canEndRunAfter(Slot slot) { return !slot.continues; }
+        };
+    }
+
+    private void awaitAcks(long last) throws Exception {
+        ringBuffer.get(last).ack.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @DisplayName("Should cut what's available into runs of at most the batch size")
+    void testCapsRuns() throws Exception {
+        // all there before the stages start, so the commit stage sees the ten of them at once
+        publish(10, false);
+        start(recording(), 4, 0);
+        try {
+            awaitAcks(9);
+            assertEquals(List.of(new Run(0, 3), new Run(4, 7), new Run(8, 9)), runs);
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep slots that have to go together in one run, past the batch size")
+    void testKeepsContinuingSlotsTogether() throws Exception {
+        publish(3, false);
+        // 3, 4 and 5 continue into 6, so the first run can't end at 3
+        publish(3, true);
+        publish(4, false);
+        start(recording(), 4, 0);
+        try {
+            awaitAcks(9);
+            assertEquals(List.of(new Run(0, 6), new Run(7, 9)), runs);
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Should linger up to maxDelay for a short run, and not at all once it is full")
+    void testLingers() throws Exception {
+        start(recording(), 3, 300);
+        try {
+            long started = System.nanoTime();
+            publish(1, false);
+            Thread.sleep(20);
+            publish(1, false);
+            awaitAcks(1);
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            // both made it into one run, which was held back until the delay was up
+            assertEquals(List.of(new Run(0, 1)), runs);
+            assertTrue(waited >= 250, "Released after " + waited + " ms");
+            runs.clear();
+
+            started = System.nanoTime();
+            publish(3, false);
+            awaitAcks(4);
+            waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            assertEquals(List.of(new Run(2, 4)), runs);
+            assertTrue(waited < 250, "Full run still waited " + waited + " ms");
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Should fail the acks of a run that couldn't be committed, and carry on with the next")
+    void testFailsAcksOfFailedRun() throws Exception {
+        IllegalStateException failure = new IllegalStateException("disk full");
+        BatchHandler<Slot> handler = (ringBuffer, first, last) -> {
+            runs.add(new Run(first, last));
+            if (first != 0) return;
+            // the way the journal stage gives up on a run: mark every slot, the acks behind turn it into failures
+            for (long sequence = first; sequence <= last; sequence++) ringBuffer.get(sequence).error = failure;
+            throw failure;
+        };
+
+        publish(4, false);
+        start(handler, 2, 0);
+        try {
+            awaitAcks(3);
+            for (int sequence = 0; sequence < 2; sequence++) {
+                ExecutionException error = assertThrows(ExecutionException.class, ringBuffer.get(sequence).ack::get);
+                assertSame(failure, error.getCause());
+            }
+            assertEquals(2L, ringBuffer.get(2).ack.get());
+            assertEquals(3L, ringBuffer.get(3).ack.get());
+            assertEquals(List.of(new Run(0, 1), new Run(2, 3)), runs);
+        } finally {
+            stop();
+        }
+    }
+}
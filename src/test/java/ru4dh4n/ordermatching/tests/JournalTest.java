@@ -0,0 +1,161 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.journal.Journal;
+import ru4dh4n.ordermatching.journal.JournalHandler;
+import ru4dh4n.ordermatching.journal.JournalReader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the memory-mapped journal: round trips, segment rolling and recovery after a torn write.
+ */
+public class JournalTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    // instrument handles
+    private static final int BTC_USD = 0;
+    private static final int ETH_USD = 1;
+    private static final int SOL_USD = 2;
+    // epoch millis
+    private static final long TIME = 1_760_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private static final class Recorder implements JournalHandler {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void onOrder(long sequence, long timestamp, long orderId, String userId, int instrument, Order.Side side,
+                            long price, long quantity, int scale) {
+            records.add(sequence + " order " + orderId + " " + userId + " " + instrument + " " + side + " " + price + " " + quantity + " " + scale
+                    + " @" + (timestamp - TIME));
+        }
+
+        @Override
+        public void onTrade(long sequence, long timestamp, int instrument, long makerOrderId, long takerOrderId,
+                            long price, long quantity, int scale, boolean makerFilled, boolean takerFilled) {
+            records.add(sequence + " trade " + instrument + " " + makerOrderId + " " + takerOrderId + " " + price + " " + quantity + " " + makerFilled + " " + takerFilled
+                    + " @" + (timestamp - TIME));
+        }
+
+        @Override
+        public void onCancel(long sequence, long timestamp, int instrument, long orderId, long cancelledQuantity, int scale) {
+            records.add(sequence + " cancel " + instrument + " " + orderId + " " + cancelledQuantity + " @" + (timestamp - TIME));
+        }
+    }
+
+    private List<String> readAll(long afterSequence) throws IOException {
+        Recorder recorder = new Recorder();
+        new JournalReader(directory).read(afterSequence, Long.MAX_VALUE, Integer.MAX_VALUE, recorder);
+        return recorder.records;
+    }
+
+    @Test
+    @DisplayName("Should read back every record type in order")
+    void testRoundTrip() throws IOException {
+        try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+            assertEquals(1, journal.appendOrder(1, "test-user", BTC_USD, Order.Side.SELL, 100, 5, 8, TIME));
+            assertEquals(2, journal.appendOrder(2, "other-user", BTC_USD, Order.Side.BUY, 101, 7, 8, TIME + 1));
+            assertEquals(3, journal.appendTrade(BTC_USD, 1, 2, 100, 5, 8, true, false, TIME + 1));
+            assertEquals(4, journal.appendCancel(BTC_USD, 2, 2, 8, TIME + 2));
+            assertEquals(0, journal.getCommittedSequence());
+            journal.flush();
+            assertEquals(4, journal.getCommittedSequence());
+        }
+
+        assertEquals(List.of(
+                "1 order 1 test-user 0 SELL 100 5 8 @0",
+                "2 order 2 other-user 0 BUY 101 7 8 @1",
+                "3 trade 0 1 2 100 5 true false @1",
+                "4 cancel 0 2 2 @2"
+        ), readAll(0));
+        assertEquals(1, readAll(3).size());
+    }
+
+    @Test
+    @DisplayName("Should roll into new segments and carry on after a reopen")
+    void testRollAndReopen() throws IOException {
+        try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+            for (int i = 1; i <= 50; i++) {
+                journal.appendOrder(i, "test-user", ETH_USD, Order.Side.BUY, 1000 + i, 1, 6, TIME + i);
+            }
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.filter(file -> file.toString().endsWith(".journal")).count() > 1);
+        }
+
+        try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+            assertEquals(50, journal.getLastSequence());
+            assertEquals(51, journal.appendCancel(ETH_USD, 50, 1, 6, TIME + 51));
+        }
+
+        List<String> records = readAll(0);
+        assertEquals(51, records.size());
+        assertEquals("40 order 40 test-user 1 BUY 1040 1 6 @40", records.get(39));
+        assertEquals("51 cancel 1 50 1 @51", records.get(50));
+    }
+
+    @Test
+    @DisplayName("Should follow the tail as records are committed")
+    void testTailing() throws IOException {
+        Recorder recorder = new Recorder();
+        JournalReader reader = new JournalReader(directory);
+
+        try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+            long read = 0;
+            for (int i = 1; i <= 30; i++) {
+                journal.appendOrder(i, "test-user", SOL_USD, Order.Side.SELL, 20, 1, 4, TIME);
+                journal.flush();
+                read = reader.read(read, journal.getCommittedSequence(), 1000, recorder);
+                assertEquals(i, read);
+            }
+        }
+
+        assertEquals(30, recorder.records.size());
+    }
+
+    @Test
+    @DisplayName("Should drop a torn record at the tail when reopened")
+    void testTornWrite() throws IOException {
+        try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+            journal.appendOrder(1, "test-user", BTC_USD, Order.Side.SELL, 100, 5, 8, TIME);
+            journal.appendOrder(2, "test-user", BTC_USD, Order.Side.SELL, 100, 5, 8, TIME);
+        }
+
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(file -> file.toString().endsWith(".journal")).findFirst().orElseThrow();
+        }
+        // flip a byte in the body of the second record
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int firstLength = file.readInt();
+            file.seek(firstLength + 30);
+            int value = file.read();
+            file.seek(firstLength + 30);
+            file.write(value ^ 0xFF);
+        }
+
+        try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+            assertEquals(1, journal.getLastSequence());
+            assertEquals(2, journal.appendCancel(BTC_USD, 1, 5, 8, TIME + 3));
+        }
+
+        List<String> records = readAll(0);
+        assertEquals(2, records.size());
+        assertEquals("2 cancel 0 1 5 @3", records.get(1));
+    }
+}
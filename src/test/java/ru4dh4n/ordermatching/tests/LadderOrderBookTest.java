@@ -0,0 +1,83 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the OrderBook tests against the price ladder a tick size gives, plus the window moving under it.
+ */
+public class LadderOrderBookTest extends OrderBookTest {
+
+    @Override
+    Instrument instrument() {
+        return new Instrument(INSTRUMENT, "Bitcoin/US Dollar", new BigDecimal("0.0001"), new BigDecimal("0.00000001"),
+                new BigDecimal("0.5"), null, null);
+    }
+
+    @Test
+    @DisplayName("Should keep levels and priorities when the ladder recentres onto far away prices")
+    void testRecentre() {
+        Order bid = submit(Order.Side.BUY, "100", "1");
+        submit(Order.Side.BUY, "99.5", "1");
+        // each of these lands outside the window and forces it to move or grow
+        submit(Order.Side.SELL, "2000", "1");
+        submit(Order.Side.SELL, "1000", "1");
+        submit(Order.Side.BUY, "10", "1");
+
+        assertEquals(scaled("100"), orderBook.getBestBid().getPrice());
+        assertEquals(scaled("1000"), orderBook.getBestAsk().getPrice());
+
+        List<Long> prices = new ArrayList<>();
+        orderBook.forEachRestingOrder(order -> prices.add(order.getPrice()));
+        assertEquals(List.of(scaled("100"), scaled("99.5"), scaled("10"), scaled("1000"), scaled("2000")), prices);
+
+        orderBook.cancelOrder(bid.getOrderId());
+        assertEquals(scaled("99.5"), orderBook.getBestBid().getPrice());
+
+        submit(Order.Side.SELL, "10", "3");
+        assertEquals(2, fills.size());
+        assertEquals(scaled("10"), orderBook.getBestAsk().getPrice());
+        assertNull(orderBook.getBestBid());
+    }
+
+    @Test
+    @DisplayName("Should reject a price too far from the book before it trades")
+    void testRejectsPriceOutsideLadder() {
+        submit(Order.Side.BUY, "100", "1");
+        submit(Order.Side.SELL, "100.5", "1");
+
+        // would take the ask, then leave a bid millions of ticks above the other one
+        assertThrows(IllegalArgumentException.class, () -> submit(Order.Side.BUY, "1000000", "2"));
+        assertTrue(fills.isEmpty());
+        assertEquals(2, orderBook.getRestingOrderCount());
+    }
+
+    @Test
+    @DisplayName("Should fill a crossing order however far it is from its own side, as long as none of it rests")
+    void testFillsCrossingOrderFarFromItsOwnSide() {
+        // a stale bid, and an ask more than MAX_TICKS half-ticks above it
+        submit(Order.Side.BUY, "1", "1");
+        submit(Order.Side.SELL, "600000", "0.5");
+        submit(Order.Side.SELL, "600000.5", "1");
+
+        Order buy = submit(Order.Side.BUY, "600001", "1.5");
+        assertTrue(buy.isFulfilled());
+        assertEquals(2, fills.size());
+        assertNull(orderBook.getBestAsk());
+        assertEquals(scaled("1"), orderBook.getBestBid().getPrice());
+
+        // the same again with something left over to rest is still turned away, untraded
+        submit(Order.Side.SELL, "600000", "1");
+        assertThrows(IllegalArgumentException.class, () -> submit(Order.Side.BUY, "600000", "2"));
+        assertEquals(2, fills.size());
+        assertEquals(2, orderBook.getRestingOrderCount());
+    }
+}
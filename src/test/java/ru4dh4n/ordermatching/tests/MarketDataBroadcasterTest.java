@@ -0,0 +1,263 @@
+package ru4dh4n.ordermatching.tests;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
+import ru4dh4n.ordermatching.grpc.FixedPoint;
+import ru4dh4n.ordermatching.grpc.Trade;
+import ru4dh4n.ordermatching.services.EncodedMessage;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster;
+import ru4dh4n.ordermatching.services.MarketDataBroadcaster.SlowConsumerPolicy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Unit tests for the per-subscriber queues in MarketDataBroadcaster, no Spring context needed.
+ */
+public class MarketDataBroadcasterTest {
+
+    private static final int SCALE = 2;
+    private static final int QUEUE_CAPACITY = 4;
+
+    private MarketDataBroadcaster broadcaster;
+
+    // a client whose transport is only ready when the test says so
+    static final class FakeObserver extends ServerCallStreamObserver<EncodedMessage> {
+        final List<EncodedMessage> received = new ArrayList<>();
+        volatile Throwable error;
+        volatile boolean ready;
+        volatile Runnable onReadyHandler;
+        volatile CountDownLatch expected = new CountDownLatch(0);
+
+        void becomeReady() {
+            ready = true;
+            onReadyHandler.run();
+        }
+
+        synchronized List<EncodedMessage> received() { return new ArrayList<>(received); }
+
+        @Override public boolean isReady() { return ready; }
+        @Override public void setOnReadyHandler(Runnable onReadyHandler) { this.onReadyHandler = onReadyHandler; }
+        @Override public boolean isCancelled() { return false; }
+        @Override public void setOnCancelHandler(Runnable onCancelHandler) { }
+        @Override public void setCompression(String compression) { }
+        @Override public void disableAutoInboundFlowControl() { }
+        @Override public void request(int count) { }
+        @Override public void setMessageCompression(boolean enable) { }
+
+        @Override
+        public void onNext(EncodedMessage message) {
+            synchronized (this) {
+                received.add(message);
+            }
+            expected.countDown();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            expected.countDown();
+        }
+
+        @Override public void onCompleted() { }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (broadcaster != null) broadcaster.shutdown();
+    }
+
+    private FakeObserver subscribe(SlowConsumerPolicy policy) {
+        broadcaster = new MarketDataBroadcaster(policy, QUEUE_CAPACITY, 1);
+        FakeObserver observer = new FakeObserver();
+        broadcaster.addObserver(0, observer, NumberFormat.FIXED_POINT);
+        return observer;
+    }
+
+    private void trade(long price) {
+        broadcaster.onNewTrade(0, new ru4dh4n.ordermatching.helper.Trade().set("TEST-USD", 1, 2, price, 100, SCALE, Instant.now()));
+    }
+
+    private static List<Trade> decode(List<EncodedMessage> messages) {
+        List<Trade> trades = new ArrayList<>();
+        for (EncodedMessage message : messages) {
+            try {
+                trades.add(Trade.parseFrom(message.toByteArray()));
+            } catch (InvalidProtocolBufferException e) {
+                fail(e);
+            }
+        }
+        return trades;
+    }
+
+    private static List<Long> prices(List<Trade> trades) {
+        return trades.stream().map(trade -> trade.getFixedPrice().getMantissa()).toList();
+    }
+
+    @Test
+    @DisplayName("Should hold trades until the client is ready, then drop the overflow and flag the gap")
+    void testDropWithGap() throws InterruptedException {
+        FakeObserver observer = subscribe(SlowConsumerPolicy.DROP);
+
+        for (long price = 1; price <= 6; price++) trade(price);
+        Thread.sleep(50);
+        assertTrue(observer.received().isEmpty());
+
+        observer.expected = new CountDownLatch(QUEUE_CAPACITY);
+        observer.becomeReady();
+        assertTrue(observer.expected.await(5, TimeUnit.SECONDS));
+
+        observer.expected = new CountDownLatch(1);
+        trade(7);
+        assertTrue(observer.expected.await(5, TimeUnit.SECONDS));
+
+        List<Trade> received = decode(observer.received());
+        assertEquals(List.of(1L, 2L, 3L, 4L, 7L), prices(received));
+        assertFalse(received.get(3).getGap());
+        assertTrue(received.get(4).getGap());
+    }
+
+    @Test
+    @DisplayName("Should replace the newest queued trade when conflating")
+    void testConflate() throws InterruptedException {
+        FakeObserver observer = subscribe(SlowConsumerPolicy.CONFLATE);
+
+        for (long price = 1; price <= 6; price++) trade(price);
+
+        observer.expected = new CountDownLatch(QUEUE_CAPACITY);
+        observer.becomeReady();
+        assertTrue(observer.expected.await(5, TimeUnit.SECONDS));
+
+        List<Trade> received = decode(observer.received());
+        assertEquals(List.of(1L, 2L, 3L, 6L), prices(received));
+        assertTrue(received.get(3).getGap());
+    }
+
+    @Test
+    @DisplayName("Should close the stream with RESOURCE_EXHAUSTED when the policy is to disconnect")
+    void testDisconnect() throws InterruptedException {
+        FakeObserver observer = subscribe(SlowConsumerPolicy.DISCONNECT);
+
+        observer.expected = new CountDownLatch(1);
+        for (long price = 1; price <= QUEUE_CAPACITY + 1; price++) trade(price);
+        assertTrue(observer.expected.await(5, TimeUnit.SECONDS));
+
+        assertTrue(observer.received().isEmpty());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, ((StatusRuntimeException) observer.error).getStatus().getCode());
+
+        // it's gone, nothing more is queued for it
+        trade(100);
+        Thread.sleep(50);
+        assertTrue(observer.received().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should encode a trade once however many subscribers there are")
+    void testEncodesOncePerTrade() throws InterruptedException {
+        broadcaster = new MarketDataBroadcaster(SlowConsumerPolicy.DROP, QUEUE_CAPACITY, 2);
+        List<FakeObserver> observers = new ArrayList<>();
+        CountDownLatch delivered = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            FakeObserver observer = new FakeObserver();
+            observer.ready = true;
+            observer.expected = delivered;
+            broadcaster.addObserver(0, observer, NumberFormat.FIXED_POINT);
+            observers.add(observer);
+        }
+
+        trade(42);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+        EncodedMessage first = observers.get(0).received().get(0);
+        for (FakeObserver observer : observers) {
+            assertSame(first, observer.received().get(0));
+        }
+        assertEquals(List.of(42L), prices(decode(List.of(first))));
+    }
+
+    // what gRPC does for every call a message goes out on: stream it through the marshaller into the transport
+    private static <T> long fanOutNanos(MethodDescriptor.Marshaller<T> marshaller, T message, int subscribers) throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long before = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < subscribers; i++) {
+            InputStream stream = marshaller.stream(message);
+            ((Drainable) stream).drainTo(OutputStream.nullOutputStream());
+        }
+        return threadMXBean.getCurrentThreadCpuTime() - before;
+    }
+
+    private static Trade benchmarkTrade() {
+        return Trade.newBuilder()
+                .setTradeId("123456789-123456790")
+                .setInstrumentId("BTC-USD")
+                .setFixedPrice(FixedPoint.newBuilder().setMantissa(6_500_012_345_678L).setScale(8))
+                .setFixedQuantity(FixedPoint.newBuilder().setMantissa(125_000_000L).setScale(8))
+                .setTimestampNs(System.nanoTime())
+                .build();
+    }
+
+    @Test
+    @DisplayName("Should put the same bytes on the wire encoded once as encoded per call")
+    void testEncodedOnceMatchesPerCall() {
+        Trade trade = benchmarkTrade();
+        assertArrayEquals(trade.toByteArray(), EncodedMessage.of(trade).toByteArray());
+    }
+
+    // left out of the normal build, run it with mvn test -Pbenchmarks
+    @Test
+    @Tag("benchmark")
+    @DisplayName("Benchmark: CPU per published trade with the message encoded per call and encoded once")
+    void benchmarkFanOut() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported());
+
+        Trade trade = benchmarkTrade();
+        MethodDescriptor.Marshaller<Trade> perCall = ProtoUtils.marshaller(Trade.getDefaultInstance());
+
+        for (int warmup = 0; warmup < 20; warmup++) {
+            fanOutNanos(perCall, trade, 10_000);
+            fanOutNanos(EncodedMessage.MARSHALLER, EncodedMessage.of(trade), 10_000);
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        int trades = 100;
+        for (int subscribers : new int[] { 10, 100, 1_000, 10_000 }) {
+            long encodedPerCall = 0;
+            long encodedOnce = 0;
+            for (int i = 0; i < trades; i++) {
+                // a fresh message each time, nothing is cached from the last trade
+                Trade fresh = trade.toBuilder().setTimestampNs(System.nanoTime()).build();
+                encodedPerCall += fanOutNanos(perCall, fresh, subscribers);
+
+                fresh = trade.toBuilder().setTimestampNs(System.nanoTime()).build();
+                long before = threadMXBean.getCurrentThreadCpuTime();
+                EncodedMessage encoded = EncodedMessage.of(fresh);
+                encodedOnce += threadMXBean.getCurrentThreadCpuTime() - before
+                        + fanOutNanos(EncodedMessage.MARSHALLER, encoded, subscribers);
+            }
+
+            System.out.printf("%,6d subscribers: encoded per call %,d ns/trade, encoded once %,d ns/trade%n",
+                    subscribers, encodedPerCall / trades, encodedOnce / trades);
+        }
+    }
+}
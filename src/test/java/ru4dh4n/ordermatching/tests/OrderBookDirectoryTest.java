@@ -0,0 +1,94 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.engine.OrderBookDirectory;
+import ru4dh4n.ordermatching.engine.TopOfBook;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.helper.Price;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the order book directory: idle books are parked and come back intact.
+ */
+public class OrderBookDirectoryTest {
+
+    // indexed by instrument handle
+    private static final Instrument[] INSTRUMENTS = {
+            new Instrument("BTC-USD", "Bitcoin/US Dollar", new BigDecimal("0.0001"), new BigDecimal("0.00000001")),
+            new Instrument("ETH-USD", "Ethereum/US Dollar", new BigDecimal("0.001"), new BigDecimal("0.000001"))
+    };
+    private static final int BTC_USD = 0;
+    private static final int ETH_USD = 1;
+
+    private OrderBookDirectory directory;
+
+    @BeforeEach
+    void setup() {
+        directory = new OrderBookDirectory(instrument -> instrument < INSTRUMENTS.length ? INSTRUMENTS[instrument] : null);
+    }
+
+    private static long scaled(String value, int instrument) {
+        return Price.toScaled(new BigDecimal(value), INSTRUMENTS[instrument].scale());
+    }
+
+    @Test
+    @DisplayName("Should park an idle book with resting orders and rehydrate it on the next lookup")
+    void testOffloadAndRehydrate() {
+        OrderBook orderBook = directory.get(BTC_USD);
+        orderBook.processOrder(1, "test-user", Order.Side.SELL, scaled("100", BTC_USD), scaled("2", BTC_USD), trade -> true);
+        orderBook.processOrder(2, "test-user", Order.Side.BUY, scaled("100", BTC_USD), scaled("0.5", BTC_USD), trade -> true);
+        directory.get(ETH_USD);
+
+        assertEquals(2, directory.offloadIdle(0, instrument -> true));
+        // the empty ETH-USD book is simply dropped
+        assertEquals(1, directory.size());
+        assertEquals(1, directory.offloadedCount());
+        assertEquals(1, directory.snapshot(instrument -> true).size());
+
+        OrderBook rehydrated = directory.get(BTC_USD);
+        assertNotSame(orderBook, rehydrated);
+        assertEquals(0, directory.offloadedCount());
+        assertEquals(scaled("1.5", BTC_USD), rehydrated.getOrder(1).getRemainingQuantity());
+        assertEquals("test-user", rehydrated.getOrder(1).getUserId());
+    }
+
+    @Test
+    @DisplayName("Should only park books that are idle and owned")
+    void testOffloadRespectsIdleTimeAndOwnership() {
+        directory.get(BTC_USD).processOrder(1, "test-user", Order.Side.SELL, scaled("100", BTC_USD), scaled("1", BTC_USD), trade -> true);
+        directory.get(ETH_USD).processOrder(2, "test-user", Order.Side.SELL, scaled("100", ETH_USD), scaled("1", ETH_USD), trade -> true);
+
+        assertEquals(0, directory.offloadIdle(Long.MAX_VALUE, instrument -> true));
+        assertEquals(1, directory.offloadIdle(0, instrument -> instrument == ETH_USD));
+        assertEquals(1, directory.offloadedCount());
+        assertThrows(IllegalArgumentException.class, () -> directory.get(7));
+    }
+
+    @Test
+    @DisplayName("Should quote a recovered book's best prices, and nothing for an instrument never seen")
+    void testQuoteRecoveredBook() {
+        OrderBook orderBook = new OrderBook(INSTRUMENTS[BTC_USD]);
+        orderBook.restOrder(1, "test-user", Order.Side.BUY, scaled("99", BTC_USD), scaled("2", BTC_USD), 0);
+        orderBook.restOrder(2, "test-user", Order.Side.BUY, scaled("99", BTC_USD), scaled("1", BTC_USD), 0);
+        orderBook.restOrder(3, "test-user", Order.Side.SELL, scaled("101", BTC_USD), scaled("1", BTC_USD), scaled("0.25", BTC_USD));
+        directory.put(BTC_USD, orderBook);
+
+        TopOfBook.Quote quote = directory.quote(BTC_USD);
+        assertEquals(scaled("99", BTC_USD), quote.bidPrice());
+        assertEquals(scaled("3", BTC_USD), quote.bidQuantity());
+        assertEquals(scaled("101", BTC_USD), quote.askPrice());
+        assertEquals(scaled("0.75", BTC_USD), quote.askQuantity());
+        assertEquals(0, quote.lastQuantity());
+        assertEquals(1, quote.version());
+
+        assertEquals(0, directory.quote(ETH_USD).bidQuantity());
+        assertEquals(0, directory.quote(7).version());
+    }
+}
@@ -0,0 +1,189 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.helper.Price;
+import ru4dh4n.ordermatching.helper.TradeHandler;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Unit tests for the price-time priority matching in OrderBook, no Spring context needed.
+ */
+public class OrderBookTest {
+
+    static final String INSTRUMENT = "BTC-USD";
+    static final int SCALE = 8;
+
+    record Fill(long makerOrderId, long takerOrderId, long price, long quantity) { }
+
+    OrderBook orderBook;
+    List<Fill> fills;
+    long nextOrderId;
+
+    // overridden to run the same tests against the other book side implementations
+    Instrument instrument() {
+        return new Instrument(INSTRUMENT, "Bitcoin/US Dollar", new BigDecimal("0.0001"), new BigDecimal("0.00000001"));
+    }
+
+    @BeforeEach
+    void setup() {
+        orderBook = new OrderBook(instrument());
+        fills = new ArrayList<>();
+        nextOrderId = 1;
+    }
+
+    static long scaled(String value) {
+        return Price.toScaled(new BigDecimal(value), SCALE);
+    }
+
+    Order submit(Order.Side side, String price, String quantity) {
+        Order order = new Order(nextOrderId++, "test-user", INSTRUMENT, side, scaled(quantity), scaled(price), SCALE);
+        orderBook.processOrder(order, trade -> fills.add(
+                new Fill(trade.getMakerOrderId(), trade.getTakerOrderId(), trade.getPrice(), trade.getQuantity())
+        ));
+        return order;
+    }
+
+    @Test
+    @DisplayName("Should fill at the best price first, then by time within a level")
+    void testPriceTimePriority() {
+        Order ask1 = submit(Order.Side.SELL, "101", "1");
+        Order ask2 = submit(Order.Side.SELL, "100", "1");
+        Order ask3 = submit(Order.Side.SELL, "100", "1");
+        Order buy = submit(Order.Side.BUY, "101", "2.5");
+
+        assertEquals(3, fills.size());
+        assertEquals(ask2.getOrderId(), fills.get(0).makerOrderId());
+        assertEquals(ask3.getOrderId(), fills.get(1).makerOrderId());
+        assertEquals(ask1.getOrderId(), fills.get(2).makerOrderId());
+        assertEquals(scaled("0.5"), fills.get(2).quantity());
+        assertEquals(scaled("101"), fills.get(2).price());
+
+        assertTrue(buy.isFulfilled());
+        assertFalse(ask1.isFulfilled());
+        assertEquals(scaled("0.5"), orderBook.getBestAsk().getTotalQuantity());
+        assertNull(orderBook.getBestBid());
+    }
+
+    @Test
+    @DisplayName("Should rest the remainder when the taker no longer crosses")
+    void testRestsRemainder() {
+        submit(Order.Side.BUY, "99", "1");
+        submit(Order.Side.BUY, "100", "1");
+        Order sell = submit(Order.Side.SELL, "100", "3");
+
+        assertEquals(1, fills.size());
+        assertFalse(sell.isFulfilled());
+        assertEquals(scaled("100"), orderBook.getBestAsk().getPrice());
+        assertEquals(scaled("2"), orderBook.getBestAsk().getTotalQuantity());
+        assertEquals(scaled("99"), orderBook.getBestBid().getPrice());
+    }
+
+    @Test
+    @DisplayName("Should drop a cancelled order from its level and advance the best price")
+    void testCancelOrder() {
+        Order bid1 = submit(Order.Side.BUY, "100", "1");
+        Order bid2 = submit(Order.Side.BUY, "100", "2");
+        submit(Order.Side.BUY, "98", "1");
+
+        assertEquals(scaled("1"), orderBook.cancelOrder(bid1.getOrderId()));
+        assertEquals(-1, orderBook.cancelOrder(bid1.getOrderId()));
+        assertEquals(1, orderBook.getBestBid().getOrderCount());
+        assertEquals(scaled("2"), orderBook.getBestBid().getTotalQuantity());
+
+        assertEquals(scaled("2"), orderBook.cancelOrder(bid2.getOrderId()));
+        assertEquals(scaled("98"), orderBook.getBestBid().getPrice());
+        assertEquals(1, orderBook.getRestingOrderCount());
+    }
+
+    @Test
+    @DisplayName("Should not cancel an order that has already been filled")
+    void testCancelFilledOrder() {
+        Order ask = submit(Order.Side.SELL, "100", "1");
+        submit(Order.Side.BUY, "100", "1");
+
+        assertTrue(ask.isFulfilled());
+        assertEquals(-1, orderBook.cancelOrder(ask.getOrderId()));
+        assertEquals(0, orderBook.getRestingOrderCount());
+    }
+
+    @Test
+    @DisplayName("Should rebuild resting orders as they were, keeping their time order and fills")
+    void testRestOrder() {
+        orderBook.restOrder(1, "test-user", Order.Side.SELL, scaled("100"), scaled("2"), scaled("0.5"));
+        orderBook.restOrder(2, "test-user", Order.Side.SELL, scaled("100"), scaled("1"), 0);
+        orderBook.restOrder(3, "test-user", Order.Side.BUY, scaled("99"), scaled("1"), 0);
+        nextOrderId = 4;
+
+        assertEquals(scaled("2.5"), orderBook.getBestAsk().getTotalQuantity());
+        assertEquals(3, orderBook.getRestingOrderCount());
+
+        submit(Order.Side.BUY, "100", "2");
+        assertEquals(2, fills.size());
+        assertEquals(1, fills.get(0).makerOrderId());
+        assertEquals(scaled("1.5"), fills.get(0).quantity());
+        assertEquals(2, fills.get(1).makerOrderId());
+        assertEquals(scaled("0.5"), orderBook.getBestAsk().getTotalQuantity());
+    }
+
+    // worked out up front, parsing them in the burst would be counted against the book
+    private static final long BURST_BASE = scaled("100");
+    private static final long BURST_TICK = scaled("0.5");
+    private static final long BURST_ONE = scaled("1");
+
+    // a burst of resting sells a few levels deep, each tenth order sweeping them, plus a place-and-cancel
+    private void runBurst(int orders, TradeHandler handler) {
+        long base = BURST_BASE;
+        long tick = BURST_TICK;
+        long one = BURST_ONE;
+
+        for (int i = 0; i < orders; i++) {
+            long orderId = nextOrderId++;
+            if (i % 10 == 9) {
+                orderBook.processOrder(orderId, "test-user", Order.Side.BUY, base + 8 * tick, 8 * one, handler);
+            } else if (i % 10 == 8) {
+                orderBook.processOrder(orderId, "test-user", Order.Side.BUY, base - 10 * tick, one, handler);
+                orderBook.cancelOrder(orderId);
+            } else {
+                orderBook.processOrder(orderId, "test-user", Order.Side.SELL, base + (i % 8) * tick, one, handler);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should not allocate per order on the matching path once warmed up")
+    void testSteadyStateMatchingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled());
+
+        long[] filled = new long[1];
+        TradeHandler handler = trade -> {
+            filled[0] += trade.getQuantity();
+            return true;
+        };
+
+        int orders = 200_000;
+        for (int i = 0; i < 5; i++) {
+            runBurst(orders, handler);
+        }
+
+        long threadId = Thread.currentThread().threadId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        runBurst(orders, handler);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(filled[0] > 0);
+        assertEquals(0, allocated, "Allocated " + allocated + " bytes over " + orders + " orders");
+    }
+}
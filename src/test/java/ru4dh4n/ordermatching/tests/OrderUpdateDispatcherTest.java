@@ -0,0 +1,100 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.services.OrderUpdateDispatcher;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the order update lanes: per-order ordering, batching and what happens when a lane fills up.
+ */
+public class OrderUpdateDispatcherTest {
+
+    @Test
+    @DisplayName("Should run each order's work in the order it was handed over, always on the same thread")
+    void testKeepsOrderPerOrder() throws InterruptedException {
+        OrderUpdateDispatcher dispatcher = new OrderUpdateDispatcher(4, 1 << 16, 64);
+        int orders = 50;
+        int updates = 1_000;
+
+        List<List<Integer>> seen = new ArrayList<>();
+        List<Set<Thread>> threads = new ArrayList<>();
+        for (int i = 0; i < orders; i++) {
+            seen.add(new ArrayList<>());
+            threads.add(new HashSet<>());
+        }
+        CountDownLatch done = new CountDownLatch(orders * updates);
+
+        dispatcher.start();
+        try {
+            for (int update = 0; update < updates; update++) {
+                for (int order = 0; order < orders; order++) {
+                    int orderIndex = order;
+                    int sequence = update;
+                    assertTrue(dispatcher.dispatch(1_000 + order, () -> {
+                        // only ever one thread per order, the lock is only there so the test thread can read it
+                        synchronized (seen) {
+                            seen.get(orderIndex).add(sequence);
+                            threads.get(orderIndex).add(Thread.currentThread());
+                        }
+                        done.countDown();
+                    }));
+                }
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            synchronized (seen) {
+                for (int order = 0; order < orders; order++) {
+                    List<Integer> sequence = seen.get(order);
+                    assertEquals(updates, sequence.size());
+                    for (int i = 0; i < updates; i++) assertEquals(i, sequence.get(i));
+                    assertEquals(1, threads.get(order).size());
+                }
+            }
+
+            OrderUpdateDispatcher.StatsMXBean stats = dispatcher.stats();
+            assertEquals((long) orders * updates, stats.getDispatched());
+            assertEquals(0, stats.getDropped());
+            assertTrue(stats.getLargestBatch() <= 64);
+            assertTrue(stats.getAverageBatchSize() >= 1);
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should drop and count work once a lane is full, and take what queued up in one batch")
+    void testDropsWhenFull() throws InterruptedException {
+        OrderUpdateDispatcher dispatcher = new OrderUpdateDispatcher(1, 4, 16);
+        CountDownLatch ran = new CountDownLatch(4);
+
+        // not started yet, so nothing is taken off the queue
+        for (int i = 0; i < 4; i++) {
+            assertTrue(dispatcher.dispatch(7, ran::countDown));
+        }
+        assertFalse(dispatcher.dispatch(7, ran::countDown));
+        assertFalse(dispatcher.dispatch(8, ran::countDown));
+
+        OrderUpdateDispatcher.StatsMXBean stats = dispatcher.stats();
+        assertEquals(4, stats.getQueueDepth());
+        assertEquals(2, stats.getDropped());
+
+        dispatcher.start();
+        try {
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            assertEquals(0, stats.getQueueDepth());
+            assertEquals(1, stats.getBatches());
+            assertEquals(4, stats.getLargestBatch());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+}
@@ -2,8 +2,10 @@ package ru4dh4n.ordermatching.tests;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.security.Keys;
@@ -361,6 +363,468 @@ public class PlaceOrderTest {
         assertNotNull(response.getOrderId());
     }
 
+    @Test
+    @DisplayName("Should cancel a resting order once, then report it as not found")
+    void testCancelOrder() {
+        OrderRequest orderRequest = OrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setSide(OrderSide.BUY)
+                .setPrice("1000")
+                .setQuantity("2.5")
+                .build();
+
+        String jwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        PlaceOrderResponse placed = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(jwt))
+                .placeOrder(orderRequest);
+
+        CancelOrderRequest cancelRequest = CancelOrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setOrderId(placed.getOrderId())
+                .build();
+
+        String cancelJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        CancelOrderResponse cancelled = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(cancelJwt))
+                .cancelOrder(cancelRequest);
+
+        assertEquals(placed.getOrderId(), cancelled.getOrderId());
+        assertEquals("2.5", cancelled.getCancelledQuantity());
+
+        String secondCancelJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        OrderServiceGrpc.OrderServiceBlockingStub secondCancelStub =
+                baseBlockingStub.withCallCredentials(new BearerTokenCredentials(secondCancelJwt));
+
+        StatusRuntimeException exception = assertThrows(StatusRuntimeException.class, () -> {
+            secondCancelStub.cancelOrder(cancelRequest);
+        });
+
+        assertEquals(Status.NOT_FOUND.getCode(), exception.getStatus().getCode());
+
+        String badIdJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        StatusRuntimeException badId = assertThrows(StatusRuntimeException.class, () -> baseBlockingStub
+                .withCallCredentials(new BearerTokenCredentials(badIdJwt))
+                .cancelOrder(cancelRequest.toBuilder().setOrderId("not-a-number").build()));
+        assertEquals(Status.INVALID_ARGUMENT.getCode(), badId.getStatus().getCode());
+    }
+
+    private static OrderRequest solOrder(OrderSide side, String price, String quantity) {
+        return OrderRequest.newBuilder()
+                .setInstrumentId("SOL-USD")
+                .setSide(side)
+                .setPrice(price)
+                .setQuantity(quantity)
+                .build();
+    }
+
+    @Test
+    @DisplayName("Should place single orders, batches and cancels over one stream and answer in order")
+    void testOrderEntryStream() throws InterruptedException {
+        String jwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        OrderServiceGrpc.OrderServiceStub authedStub = baseAsyncStub.withCallCredentials(new BearerTokenCredentials(jwt));
+
+        List<OrderEntryResponse> responses = new ArrayList<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<OrderEntryRequest> requests = authedStub.orderEntry(new StreamObserver<>() {
+            @Override
+            public void onNext(OrderEntryResponse response) {
+                synchronized (responses) {
+                    responses.add(response);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                fail("Order entry stream failed: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        });
+
+        // well above the other tests' SOL-USD prices, so nothing here crosses them
+        requests.onNext(OrderEntryRequest.newBuilder().setRequestId(1)
+                .setOrder(solOrder(OrderSide.SELL, "9000", "1")).build());
+        requests.onNext(OrderEntryRequest.newBuilder().setRequestId(2)
+                .setOrders(PlaceOrders.newBuilder()
+                        .addOrders(solOrder(OrderSide.SELL, "9001", "1"))
+                        .addOrders(solOrder(OrderSide.BUY, "9000", "0.25")))
+                .build());
+        // the second order is off the tick, so neither is placed
+        requests.onNext(OrderEntryRequest.newBuilder().setRequestId(3)
+                .setOrders(PlaceOrders.newBuilder()
+                        .addOrders(solOrder(OrderSide.SELL, "9002", "1"))
+                        .addOrders(solOrder(OrderSide.SELL, "9002.005", "1")))
+                .build());
+        requests.onNext(OrderEntryRequest.newBuilder().setRequestId(4)
+                .setCancel(CancelOrderRequest.newBuilder().setInstrumentId("SOL-USD").setOrderId("not-a-number"))
+                .build());
+        requests.onCompleted();
+
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(4, responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals(i + 1, responses.get(i).getRequestId());
+        }
+
+        String restingOrderId = responses.get(0).getPlaced().getAcks(0).getOrderId();
+        assertFalse(restingOrderId.isEmpty());
+        assertEquals(2, responses.get(1).getPlaced().getAcksCount());
+        assertTrue(responses.get(1).getPlaced().getAcksList().stream().allMatch(ack -> ack.hasOrderId()));
+        assertTrue(responses.get(2).hasRejected());
+        assertEquals("Invalid order id", responses.get(3).getRejected());
+
+        // the buy in the batch took part of the first order
+        String cancelJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        CancelOrderResponse cancelled = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(cancelJwt))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("SOL-USD").setOrderId(restingOrderId).build());
+        assertEquals("0.75", cancelled.getCancelledQuantity());
+
+        // and the sell in the batch is still resting, nothing else should find it
+        String batchOrderId = responses.get(1).getPlaced().getAcks(0).getOrderId();
+        String batchCancelJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        CancelOrderResponse cancelledBatch = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(batchCancelJwt))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("SOL-USD").setOrderId(batchOrderId).build());
+        assertEquals("1", cancelledBatch.getCancelledQuantity());
+    }
+
+    @Test
+    @DisplayName("Should take and answer with fixed-point numbers when the client asks for them")
+    void testFixedPointNumbers() {
+        Metadata headers = new Metadata();
+        headers.put(Metadata.Key.of("x-number-format", Metadata.ASCII_STRING_MARSHALLER), "fixed-point");
+
+        // 9100.00 for 1.5, at a smaller scale than the instrument's
+        OrderRequest sell = OrderRequest.newBuilder()
+                .setInstrumentId("SOL-USD")
+                .setSide(OrderSide.SELL)
+                .setFixedPrice(FixedPoint.newBuilder().setMantissa(910000).setScale(2))
+                .setFixedQuantity(FixedPoint.newBuilder().setMantissa(15).setScale(1))
+                .build();
+        String jwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        String orderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(jwt))
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .placeOrder(sell).getOrderId();
+
+        // more decimals than SOL-USD has
+        OrderRequest tooFine = sell.toBuilder().setFixedQuantity(FixedPoint.newBuilder().setMantissa(1).setScale(5)).build();
+        String tooFineJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        assertThrows(StatusRuntimeException.class, () -> baseBlockingStub
+                .withCallCredentials(new BearerTokenCredentials(tooFineJwt))
+                .placeOrder(tooFine));
+
+        String cancelJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        CancelOrderResponse cancelled = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(cancelJwt))
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("SOL-USD").setOrderId(orderId).build());
+        assertEquals("", cancelled.getCancelledQuantity());
+        assertEquals(15000, cancelled.getFixedCancelledQuantity().getMantissa());
+        assertEquals(4, cancelled.getFixedCancelledQuantity().getScale());
+    }
+
+    @Test
+    @DisplayName("Should stream trades to market data subscribers")
+    void testSubscribeToTrades() throws InterruptedException {
+        List<Trade> trades = new ArrayList<>();
+        CountDownLatch traded = new CountDownLatch(1);
+        MarketDataServiceGrpc.newStub(channel).subscribeToTrades(
+                MarketSubscriptionRequest.newBuilder().setInstrumentId("ETH-USD").build(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(Trade trade) {
+                        synchronized (trades) {
+                            trades.add(trade);
+                        }
+                        traded.countDown();
+                    }
+
+                    @Override public void onError(Throwable t) { }
+                    @Override public void onCompleted() { }
+                });
+        // the subscription is set up asynchronously on the server
+        Thread.sleep(200);
+
+        // above anything else resting on ETH-USD
+        OrderRequest sell = OrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setSide(OrderSide.SELL)
+                .setPrice("20000")
+                .setQuantity("0.5")
+                .build();
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell);
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell.toBuilder().setSide(OrderSide.BUY).build());
+
+        assertTrue(traded.await(5, TimeUnit.SECONDS));
+        synchronized (trades) {
+            assertEquals("ETH-USD", trades.get(0).getInstrumentId());
+            assertEquals(20000.0, trades.get(0).getPrice());
+            assertEquals(0.5, trades.get(0).getQuantity());
+            assertFalse(trades.get(0).getGap());
+        }
+    }
+
+    @Test
+    @DisplayName("Should send a depth snapshot, then numbered updates for the levels that change")
+    void testSubscribeToDepth() throws InterruptedException {
+        // far below anything the other tests sell SOL-USD at
+        String bidJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        String restingOrderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(bidJwt))
+                .placeOrder(solOrder(OrderSide.BUY, "1.38", "1")).getOrderId();
+
+        List<DepthUpdate> updates = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch(3);
+        MarketDataServiceGrpc.newStub(channel).subscribeToDepth(
+                MarketSubscriptionRequest.newBuilder().setInstrumentId("SOL-USD").build(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(DepthUpdate update) {
+                        synchronized (updates) {
+                            updates.add(update);
+                        }
+                        received.countDown();
+                    }
+
+                    @Override public void onError(Throwable t) { }
+                    @Override public void onCompleted() { }
+                });
+        // the subscription is set up asynchronously on the server
+        Thread.sleep(200);
+
+        String secondBidJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        String secondOrderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(secondBidJwt))
+                .placeOrder(solOrder(OrderSide.BUY, "1.38", "3")).getOrderId();
+        String cancelJwt = generateJwt(validSecret, UUID.randomUUID().toString());
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(cancelJwt))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("SOL-USD").setOrderId(restingOrderId).build());
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        synchronized (updates) {
+            DepthUpdate snapshot = updates.get(0);
+            assertTrue(snapshot.getSnapshot());
+            assertTrue(snapshot.getBidsList().stream()
+                    .anyMatch(level -> level.getPrice().equals("1.38") && level.getQuantity().equals("1")));
+
+            DepthUpdate placed = updates.get(1);
+            assertFalse(placed.getSnapshot());
+            assertEquals(snapshot.getSequence() + 1, placed.getSequence());
+            assertEquals(1, placed.getBidsCount());
+            assertEquals("1.38", placed.getBids(0).getPrice());
+            assertEquals("4", placed.getBids(0).getQuantity());
+            assertEquals(0, placed.getAsksCount());
+
+            DepthUpdate cancelled = updates.get(2);
+            assertEquals(snapshot.getSequence() + 2, cancelled.getSequence());
+            assertEquals("3", cancelled.getBids(0).getQuantity());
+        }
+
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("SOL-USD").setOrderId(secondOrderId).build());
+    }
+
+    @Test
+    @DisplayName("Should serve the best prices and last trade without going through the engine")
+    void testGetTopOfBook() {
+        MarketDataServiceGrpc.MarketDataServiceBlockingStub marketData = MarketDataServiceGrpc.newBlockingStub(channel);
+        MarketSubscriptionRequest request = MarketSubscriptionRequest.newBuilder().setInstrumentId("ETH-USD").build();
+        long before = marketData.getTopOfBook(request).getVersion();
+
+        // below the other tests' ETH-USD asks and above their bids, whatever else they left resting
+        OrderRequest sell = OrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setSide(OrderSide.SELL)
+                .setPrice("25000")
+                .setQuantity("0.3")
+                .build();
+        String sellOrderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell).getOrderId();
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell.toBuilder().setSide(OrderSide.BUY).setQuantity("0.1").build());
+
+        // the order is acked after its shard has published, so the quote already has it
+        TopOfBookResponse top = marketData.getTopOfBook(request);
+        assertEquals("25000", top.getBestAsk().getPrice());
+        assertEquals("0.2", top.getBestAsk().getQuantity());
+        assertEquals("25000", top.getLastTrade().getPrice());
+        assertEquals("0.1", top.getLastTrade().getQuantity());
+        assertTrue(top.getVersion() > before);
+
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("ETH-USD").setOrderId(sellOrderId).build());
+        TopOfBookResponse cancelled = marketData.getTopOfBook(request);
+        assertTrue(cancelled.getVersion() > top.getVersion());
+        assertFalse(cancelled.hasBestAsk() && cancelled.getBestAsk().getPrice().equals("25000"));
+
+        StatusRuntimeException unknown = assertThrows(StatusRuntimeException.class, () -> marketData
+                .getTopOfBook(MarketSubscriptionRequest.newBuilder().setInstrumentId("XYZ-USD").build()));
+        assertEquals(Status.NOT_FOUND.getCode(), unknown.getStatus().getCode());
+    }
+
+    @Test
+    @DisplayName("Should aggregate trades into candles as they're matched")
+    void testGetCandles() throws InterruptedException {
+        // start on a fresh second so both trades land in the same one-second bar, and nobody else's do
+        long second = 1_000_000_000L;
+        long now = Instant.now().toEpochMilli() * 1_000_000L;
+        long bucket = now - now % second + second;
+        Thread.sleep((bucket - now) / 1_000_000L + 20);
+
+        OrderRequest sell = OrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setSide(OrderSide.SELL)
+                .setPrice("21000")
+                .setQuantity("0.2")
+                .build();
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell);
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell.toBuilder().setPrice("21010").setQuantity("0.3").build());
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(sell.toBuilder().setSide(OrderSide.BUY).setPrice("21010").setQuantity("0.5").build());
+
+        CandlesResponse response = MarketDataServiceGrpc.newBlockingStub(channel).getCandles(CandlesRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setInterval(CandleInterval.ONE_SECOND)
+                .setFromNs(bucket)
+                .setToNs(bucket)
+                .build());
+
+        assertEquals(1, response.getCandlesCount());
+        Candle candle = response.getCandles(0);
+        assertEquals(bucket, candle.getOpenTimeNs());
+        assertEquals("21000", candle.getOpen());
+        assertEquals("21010", candle.getHigh());
+        assertEquals("21000", candle.getLow());
+        assertEquals("21010", candle.getClose());
+        assertEquals("0.5", candle.getVolume());
+        assertEquals("21006", candle.getVwap());
+        assertEquals(2, candle.getTradeCount());
+    }
+
+    // collects an order update stream until it ends
+    private static final class UpdateCollector implements StreamObserver<OrderUpdateStream> {
+        final List<OrderUpdate> updates = java.util.Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onNext(OrderUpdateStream value) {
+            if (value.hasUpdate()) updates.add(value.getUpdate());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            System.err.println("Stream error: " + t.getMessage());
+        }
+
+        @Override
+        public void onCompleted() {
+            completed.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should send stored updates then live ones once each, resume after a sequence and end on the cancel")
+    void testOrderUpdateCatchUp() throws InterruptedException {
+        OrderRequest buy = OrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setSide(OrderSide.BUY)
+                .setPrice("23000")
+                .setQuantity("1.0")
+                .build();
+        String buyOrderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(buy).getOrderId();
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(buy.toBuilder().setSide(OrderSide.SELL).setQuantity("0.2").build());
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(buy.toBuilder().setSide(OrderSide.SELL).setQuantity("0.3").build());
+
+        // both fills happened before it subscribed
+        UpdateCollector everything = new UpdateCollector();
+        baseAsyncStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .subscribeToOrderUpdates(OrderUpdateRequest.newBuilder().setOrderId(buyOrderId).build(), everything);
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (everything.updates.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(2, everything.updates.size());
+        long firstSequence = everything.updates.getFirst().getSequence();
+        assertTrue(firstSequence > 0);
+
+        UpdateCollector resumed = new UpdateCollector();
+        baseAsyncStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .subscribeToOrderUpdates(OrderUpdateRequest.newBuilder().setOrderId(buyOrderId).setAfterSequence(firstSequence).build(), resumed);
+
+        // one more live fill, then the cancel ends both streams
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(buy.toBuilder().setSide(OrderSide.SELL).setQuantity("0.1").build());
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("ETH-USD").setOrderId(buyOrderId).build());
+
+        assertTrue(everything.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(resumed.completed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(List.of("0.2", "0.3", "0.1", ""), everything.updates.stream().map(OrderUpdate::getFulfilledQuantity).toList());
+        assertTrue(everything.updates.getLast().getCancelled());
+        for (int i = 1; i < everything.updates.size(); i++) {
+            assertTrue(everything.updates.get(i).getSequence() > everything.updates.get(i - 1).getSequence());
+        }
+        assertEquals(everything.updates.subList(1, 4).stream().map(OrderUpdate::getSequence).toList(),
+                resumed.updates.stream().map(OrderUpdate::getSequence).toList());
+
+        // the order is done, so a late subscriber gets its whole history and the stream ends
+        UpdateCollector late = new UpdateCollector();
+        baseAsyncStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .subscribeToOrderUpdates(OrderUpdateRequest.newBuilder().setOrderId(buyOrderId).build(), late);
+        assertTrue(late.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(everything.updates.stream().map(OrderUpdate::getSequence).toList(),
+                late.updates.stream().map(OrderUpdate::getSequence).toList());
+        // the last two went out live the first time round, the stored ones carry the same times
+        assertEquals(everything.updates.stream().map(OrderUpdate::getTimestamp).toList(),
+                late.updates.stream().map(OrderUpdate::getTimestamp).toList());
+    }
+
+    @Test
+    @DisplayName("Should send fills, completions and cancels of all the user's orders on one stream")
+    void testSubscribeToMyOrders() throws InterruptedException {
+        UpdateCollector mine = new UpdateCollector();
+        baseAsyncStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .subscribeToMyOrders(MyOrdersRequest.getDefaultInstance(), mine);
+        Thread.sleep(200);
+
+        // every test trades as the same user, so both sides of this are ours
+        OrderRequest buy = OrderRequest.newBuilder()
+                .setInstrumentId("ETH-USD")
+                .setSide(OrderSide.BUY)
+                .setPrice("24000")
+                .setQuantity("0.5")
+                .build();
+        String buyOrderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(buy).getOrderId();
+        String sellOrderId = baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .placeOrder(buy.toBuilder().setSide(OrderSide.SELL).setQuantity("0.2").build()).getOrderId();
+        baseBlockingStub.withCallCredentials(new BearerTokenCredentials(generateJwt(validSecret, UUID.randomUUID().toString())))
+                .cancelOrder(CancelOrderRequest.newBuilder().setInstrumentId("ETH-USD").setOrderId(buyOrderId).build());
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline &&
+                mine.updates.stream().noneMatch(update -> update.getOrderId().equals(buyOrderId) && update.getCancelled())) {
+            Thread.sleep(10);
+        }
+
+        List<OrderUpdate> buyUpdates = mine.updates.stream().filter(update -> update.getOrderId().equals(buyOrderId)).toList();
+        List<OrderUpdate> sellUpdates = mine.updates.stream().filter(update -> update.getOrderId().equals(sellOrderId)).toList();
+
+        assertEquals(2, buyUpdates.size());
+        assertEquals("0.2", buyUpdates.getFirst().getFulfilledQuantity());
+        assertFalse(buyUpdates.getFirst().getCompleted());
+        assertTrue(buyUpdates.get(1).getCancelled());
+        assertTrue(buyUpdates.get(1).getCompleted());
+
+        assertEquals(1, sellUpdates.size());
+        assertEquals("0.2", sellUpdates.getFirst().getFulfilledQuantity());
+        assertEquals("24000", sellUpdates.getFirst().getTradePrice());
+        assertTrue(sellUpdates.getFirst().getCompleted());
+        assertEquals(buyUpdates.getFirst().getSequence(), sellUpdates.getFirst().getSequence());
+    }
+
     @Test
     @DisplayName("Should fail with UNAUTHENTICATED when the JWT signature is invalid")
     void testPlaceOrder_FailsWithInvalidSignature() {
@@ -0,0 +1,235 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru4dh4n.ordermatching.engine.BatchEventProcessor;
+import ru4dh4n.ordermatching.engine.BusySpinWaitStrategy;
+import ru4dh4n.ordermatching.engine.EventProcessor;
+import ru4dh4n.ordermatching.engine.RingBuffer;
+import ru4dh4n.ordermatching.engine.Sequence;
+import ru4dh4n.ordermatching.engine.SequenceBarrier;
+import ru4dh4n.ordermatching.engine.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the ring buffer the pipeline runs on: claiming, publishing, gating and how each wait strategy
+ * hands slots to the stages. A small ring is used throughout so producers keep running into the stages.
+ */
+public class RingBufferTest {
+
+    static final class Slot {
+        int producer;
+        long value;
+        // set by the first stage, checked by the one behind it
+        boolean seen;
+    }
+
+    private static RingBuffer<Slot> ring(int size, WaitStrategy waitStrategy) {
+        return new RingBuffer<>(size, Slot::new, waitStrategy);
+    }
+
+    private static List<Thread> start(EventProcessor... processors) {
+        List<Thread> threads = new ArrayList<>();
+        for (EventProcessor processor : processors) {
+            Thread thread = new Thread(processor, processor.getName());
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static void stop(List<Thread> threads, EventProcessor... processors) throws InterruptedException {
+        for (EventProcessor processor : processors) processor.halt();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+            assertFalse(thread.isAlive(), thread.getName() + " didn't stop");
+        }
+    }
+
+    @Test
+    @DisplayName("Should only accept power of 2 sizes and claims that fit the ring")
+    void testRejectsBadSizes() {
+        assertThrows(IllegalArgumentException.class, () -> ring(6, new BusySpinWaitStrategy()));
+        assertThrows(IllegalArgumentException.class, () -> ring(0, new BusySpinWaitStrategy()));
+
+        RingBuffer<Slot> ringBuffer = ring(8, new BusySpinWaitStrategy());
+        assertThrows(IllegalArgumentException.class, () -> ringBuffer.next(0));
+        assertThrows(IllegalArgumentException.class, () -> ringBuffer.next(9));
+    }
+
+    @Test
+    @DisplayName("Should not let a producer lap the slowest stage, and mark slots available per lap")
+    void testGatesOnTheSlowestStage() throws InterruptedException {
+        RingBuffer<Slot> ringBuffer = ring(4, new BusySpinWaitStrategy());
+        Sequence slow = new Sequence();
+        Sequence fast = new Sequence(3);
+        ringBuffer.setGatingSequences(fast, slow);
+
+        for (int i = 0; i < 4; i++) {
+            long sequence = ringBuffer.next();
+            assertEquals(i, sequence);
+            ringBuffer.publish(sequence);
+        }
+        assertTrue(ringBuffer.isAvailable(0));
+        assertFalse(ringBuffer.isAvailable(4));
+
+        AtomicLong claimed = new AtomicLong(Long.MIN_VALUE);
+        Thread producer = new Thread(() -> claimed.set(ringBuffer.next()));
+        producer.setDaemon(true);
+        producer.start();
+
+        // slot 4 is slot 0 again, which the slow stage hasn't got past
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        assertEquals(Long.MIN_VALUE, claimed.get());
+
+        slow.set(0);
+        producer.join(5_000);
+        assertEquals(4, claimed.get());
+
+        // claimed but not published: the slot still holds the previous lap
+        assertFalse(ringBuffer.isAvailable(4));
+        assertTrue(ringBuffer.isAvailable(0));
+        ringBuffer.publish(4);
+        assertTrue(ringBuffer.isAvailable(4));
+        assertFalse(ringBuffer.isAvailable(0));
+    }
+
+    @Test
+    @DisplayName("Should claim next(n) as one contiguous run and make it visible all at once")
+    void testClaimsContiguousRuns() throws Exception {
+        RingBuffer<Slot> ringBuffer = ring(8, new BusySpinWaitStrategy());
+        SequenceBarrier barrier = ringBuffer.newBarrier();
+
+        long last = ringBuffer.next(3);
+        assertEquals(2, last);
+        assertEquals(2, ringBuffer.getCursor());
+
+        // a claim behind it published first doesn't let a reader past the gap
+        long single = ringBuffer.next();
+        assertEquals(3, single);
+        ringBuffer.publish(single);
+        assertEquals(-1, barrier.waitFor(0));
+
+        ringBuffer.publish(0, last);
+        assertEquals(3, barrier.waitFor(0));
+        assertEquals(3, ringBuffer.getHighestPublishedSequence(0, 3));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "busy-spin", "yielding", "blocking" })
+    @DisplayName("Should hand every producer's slots through two stages in order, with runs kept together")
+    void testManyProducers(String strategy) throws InterruptedException {
+        WaitStrategy waitStrategy = WaitStrategy.fromName(strategy);
+        RingBuffer<Slot> ringBuffer = ring(16, waitStrategy);
+        int producers = 4;
+        int runs = 5_000;
+        int runLength = 3;
+        int total = producers * runs * runLength;
+
+        long[] lastSeen = new long[producers];
+        Arrays.fill(lastSeen, -1);
+        List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(total);
+
+        BatchEventProcessor<Slot> first = new BatchEventProcessor<>("first", ringBuffer, ringBuffer.newBarrier(),
+                (slot, sequence, endOfBatch) -> {
+                    // every producer's values are consecutive, so a reordered run shows up here
+                    if (slot.value != lastSeen[slot.producer] + 1 && problems.size() < 10) {
+                        problems.add("producer " + slot.producer + " went " + lastSeen[slot.producer] + " -> " + slot.value);
+                    }
+                    // and every claim is runLength long from 0, so a run split up by another claim shows up here
+                    if (slot.value % runLength != sequence % runLength && problems.size() < 10) {
+                        problems.add("sequence " + sequence + " holds value " + slot.value + " of producer " + slot.producer);
+                    }
+                    lastSeen[slot.producer] = slot.value;
+                    slot.seen = true;
+                }, waitStrategy);
+        BatchEventProcessor<Slot> second = new BatchEventProcessor<>("second", ringBuffer,
+                ringBuffer.newBarrier(first.getSequence()),
+                (slot, sequence, endOfBatch) -> {
+                    if (!slot.seen && problems.size() < 10) problems.add("sequence " + sequence + " overtook the first stage");
+                    slot.seen = false;
+                    done.countDown();
+                }, waitStrategy);
+        ringBuffer.setGatingSequences(second.getSequence());
+
+        List<Thread> stages = start(first, second);
+        List<Thread> producing = new ArrayList<>();
+        try {
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                Thread thread = new Thread(() -> {
+                    long value = 0;
+                    for (int run = 0; run < runs; run++) {
+                        long last = ringBuffer.next(runLength);
+                        long firstOfRun = last - runLength + 1;
+                        for (long sequence = firstOfRun; sequence <= last; sequence++) {
+                            Slot slot = ringBuffer.get(sequence);
+                            slot.producer = producer;
+                            slot.value = value++;
+                        }
+                        ringBuffer.publish(firstOfRun, last);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+                producing.add(thread);
+            }
+
+            assertTrue(done.await(30, TimeUnit.SECONDS), done.getCount() + " slots never made it through");
+            for (Thread thread : producing) thread.join(5_000);
+        } finally {
+            stop(stages, first, second);
+        }
+
+        assertEquals(List.of(), problems);
+        for (int p = 0; p < producers; p++) assertEquals((long) runs * runLength - 1, lastSeen[p]);
+        assertEquals(total - 1, ringBuffer.getCursor());
+        assertEquals(total - 1, second.getSequence().get());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "busy-spin", "yielding", "blocking" })
+    @DisplayName("Should wake a waiting stage when a slot is published, and stop it when halted")
+    void testWakesWaitingStage(String strategy) throws InterruptedException {
+        WaitStrategy waitStrategy = WaitStrategy.fromName(strategy);
+        RingBuffer<Slot> ringBuffer = ring(4, waitStrategy);
+        CountDownLatch handled = new CountDownLatch(1);
+        BatchEventProcessor<Slot> stage = new BatchEventProcessor<>("stage", ringBuffer, ringBuffer.newBarrier(),
+                (slot, sequence, endOfBatch) -> {
+                    assertEquals(42, slot.value);
+                    handled.countDown();
+                }, waitStrategy);
+        ringBuffer.setGatingSequences(stage.getSequence());
+
+        List<Thread> threads = start(stage);
+        try {
+            // let it settle into its wait on an empty ring
+            Thread.sleep(50);
+            assertEquals(1, handled.getCount());
+
+            long sequence = ringBuffer.next();
+            ringBuffer.get(sequence).value = 42;
+            ringBuffer.publish(sequence);
+
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+        } finally {
+            // halting while it waits again is the other wake-up
+            stop(threads, stage);
+        }
+        assertEquals(0, stage.getSequence().get());
+    }
+}
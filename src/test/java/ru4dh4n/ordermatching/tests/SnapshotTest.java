@@ -0,0 +1,96 @@
+package ru4dh4n.ordermatching.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru4dh4n.ordermatching.helper.Instrument;
+import ru4dh4n.ordermatching.helper.Order;
+import ru4dh4n.ordermatching.helper.OrderBook;
+import ru4dh4n.ordermatching.helper.Price;
+import ru4dh4n.ordermatching.snapshot.BookSnapshot;
+import ru4dh4n.ordermatching.snapshot.SnapshotStore;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for order book snapshots: what goes in comes back out in the same priority order.
+ */
+public class SnapshotTest {
+
+    private static final Instrument INSTRUMENT =
+            new Instrument("BTC-USD", "Bitcoin/US Dollar", new BigDecimal("0.0001"), new BigDecimal("0.00000001"));
+
+    @TempDir
+    Path directory;
+
+    private static long scaled(String value) {
+        return Price.toScaled(new BigDecimal(value), INSTRUMENT.scale());
+    }
+
+    private static OrderBook sampleBook() {
+        OrderBook orderBook = new OrderBook(INSTRUMENT);
+        orderBook.processOrder(1, "maker-a", Order.Side.SELL, scaled("101"), scaled("1"), trade -> true);
+        orderBook.processOrder(2, "maker-b", Order.Side.SELL, scaled("100"), scaled("2"), trade -> true);
+        orderBook.processOrder(3, "maker-c", Order.Side.SELL, scaled("100"), scaled("1"), trade -> true);
+        orderBook.processOrder(4, "maker-d", Order.Side.BUY, scaled("99"), scaled("3"), trade -> true);
+        // leaves order 2 half filled
+        orderBook.processOrder(5, "taker", Order.Side.BUY, scaled("100"), scaled("1"), trade -> true);
+        return orderBook;
+    }
+
+    private static List<Long> sellFillOrder(OrderBook orderBook) {
+        List<Long> makers = new ArrayList<>();
+        orderBook.processOrder(100, "sweeper", Order.Side.BUY, scaled("200"), scaled("100"), trade -> {
+            makers.add(trade.getMakerOrderId());
+            return true;
+        });
+        return makers;
+    }
+
+    @Test
+    @DisplayName("Should restore every resting order with its fills and priority")
+    void testRoundTrip() throws IOException {
+        SnapshotStore store = new SnapshotStore(directory.toString(), 2);
+        store.write(new SnapshotStore.Snapshot(42, List.of(BookSnapshot.of(sampleBook()))));
+
+        SnapshotStore.Snapshot snapshot = store.loadLatest().orElseThrow();
+        assertEquals(42, snapshot.sequence());
+        assertEquals(1, snapshot.books().size());
+
+        OrderBook restored = snapshot.books().get(0).restore(INSTRUMENT);
+        assertEquals(4, restored.getRestingOrderCount());
+        assertEquals(scaled("2"), restored.getBestAsk().getTotalQuantity());
+        assertEquals(scaled("99"), restored.getBestBid().getPrice());
+        assertEquals(scaled("1"), restored.getOrder(2).getRemainingQuantity());
+        assertEquals(sellFillOrder(sampleBook()), sellFillOrder(restored));
+    }
+
+    @Test
+    @DisplayName("Should fall back to an older snapshot when the newest is damaged, and prune old ones")
+    void testDamagedSnapshot() throws IOException {
+        SnapshotStore store = new SnapshotStore(directory.toString(), 2);
+        for (long sequence = 1; sequence <= 3; sequence++) {
+            store.write(new SnapshotStore.Snapshot(sequence * 10, List.of(BookSnapshot.of(sampleBook()))));
+        }
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.sorted().toList();
+        }
+        assertEquals(2, files.size());
+
+        byte[] newest = Files.readAllBytes(files.get(1));
+        newest[newest.length / 2] ^= 0x55;
+        Files.write(files.get(1), newest);
+
+        assertEquals(20, store.loadLatest().orElseThrow().sequence());
+    }
+}
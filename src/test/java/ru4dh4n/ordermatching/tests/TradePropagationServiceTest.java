@@ -0,0 +1,189 @@
+package ru4dh4n.ordermatching.tests;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru4dh4n.ordermatching.components.NumberFormatInterceptor.NumberFormat;
+import ru4dh4n.ordermatching.grpc.Fill;
+import ru4dh4n.ordermatching.grpc.OrderUpdate;
+import ru4dh4n.ordermatching.grpc.OrderUpdateStream;
+import ru4dh4n.ordermatching.helper.Trade;
+import ru4dh4n.ordermatching.services.TradePropagationService;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for how a taker's fills are sent out, over the whole-account streams so no database is needed.
+ */
+public class TradePropagationServiceTest {
+
+    private static final int SCALE = 2;
+
+    private static final class Collector implements StreamObserver<OrderUpdateStream> {
+        final List<OrderUpdate> updates = Collections.synchronizedList(new ArrayList<>());
+        final List<OrderUpdateStream> frames = Collections.synchronizedList(new ArrayList<>());
+        volatile Throwable error;
+
+        @Override
+        public void onNext(OrderUpdateStream value) {
+            frames.add(value);
+            if (value.hasUpdate()) updates.add(value.getUpdate());
+            if (value.hasBatch()) updates.addAll(value.getBatch().getUpdatesList());
+        }
+
+        @Override public void onError(Throwable t) { error = t; }
+        @Override public void onCompleted() { }
+    }
+
+    // a taker (order 20) sweeping three makers, the first two of them the same user's
+    private static List<Trade> sweep() {
+        Instant now = Instant.now();
+        return List.of(
+                new Trade().set("TEST-USD", 11, 20, 100_000, 100, SCALE, now).setSequence(5)
+                        .setParties("maker-a", true, "taker", false),
+                new Trade().set("TEST-USD", 12, 20, 101_000, 50, SCALE, now).setSequence(6)
+                        .setParties("maker-a", true, "taker", false),
+                new Trade().set("TEST-USD", 13, 20, 102_000, 25, SCALE, now).setSequence(7)
+                        .setParties("maker-b", false, "taker", true)
+        );
+    }
+
+    private static void awaitUpdates(Collector collector, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (collector.updates.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    }
+
+    @Test
+    @DisplayName("Should roll a taker's fills into one update with the breakdown, while makers get one each")
+    void testAggregatesSweep() throws InterruptedException {
+        TradePropagationService service = new TradePropagationService(null, null, null, 2, 1024, 64, 16, true, 5, 20);
+        service.start();
+        try {
+            Collector taker = new Collector();
+            Collector makerA = new Collector();
+            Collector fixedTaker = new Collector();
+            service.subscribeToMyOrders("taker", taker, NumberFormat.DECIMAL, false);
+            service.subscribeToMyOrders("taker", fixedTaker, NumberFormat.FIXED_POINT, false);
+            service.subscribeToMyOrders("maker-a", makerA, NumberFormat.DECIMAL, false);
+
+            service.propagate(sweep());
+            awaitUpdates(makerA, 2);
+            awaitUpdates(taker, 1);
+            awaitUpdates(fixedTaker, 1);
+            Thread.sleep(50);
+
+            assertEquals(1, taker.updates.size());
+            OrderUpdate update = taker.updates.getFirst();
+            assertEquals("20", update.getOrderId());
+            assertEquals("1.75", update.getFulfilledQuantity());
+            assertEquals("1020", update.getTradePrice());
+            assertEquals(7, update.getSequence());
+            assertTrue(update.getCompleted());
+            assertEquals(List.of("1", "0.5", "0.25"), update.getFillsList().stream().map(Fill::getQuantity).toList());
+            assertEquals(List.of("1000", "1010", "1020"), update.getFillsList().stream().map(Fill::getPrice).toList());
+            assertEquals(List.of(5L, 6L, 7L), update.getFillsList().stream().map(Fill::getSequence).toList());
+
+            OrderUpdate fixed = fixedTaker.updates.getFirst();
+            assertEquals(175, fixed.getFixedFulfilledQuantity().getMantissa());
+            assertEquals(SCALE, fixed.getFixedFulfilledQuantity().getScale());
+            assertEquals(101_000, fixed.getFills(1).getFixedPrice().getMantissa());
+
+            assertEquals(List.of("11", "12"), makerA.updates.stream().map(OrderUpdate::getOrderId).toList());
+            assertEquals(List.of("1", "0.5"), makerA.updates.stream().map(OrderUpdate::getFulfilledQuantity).toList());
+            assertTrue(makerA.updates.stream().allMatch(maker -> maker.getFillsCount() == 0 && maker.getCompleted()));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should send the taker one update per fill when sweeps aren't aggregated")
+    void testSweepNotAggregated() throws InterruptedException {
+        TradePropagationService service = new TradePropagationService(null, null, null, 2, 1024, 64, 16, false, 5, 20);
+        service.start();
+        try {
+            Collector taker = new Collector();
+            service.subscribeToMyOrders("taker", taker, NumberFormat.DECIMAL, false);
+
+            service.propagate(sweep());
+            awaitUpdates(taker, 3);
+
+            assertEquals(List.of("1", "0.5", "0.25"), taker.updates.stream().map(OrderUpdate::getFulfilledQuantity).toList());
+            assertEquals(List.of(false, false, true), taker.updates.stream().map(OrderUpdate::getCompleted).toList());
+            assertTrue(taker.updates.stream().allMatch(update -> update.getFillsCount() == 0));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should pack everything one lane run has for a batched subscriber into one frame")
+    void testBatchedFrames() throws InterruptedException {
+        TradePropagationService service = new TradePropagationService(null, null, null, 1, 1024, 64, 16, false, 5, 20);
+        Collector batched = new Collector();
+        Collector unbatched = new Collector();
+        service.subscribeToMyOrders("taker", batched, NumberFormat.DECIMAL, true);
+        service.subscribeToMyOrders("taker", unbatched, NumberFormat.DECIMAL, false);
+
+        // queued before the lane starts, so it takes the whole sweep in one run
+        service.propagate(sweep());
+        service.start();
+        try {
+            awaitUpdates(batched, 3);
+            awaitUpdates(unbatched, 3);
+
+            assertEquals(1, batched.frames.size());
+            assertTrue(batched.frames.getFirst().hasBatch());
+            assertEquals(List.of(5L, 6L, 7L), batched.updates.stream().map(OrderUpdate::getSequence).toList());
+            assertEquals(3, unbatched.frames.size());
+            assertTrue(unbatched.frames.stream().allMatch(OrderUpdateStream::hasUpdate));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should end a stream with UNAVAILABLE instead of skipping an update its full lane dropped")
+    void testEndsStreamWhenLaneIsFull() throws InterruptedException {
+        // room for two of the sweep's three updates
+        TradePropagationService service = new TradePropagationService(null, null, null, 1, 2, 64, 16, false, 5, 20);
+        Collector taker = new Collector();
+        Collector makerB = new Collector();
+        service.subscribeToMyOrders("taker", taker, NumberFormat.DECIMAL, false);
+        service.subscribeToMyOrders("maker-b", makerB, NumberFormat.DECIMAL, false);
+
+        // queued before the lane starts, so it can't make room
+        service.propagate(sweep());
+        assertEquals(2, service.getStats().getDropped());
+        service.start();
+        try {
+            // maker-b has nothing else queued, so only the timer's pass ends it once the lane has room, run here too
+            long deadline = System.currentTimeMillis() + 5_000;
+            while ((taker.error == null || makerB.error == null) && System.currentTimeMillis() < deadline) {
+                service.endFallenBehind();
+                Thread.sleep(5);
+            }
+
+            assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(taker.error).getCode());
+            assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(makerB.error).getCode());
+            assertTrue(taker.updates.isEmpty());
+
+            // they're gone, nothing more is queued for them
+            long dropped = service.getStats().getDropped();
+            long dispatched = service.getStats().getDispatched();
+            service.propagate(sweep());
+            Thread.sleep(50);
+            assertTrue(taker.updates.isEmpty());
+            assertEquals(dropped, service.getStats().getDropped());
+            assertEquals(dispatched, service.getStats().getDispatched());
+        } finally {
+            service.shutdown();
+        }
+    }
+}